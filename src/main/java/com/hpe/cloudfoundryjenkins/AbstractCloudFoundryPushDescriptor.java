@@ -19,6 +19,7 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import java.net.MalformedURLException;
 import java.net.URL;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.QueryParameter;
 
@@ -166,6 +167,90 @@ public abstract class AbstractCloudFoundryPushDescriptor<T extends BuildStep & D
         return FormValidation.validatePositiveInteger(value);
     }
 
+    /**
+     * Marks the number of services to create concurrently as a required positive integer
+     * @param value the value
+     * @return the validation
+     */
+    @SuppressWarnings(value = "unused")
+    public FormValidation doCheckServicesParallelism(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Marks the number of applications to push concurrently as a required positive integer
+     * @param value the value
+     * @return the validation
+     */
+    @SuppressWarnings(value = "unused")
+    public FormValidation doCheckPushParallelism(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Marks the number of transfer streams, if given, as a positive integer
+     * @param value the value
+     * @return the validation
+     */
+    @SuppressWarnings(value = "unused")
+    public FormValidation doCheckTransferStreams(@QueryParameter String value) {
+        return StringUtils.isBlank(value) ? FormValidation.ok() : FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * This method is called to populate the push failure policies on the Jenkins config page.
+     * @return the failure policies list box model
+     */
+    @SuppressWarnings(value = "unused")
+    public ListBoxModel doFillPushFailurePolicyItems() {
+        ListBoxModel result = new ListBoxModel();
+        result.add("Stop pushing once an application failed", ApplicationPusher.FAIL_FAST);
+        result.add("Push all applications, then report the failures", ApplicationPusher.COLLECT_ALL);
+        return result;
+    }
+
+    /**
+     * Fills the compression levels of the application archive
+     * @return the compression levels
+     */
+    @SuppressWarnings(value = "unused")
+    public ListBoxModel doFillCompressionLevelItems() {
+        ListBoxModel result = new ListBoxModel();
+        result.add("Default", "");
+        result.add("Store only", String.valueOf(ParallelZip.STORE));
+        result.add("1 (fastest)", "1");
+        for (int level = 2; level < 9; level++) {
+            result.add(String.valueOf(level));
+        }
+        result.add("9 (smallest)", "9");
+        return result;
+    }
+
+    /**
+     * Fills the push engine select box.
+     * @return the push engines
+     */
+    @SuppressWarnings(value = "unused")
+    public ListBoxModel doFillPushEngineItems() {
+        ListBoxModel result = new ListBoxModel();
+        result.add("v2 API", "");
+        result.add("v2 API (direct upload)", DirectPush.DIRECT);
+        result.add("v3 API (apply manifest)", V3Push.V3);
+        return result;
+    }
+
+    /**
+     * Fills the deployment strategy select box.
+     * @return the deployment strategies
+     */
+    @SuppressWarnings(value = "unused")
+    public ListBoxModel doFillDeploymentStrategyItems() {
+        ListBoxModel result = new ListBoxModel();
+        result.add("Stop and restart", "");
+        result.add("Rolling, without downtime", DirectPush.ROLLING);
+        return result;
+    }
+
     /**
      * Marks the memory allocation as a required positive integer
      * @param value the value
@@ -0,0 +1,154 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import jenkins.MasterToSlaveFileCallable;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.DefaultConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import reactor.core.publisher.Mono;
+
+/**
+ * Pushes from the build agent holding the workspace, so the application files
+ * go straight from the agent to Cloud Foundry.
+ * <p>
+ * Everything which needs the run (token expansion, credentials lookup) is done
+ * on the controller beforehand: only the deployment settings, an access token
+ * and the build listener are sent to the agent. The password never leaves the
+ * controller. The access token is obtained from the cached token provider of
+ * the controller, but cannot be refreshed on the agent, so the push has to
+ * complete within its lifetime.
+ * <p>
+ * The connection context is created on the agent for each push, since the
+ * shared contexts of {@link ConnectionContextRegistry} live on the controller.
+ */
+class AgentPush extends MasterToSlaveFileCallable<AgentPush.Outcome> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Deployment deployment;
+  private final ConnectionContextRegistry.Key endpoint;
+  private final String accessToken;
+  private final CloudFoundryPushPublisher.ManifestChoice manifestChoice;
+  private final String tokenExpandedManifest;
+  private final FingerprintCache fingerprints;
+  private final TaskListener listener;
+
+  /**
+   * @param deployment the deployment
+   * @param endpoint the endpoint to push to
+   * @param accessToken the access token, from {@link #accessToken}
+   * @param manifestChoice the token-expanded manifest choice
+   * @param tokenExpandedManifest the token-expanded contents of the manifest
+   * file, or {@code null} if the manifest is entered in Jenkins
+   * @param fingerprints the fingerprints of the files pushed before
+   * @param listener the build listener
+   */
+  AgentPush(Deployment deployment, ConnectionContextRegistry.Key endpoint, String accessToken,
+          CloudFoundryPushPublisher.ManifestChoice manifestChoice, String tokenExpandedManifest, FingerprintCache fingerprints,
+          TaskListener listener) {
+    this.deployment = deployment;
+    this.endpoint = endpoint;
+    this.accessToken = accessToken;
+    this.manifestChoice = manifestChoice;
+    this.tokenExpandedManifest = tokenExpandedManifest;
+    this.fingerprints = fingerprints;
+    this.listener = listener;
+  }
+
+  @Override
+  public Outcome invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+    FilePath workspace = new FilePath(f);
+    DefaultConnectionContext connectionContext = endpoint.newConnectionContext();
+    try {
+      TokenProvider tokenProvider = new AccessToken(accessToken);
+      boolean success = deployment.push(endpoint, connectionContext, tokenProvider, () -> tokenExpandedManifest != null
+              ? ManifestUtils.parseManifestFile(workspace, manifestChoice, tokenExpandedManifest)
+              : ManifestUtils.buildJenkinsConfig(workspace, manifestChoice, false), fingerprints, listener);
+      return new Outcome(success, fingerprints);
+    } catch (MacroEvaluationException e) {
+      throw new IOException(e);
+    } finally {
+      connectionContext.dispose();
+    }
+  }
+
+  /**
+   * Gets an access token to send to the build agent. A cached token which
+   * would expire before the push times out is refreshed first.
+   *
+   * @param tokenProvider the token provider of the controller
+   * @param connectionContext the connection context of the controller
+   * @param timeout the timeout of the push, in seconds
+   * @param log the log to report to
+   * @return the access token, with its type
+   */
+  static String accessToken(TokenProvider tokenProvider, ConnectionContext connectionContext, long timeout, PrintStream log) {
+    long needed = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+    String token = tokenProvider.getToken(connectionContext).block();
+    Long expiry = TokenProviderCache.expiryOf(token);
+    if (expiry != null && expiry < needed) {
+      tokenProvider.invalidate(connectionContext);
+      token = tokenProvider.getToken(connectionContext).block();
+      expiry = TokenProviderCache.expiryOf(token);
+      if (expiry != null && expiry < needed) {
+        log.println("WARNING: The access token sent to the build agent expires in "
+                + TimeUnit.MILLISECONDS.toSeconds(expiry - System.currentTimeMillis())
+                + " seconds, a push which takes longer fails.");
+      }
+    }
+    return token;
+  }
+
+  /**
+   * Hands out the access token obtained on the controller.
+   */
+  private static final class AccessToken implements TokenProvider {
+
+    private final String token;
+
+    private AccessToken(String token) {
+      this.token = token;
+    }
+
+    @Override
+    public Mono<String> getToken(ConnectionContext connectionContext) {
+      return Mono.just(token);
+    }
+
+    @Override
+    public void invalidate(ConnectionContext connectionContext) {
+      // there is no password on the agent to get another token with
+    }
+  }
+
+  /**
+   * The outcome of a push from the build agent.
+   */
+  static final class Outcome implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final boolean success;
+
+    /**
+     * The fingerprints updated on the build agent.
+     */
+    final FingerprintCache fingerprints;
+
+    Outcome(boolean success, FingerprintCache fingerprints) {
+      this.success = success;
+      this.fingerprints = fingerprints;
+    }
+  }
+}
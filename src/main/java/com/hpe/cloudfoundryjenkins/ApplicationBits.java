@@ -0,0 +1,481 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FileVisitor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * The files of an application, written as the zip archive uploaded to Cloud
+ * Foundry. An application which already is a single archive (WAR, JAR or
+ * ZIP) is written as it is, without compressing it again.
+ */
+interface ApplicationBits {
+
+  /**
+   * Writes the zip archive of the application. The stream is left open.
+   *
+   * @param out the stream to write to
+   */
+  void writeTo(OutputStream out) throws IOException, InterruptedException;
+
+  /**
+   * Gets the archive as a file on this machine, writing it once if needed, so
+   * it can be sent without going through the heap.
+   *
+   * @param temporaryDirectory a directory to write the archive to, deleted
+   * after the upload
+   * @return the archive, or {@code null} if the bits are not on this machine
+   * and are streamed instead
+   */
+  default File toArchiveFile(File temporaryDirectory) throws IOException, InterruptedException {
+    return null;
+  }
+
+  /**
+   * Deletes the archive written by {@link #toArchiveFile} if it is a staged
+   * copy, and gives back the space it took. Called once the archive was
+   * uploaded, or failed to be.
+   */
+  default void discardArchive() throws IOException, InterruptedException {
+  }
+
+  /**
+   * Fingerprints the files of the application, for resource matching.
+   *
+   * @param cached the fingerprints of the previous push, by relative path
+   * @return the fingerprints of the files, or {@code null} if the bits cannot
+   * be resource matched
+   */
+  default FingerprintCache.Scan fingerprint(Map<String, FingerprintCache.Fingerprint> cached) throws IOException, InterruptedException {
+    return null;
+  }
+
+  /**
+   * Digests the bits, when they cannot be fingerprinted file by file.
+   *
+   * @return the digest of the bits, or {@code null} if unknown
+   */
+  default String digest() throws IOException, InterruptedException {
+    return null;
+  }
+
+  /**
+   * @param files relative paths of files the Cloud Controller already has
+   * @return the bits without these files
+   */
+  default ApplicationBits without(Set<String> files) {
+    return this;
+  }
+
+  /**
+   * @param level the compression level of the zip archive, from
+   * {@link ParallelZip#STORE} to 9, or {@link ParallelZip#DEFAULT_LEVEL}
+   * @return the bits, zipped with this level
+   */
+  default ApplicationBits withCompressionLevel(int level) {
+    return this;
+  }
+
+  /**
+   * @param excludes patterns of files to leave out of an application
+   * directory, besides those of its {@code .cfignore}
+   * @return the bits, without these files
+   * @see CfIgnore
+   */
+  default ApplicationBits withExcludes(List<String> excludes) {
+    return this;
+  }
+
+  /**
+   * The files of an application, zipped where they are (e.g. on the build
+   * agent) and streamed from there.
+   *
+   * @param path the application directory or file
+   * @return the application bits
+   */
+  static ApplicationBits of(FilePath path) {
+    return new PathBits(path, Collections.emptySet(), ParallelZip.DEFAULT_LEVEL, Collections.emptyList());
+  }
+
+  /**
+   * The files of an application on the build agent, copied to this machine
+   * before they are uploaded. The copy waits for resource matching, so only
+   * the files the Cloud Controller does not have yet are transferred.
+   *
+   * @param source the application directory or file on the build agent
+   * @param staging the directory to copy the files to
+   * @return the application bits
+   */
+  static ApplicationBits staged(FilePath source, FilePath staging) {
+    return staged(source, staging, 1, TaskListener.NULL.getLogger());
+  }
+
+  /**
+   * The files of an application on the build agent, copied to this machine
+   * over several streams at once.
+   *
+   * @param source the application directory or file on the build agent
+   * @param staging the directory to copy the files to
+   * @param streams the maximum number of streams to copy over
+   * @param log the log to report the throughput of the copy to
+   * @return the application bits
+   * @see ChunkedTransfer
+   */
+  static ApplicationBits staged(FilePath source, FilePath staging, int streams, PrintStream log) {
+    return new StagedBits(source, staging, Collections.emptySet(), ParallelZip.DEFAULT_LEVEL, Collections.emptyList(), streams, log);
+  }
+
+  /**
+   * @param name a file name
+   * @return {@code true} if the file is a zip archive which Cloud Foundry
+   * accepts as application bits
+   */
+  static boolean isArchive(String name) {
+    String lowerCaseName = name.toLowerCase(Locale.ROOT);
+    return lowerCaseName.endsWith(".zip") || lowerCaseName.endsWith(".jar") || lowerCaseName.endsWith(".war");
+  }
+
+  /**
+   * The files of an application directory or archive.
+   */
+  final class PathBits implements ApplicationBits {
+
+    private final FilePath path;
+    private final Set<String> excluded;
+    private final int level;
+    private final List<String> excludes;
+
+    PathBits(FilePath path, Set<String> excluded, int level, List<String> excludes) {
+      this.path = path;
+      this.excluded = excluded;
+      this.level = level;
+      this.excludes = excludes;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, InterruptedException {
+      if (isArchive()) {
+        // already an archive, upload it as it is
+        path.copyTo(new CloseShieldOutputStream(out));
+      } else {
+        path.act(new Zip(new RemoteOutputStream(new CloseShieldOutputStream(out)), excluded, level, excludes));
+      }
+    }
+
+    @Override
+    public File toArchiveFile(File temporaryDirectory) throws IOException, InterruptedException {
+      if (path.isRemote()) {
+        return null;
+      }
+      if (isArchive()) {
+        return new File(path.getRemote());
+      }
+      File archive = new File(temporaryDirectory, "application.zip");
+      try (OutputStream out = new FileOutputStream(archive)) {
+        path.act(new Zip(out, excluded, level, excludes));
+      }
+      return archive;
+    }
+
+    @Override
+    public FingerprintCache.Scan fingerprint(Map<String, FingerprintCache.Fingerprint> cached) throws IOException, InterruptedException {
+      return path.isDirectory() ? path.act(new FingerprintCache.FingerprintFiles(cached, excludes)) : null;
+    }
+
+    @Override
+    public String digest() throws IOException, InterruptedException {
+      return path.isDirectory() ? null : path.digest();
+    }
+
+    @Override
+    public ApplicationBits without(Set<String> files) {
+      return new PathBits(path, new HashSet<>(files), level, excludes);
+    }
+
+    @Override
+    public ApplicationBits withCompressionLevel(int level) {
+      return new PathBits(path, excluded, level, excludes);
+    }
+
+    @Override
+    public ApplicationBits withExcludes(List<String> excludes) {
+      return new PathBits(path, excluded, level, new ArrayList<>(excludes));
+    }
+
+    private boolean isArchive() throws IOException, InterruptedException {
+      return ApplicationBits.isArchive(path.getName()) && !path.isDirectory();
+    }
+  }
+
+  /**
+   * The files of an application on the build agent, staged on this machine.
+   */
+  final class StagedBits implements ApplicationBits {
+
+    private final FilePath source;
+    private final FilePath staging;
+    private final Set<String> excluded;
+    private final int level;
+    private final List<String> excludes;
+    private final int streams;
+    private final PrintStream log;
+    private StagingArea.Reservation reservation;
+
+    StagedBits(FilePath source, FilePath staging, Set<String> excluded, int level, List<String> excludes, int streams, PrintStream log) {
+      this.source = source;
+      this.staging = staging;
+      this.excluded = excluded;
+      this.level = level;
+      this.excludes = excludes;
+      this.streams = streams;
+      this.log = log;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, InterruptedException {
+      try {
+        ApplicationBits.of(new FilePath(toArchiveFile(null))).writeTo(out);
+      } finally {
+        discardArchive();
+      }
+    }
+
+    /**
+     * Transfers the archive to the staging directory. The transferred zip
+     * already is the archive to upload, so it is not unzipped.
+     * <p>
+     * Over a single stream, the zip is streamed as it is written. Over
+     * several streams, it is written to a temporary file on the agent first,
+     * which is then copied in chunks.
+     * <p>
+     * The space the archive may take is reserved in the {@link StagingArea}
+     * first, which may wait for other pushes to give theirs back.
+     */
+    @Override
+    public synchronized File toArchiveFile(File temporaryDirectory) throws IOException, InterruptedException {
+      long estimate = source.isDirectory() ? source.act(new ZipSize(excluded, excludes)) : source.length();
+      reservation = StagingArea.get().reserve(estimate, log);
+      staging.mkdirs();
+      long start = System.nanoTime();
+      File archive;
+      int used = 1;
+      if (ApplicationBits.isArchive(source.getName()) && !source.isDirectory()) {
+        archive = new File(staging.getRemote(), source.getName());
+        used = ChunkedTransfer.copy(source, archive, streams);
+      } else if (streams > 1) {
+        archive = new File(staging.getRemote(), "application.zip");
+        FilePath zipFile = new FilePath(source.getChannel(), source.act(new ZipToTemporaryFile(excluded, level, excludes)));
+        try {
+          used = ChunkedTransfer.copy(zipFile, archive, streams);
+        } finally {
+          zipFile.delete();
+        }
+      } else {
+        FilePath zipFile = staging.child("application.zip");
+        try (OutputStream zip = zipFile.write()) {
+          source.act(new Zip(new RemoteOutputStream(new CloseShieldOutputStream(zip)), excluded, level, excludes));
+        }
+        archive = new File(zipFile.getRemote());
+      }
+      double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+      log.println(String.format(Locale.ROOT, "Transferred %s from the build agent: %d bytes in %.1fs (%.1f MB/s) over %d stream%s",
+              source.getName(), archive.length(), seconds, archive.length() / seconds / (1024 * 1024), used, used == 1 ? "" : "s"));
+      reservation.shrinkTo(archive.length());
+      return archive;
+    }
+
+    @Override
+    public synchronized void discardArchive() throws IOException, InterruptedException {
+      try {
+        staging.deleteRecursive();
+      } finally {
+        if (reservation != null) {
+          reservation.close();
+          reservation = null;
+        }
+      }
+    }
+
+    @Override
+    public FingerprintCache.Scan fingerprint(Map<String, FingerprintCache.Fingerprint> cached) throws IOException, InterruptedException {
+      return source.isDirectory() ? source.act(new FingerprintCache.FingerprintFiles(cached, excludes)) : null;
+    }
+
+    @Override
+    public String digest() throws IOException, InterruptedException {
+      return source.isDirectory() ? null : source.digest();
+    }
+
+    @Override
+    public ApplicationBits without(Set<String> files) {
+      return new StagedBits(source, staging, new HashSet<>(files), level, excludes, streams, log);
+    }
+
+    @Override
+    public ApplicationBits withCompressionLevel(int level) {
+      return new StagedBits(source, staging, excluded, level, excludes, streams, log);
+    }
+
+    @Override
+    public ApplicationBits withExcludes(List<String> excludes) {
+      return new StagedBits(source, staging, excluded, level, new ArrayList<>(excludes), streams, log);
+    }
+  }
+
+  /**
+   * Zips an application directory into a stream, compressing several files at
+   * a time. Entries are relative to the directory, so the archive has no
+   * top-level directory. The files excluded by the {@code .cfignore} of the
+   * directory are left out.
+   */
+  final class Zip extends MasterToSlaveFileCallable<Integer> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OutputStream out;
+    private final Set<String> excluded;
+    private final int level;
+    private final List<String> excludes;
+
+    /**
+     * @param out the stream to write to
+     * @param excluded relative paths of files to leave out
+     * @param level the compression level
+     * @param excludes patterns of files to leave out, besides those of the
+     * {@code .cfignore}
+     */
+    Zip(OutputStream out, Set<String> excluded, int level, List<String> excludes) {
+      this.out = out;
+      this.excluded = excluded;
+      this.level = level;
+      this.excludes = excludes;
+    }
+
+    @Override
+    public Integer invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+      try (ParallelZip zip = new ParallelZip(out, level)) {
+        if (f.isDirectory()) {
+          CfIgnore.load(f, excludes).scan(f, new Without(zip, excluded));
+        } else {
+          zip.visit(f, f.getName());
+        }
+        return (int) zip.countEntries();
+      }
+    }
+  }
+
+  /**
+   * Zips an application directory into a temporary file, where the directory
+   * is.
+   */
+  final class ZipToTemporaryFile extends MasterToSlaveFileCallable<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Set<String> excluded;
+    private final int level;
+    private final List<String> excludes;
+
+    /**
+     * @param excluded relative paths of files to leave out
+     * @param level the compression level
+     * @param excludes patterns of files to leave out, besides those of the
+     * {@code .cfignore}
+     */
+    ZipToTemporaryFile(Set<String> excluded, int level, List<String> excludes) {
+      this.excluded = excluded;
+      this.level = level;
+      this.excludes = excludes;
+    }
+
+    /**
+     * @return the path of the zip file, to be deleted by the caller
+     */
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+      File zipFile = File.createTempFile("cfBits", ".zip");
+      try (OutputStream out = new FileOutputStream(zipFile)) {
+        new Zip(out, excluded, level, excludes).invoke(f, channel);
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        zipFile.delete();
+        throw e;
+      }
+      return zipFile.getAbsolutePath();
+    }
+  }
+
+  /**
+   * Estimates, where an application directory is, how large its zip archive
+   * may get: the size of its files, plus the zip headers of every entry.
+   */
+  final class ZipSize extends MasterToSlaveFileCallable<Long> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Set<String> excluded;
+    private final List<String> excludes;
+
+    /**
+     * @param excluded relative paths of files to leave out
+     * @param excludes patterns of files to leave out, besides those of the
+     * {@code .cfignore}
+     */
+    ZipSize(Set<String> excluded, List<String> excludes) {
+      this.excluded = excluded;
+      this.excludes = excludes;
+    }
+
+    @Override
+    public Long invoke(File f, VirtualChannel channel) throws IOException {
+      long[] size = {22};
+      CfIgnore.load(f, excludes).scan(f, new Without(new FileVisitor() {
+        @Override
+        public void visit(File file, String relativePath) {
+          // local header, central directory header and the name in both
+          size[0] += 76 + 2 * relativePath.length() + (file.isFile() ? file.length() : 0);
+        }
+      }, excluded));
+      return size[0];
+    }
+  }
+
+  /**
+   * Leaves out files, e.g. those the Cloud Controller already has.
+   */
+  final class Without extends FileVisitor {
+
+    private final FileVisitor delegate;
+    private final Set<String> excluded;
+
+    Without(FileVisitor delegate, Set<String> excluded) {
+      this.delegate = delegate;
+      this.excluded = excluded;
+    }
+
+    @Override
+    public void visit(File f, String relativePath) throws IOException {
+      if (!excluded.contains(relativePath)) {
+        delegate.visit(f, relativePath);
+      }
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.LogsRequest;
+import org.cloudfoundry.operations.applications.PushApplicationManifestRequest;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Pushes the applications of a manifest, optionally several at a time.
+ * <p>
+ * Each application gets the whole timeout for its own push and staging logs.
+ * When several applications are pushed at once, the log lines of each
+ * application are buffered and written to the build log in one block once
+ * that application is done.
+ */
+class ApplicationPusher {
+
+  /**
+   * Failure policy which stops starting new pushes once one push failed.
+   */
+  static final String FAIL_FAST = "failFast";
+
+  /**
+   * Failure policy which pushes every application, whatever happens to the
+   * others.
+   */
+  static final String COLLECT_ALL = "collectAll";
+
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final TaskListener listener;
+  private final long timeout;
+  private final int parallelism;
+  private final boolean failFast;
+  private final DirectPush directPush;
+  private final V3Push v3Push;
+  private final Function<ApplicationManifest, ApplicationBits> bitsOf;
+  private final AtomicBoolean failed = new AtomicBoolean();
+
+  /**
+   * @param cloudFoundryOperations the operations to use
+   * @param listener the build listener
+   * @param timeout the timeout of each application's push, in seconds
+   * @param parallelism the maximum number of applications to push concurrently
+   * @param failurePolicy {@link #FAIL_FAST} or {@link #COLLECT_ALL}
+   * @param directPush pushes the applications whose bits are not read from
+   * their manifest path
+   * @param v3Push pushes the applications through the v3 API, or
+   * {@code null} to push through the v2 API. Applications whose droplets
+   * it promotes need no bits.
+   * @param bitsOf the bits of an application, or {@code null} to let
+   * {@code pushManifest} read them from the manifest path
+   */
+  ApplicationPusher(CloudFoundryOperations cloudFoundryOperations, TaskListener listener, long timeout, int parallelism, String failurePolicy,
+          DirectPush directPush, V3Push v3Push, Function<ApplicationManifest, ApplicationBits> bitsOf) {
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.directPush = directPush;
+    this.v3Push = v3Push;
+    this.bitsOf = bitsOf;
+    this.listener = listener;
+    this.timeout = timeout;
+    this.parallelism = Math.max(1, parallelism);
+    this.failFast = !COLLECT_ALL.equals(failurePolicy);
+  }
+
+  /**
+   * Pushes the given applications. Each push first waits for the services the
+   * application binds, and is not attempted if one of them could not be
+   * created.
+   *
+   * @param manifests the applications to push
+   * @param provisioning the services being created
+   * @return the result of each push, in manifest order
+   */
+  List<Result> push(List<ApplicationManifest> manifests, ServiceProvisioner.Provisioning provisioning) {
+    List<Result> results;
+    if (parallelism == 1 || manifests.size() <= 1) {
+      results = new ArrayList<>(manifests.size());
+      for (int i = 0; i < manifests.size(); i++) {
+        results.add(push(i, manifests.get(i), provisioning, listener.getLogger()));
+      }
+    } else {
+      List<Integer> indexes = new ArrayList<>(manifests.size());
+      for (int i = 0; i < manifests.size(); i++) {
+        indexes.add(i);
+      }
+      results = Flux.fromIterable(indexes)
+              .flatMap(i -> Mono.fromCallable(() -> pushAndLog(i, manifests.get(i), provisioning)).subscribeOn(Schedulers.elastic()), parallelism)
+              .collectList()
+              .block();
+      results.sort(Comparator.comparingInt((Result result) -> result.index));
+    }
+    return results;
+  }
+
+  /**
+   * Prints the result of each push, if there was more than one application.
+   *
+   * @param results the results
+   * @return {@code true} if all applications were pushed successfully
+   */
+  boolean report(List<Result> results) {
+    List<Result> failures = results.stream().filter(result -> !result.status.isSuccess()).collect(Collectors.toList());
+    if (results.size() > 1) {
+      listener.getLogger().println("Pushed " + (results.size() - failures.size()) + " of " + results.size() + " applications:");
+      for (Result result : results) {
+        listener.getLogger().println("  " + result);
+      }
+    }
+    return failures.isEmpty();
+  }
+
+  private Result pushAndLog(int index, ApplicationManifest manifest, ServiceProvisioner.Provisioning provisioning) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    PrintStream log = newPrintStream(buffer);
+    Result result = push(index, manifest, provisioning, log);
+    log.flush();
+    synchronized (listener) {
+      listener.getLogger().print(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+    }
+    return result;
+  }
+
+  private Result push(int index, ApplicationManifest manifest, ServiceProvisioner.Provisioning provisioning, PrintStream log) {
+    String name = manifest.getName();
+    if (failFast && failed.get()) {
+      return new Result(index, name, Status.SKIPPED, 0, "an earlier push failed");
+    }
+    long start = System.nanoTime();
+    List<ServiceProvisioner.Outcome> boundServices = provisioning.await(manifest.getServices() == null ? Collections.emptyList() : manifest.getServices());
+    List<String> failedServices = boundServices.stream().filter(outcome -> outcome.error != null).map(outcome -> outcome.serviceName).collect(Collectors.toList());
+    if (!failedServices.isEmpty()) {
+      log.println("ERROR: Not pushing " + name + " because these services could not be created: " + String.join(", ", failedServices));
+      failed.set(true);
+      return new Result(index, name, Status.FAILED, 0, "services could not be created: " + String.join(", ", failedServices));
+    }
+    try {
+      ApplicationBits bits = manifest.getDocker() == null && (v3Push == null || !v3Push.isPromoting()) ? bitsOf.apply(manifest) : null;
+      if (v3Push != null && (bits != null || manifest.getDocker() != null || v3Push.isPromoting())) {
+        DirectPush.Outcome outcome = withinTimeout(() -> v3Push.push(manifest, bits, log));
+        if (outcome.status != Status.PUSHED) {
+          return new Result(index, name, outcome.status, elapsedSince(start),
+                  outcome.operations.isEmpty() ? null : String.join(", ", outcome.operations));
+        }
+      } else if (bits == null) {
+        if (v3Push != null) {
+          log.println("WARNING: " + name + " is pushed through the v2 API, its path is neither a directory nor an archive");
+        }
+        if (directPush != null && directPush.isRolling()) {
+          log.println("WARNING: " + name + " is stopped and restarted, a rolling deployment needs its path to be a directory or an archive");
+        }
+        cloudFoundryOperations.applications().pushManifest(PushApplicationManifestRequest.builder().manifest(manifest).build())
+                .timeout(Duration.ofSeconds(timeout))
+                .block();
+      } else {
+        DirectPush.Outcome outcome = withinTimeout(() -> directPush.push(manifest, bits, log));
+        if (outcome.status != Status.PUSHED) {
+          return new Result(index, name, outcome.status, elapsedSince(start),
+                  outcome.operations.isEmpty() ? null : String.join(", ", outcome.operations));
+        }
+      }
+      printStagingLogs(name, log);
+      return new Result(index, name, Status.PUSHED, elapsedSince(start), null);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failed.set(true);
+      return new Result(index, name, Status.FAILED, elapsedSince(start), "interrupted");
+    } catch (RuntimeException | IOException | TimeoutException e) {
+      failed.set(true);
+      long elapsed = elapsedSince(start);
+      if (isTimeout(e)) {
+        log.println("ERROR: Pushing " + name + " did not complete within " + timeout + " seconds.");
+        return new Result(index, name, Status.FAILED, elapsed, "timed out");
+      }
+      e.printStackTrace(log);
+      return new Result(index, name, Status.FAILED, elapsed, e.getMessage());
+    }
+  }
+
+  private void printStagingLogs(String appName, PrintStream log) {
+    cloudFoundryOperations.applications().logs(LogsRequest.builder().name(appName).recent(Boolean.TRUE).build())
+            .timeout(Duration.ofSeconds(timeout))
+            .doOnNext(applicationLog -> log.println(applicationLog.getMessage()))
+            .blockLast();
+  }
+
+  /**
+   * Runs a push of the direct upload or v3 engine within the timeout of the
+   * application, like the push of {@code pushManifest}.
+   */
+  private DirectPush.Outcome withinTimeout(Callable<DirectPush.Outcome> push) throws IOException, InterruptedException, TimeoutException {
+    try {
+      return Mono.fromCallable(push)
+              .subscribeOn(Schedulers.elastic())
+              .timeout(Duration.ofSeconds(timeout))
+              .block();
+    } catch (RuntimeException e) {
+      Throwable cause = Exceptions.unwrap(e);
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      if (cause instanceof TimeoutException) {
+        throw (TimeoutException) cause;
+      }
+      throw e;
+    }
+  }
+
+  private static boolean isTimeout(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof TimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long elapsedSince(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  private static PrintStream newPrintStream(ByteArrayOutputStream buffer) {
+    try {
+      return new PrintStream(buffer, true, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * What happened to one application.
+   */
+  enum Status {
+    PUSHED, UPDATED, UNCHANGED, FAILED, SKIPPED;
+
+    boolean isSuccess() {
+      return this == PUSHED || this == UPDATED || this == UNCHANGED;
+    }
+  }
+
+  /**
+   * The result of pushing one application.
+   */
+  static final class Result {
+
+    final int index;
+    final String appName;
+    final Status status;
+    final long elapsedMillis;
+    final String message;
+
+    Result(int index, String appName, Status status, long elapsedMillis, String message) {
+      this.index = index;
+      this.appName = appName;
+      this.status = status;
+      this.elapsedMillis = elapsedMillis;
+      this.message = message;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(appName).append(": ").append(status);
+      if (status != Status.SKIPPED) {
+        sb.append(String.format(Locale.ROOT, " after %.1fs", elapsedMillis / 1000.0));
+      }
+      if (message != null) {
+        sb.append(" (").append(message).append(')');
+      }
+      return sb.toString();
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+
+/**
+ * Uploads application bits to the Cloud Controller.
+ * <p>
+ * An archive on this machine, or one built from a local directory, is sent
+ * from its file with a fixed length, copied into the request body through a
+ * small buffer rather than read into the heap. Bits which are not on
+ * this machine are streamed into the request body as they are zipped, so
+ * they never need to exist as a file here. Files the Cloud Controller
+ * already has, as told by its resource matching, are left out of the archive.
+ */
+class BitsUploader {
+
+  private static final ObjectMapper MAPPER = CloudController.MAPPER;
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+  private final CloudController controller;
+
+  /**
+   * @param endpoint the endpoint to upload to
+   * @param connectionContext the connection context, to get tokens for
+   * @param tokenProvider the token provider
+   * @param timeout the connect and read timeout of each request
+   */
+  BitsUploader(ConnectionContextRegistry.Key endpoint, ConnectionContext connectionContext, TokenProvider tokenProvider, Duration timeout) {
+    this(new CloudController(endpoint, connectionContext, tokenProvider, timeout));
+  }
+
+  /**
+   * @param controller the Cloud Controller to upload to
+   */
+  BitsUploader(CloudController controller) {
+    this.controller = controller;
+  }
+
+  /**
+   * @return the Cloud Controller the bits are uploaded to
+   */
+  CloudController getController() {
+    return controller;
+  }
+
+  /**
+   * Asks the Cloud Controller which files it already has.
+   *
+   * @param files the fingerprints of the application files, by relative path
+   * @return the fingerprints of the files the Cloud Controller already has,
+   * by relative path
+   */
+  Map<String, FingerprintCache.Fingerprint> match(Map<String, FingerprintCache.Fingerprint> files) throws IOException {
+    Map<String, FingerprintCache.Fingerprint> matched = new HashMap<>();
+    if (files.isEmpty()) {
+      return matched;
+    }
+    ArrayNode resources = MAPPER.createArrayNode();
+    Map<String, List<String>> pathsBySha1 = new HashMap<>();
+    for (Map.Entry<String, FingerprintCache.Fingerprint> file : files.entrySet()) {
+      List<String> paths = pathsBySha1.computeIfAbsent(file.getValue().sha1, sha1 -> new ArrayList<>());
+      if (paths.isEmpty()) {
+        resources.addObject().put("sha1", file.getValue().sha1).put("size", file.getValue().size);
+      }
+      paths.add(file.getKey());
+    }
+    HttpURLConnection connection = controller.open("/v2/resource_match", "PUT");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json");
+    try (OutputStream body = connection.getOutputStream()) {
+      MAPPER.writeValue(body, resources);
+    }
+    for (JsonNode resource : CloudController.read(connection)) {
+      for (String path : pathsBySha1.getOrDefault(resource.path("sha1").asText(), Collections.emptyList())) {
+        matched.put(path, files.get(path));
+      }
+    }
+    return matched;
+  }
+
+  /**
+   * Uploads the bits of an application and waits until the Cloud Controller
+   * has processed them.
+   *
+   * @param applicationId the id of the application
+   * @param bits the application bits
+   * @param matched the files the Cloud Controller already has, which are
+   * left out of the bits, by relative path
+   * @param timeout how long to wait for the Cloud Controller
+   * @param log the log to report to
+   * @return the number of bytes uploaded
+   */
+  long upload(String applicationId, ApplicationBits bits, Map<String, FingerprintCache.Fingerprint> matched, Duration timeout, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    ArrayNode resources = MAPPER.createArrayNode();
+    for (Map.Entry<String, FingerprintCache.Fingerprint> file : matched.entrySet()) {
+      resources.addObject()
+              .put("fn", file.getKey())
+              .put("sha1", file.getValue().sha1)
+              .put("size", file.getValue().size)
+              .put("mode", file.getValue().mode);
+    }
+    long[] uploaded = new long[1];
+    JsonNode job = upload("/v2/apps/" + applicationId + "/bits?async=true", "PUT", "application", resources, bits, uploaded, log);
+    waitForJob(job, timeout);
+    return uploaded[0];
+  }
+
+  /**
+   * Uploads the bits of a v3 package and waits until the Cloud Controller
+   * has processed them.
+   *
+   * @param packageId the id of the package
+   * @param bits the application bits
+   * @param matched the files the Cloud Controller already has, which are
+   * left out of the bits, by relative path
+   * @param timeout how long to wait for the Cloud Controller
+   * @param log the log to report to
+   * @return the number of bytes uploaded
+   */
+  long uploadPackage(String packageId, ApplicationBits bits, Map<String, FingerprintCache.Fingerprint> matched, Duration timeout, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    ArrayNode resources = MAPPER.createArrayNode();
+    for (Map.Entry<String, FingerprintCache.Fingerprint> file : matched.entrySet()) {
+      ObjectNode resource = resources.addObject();
+      resource.put("path", file.getKey())
+              .put("size_in_bytes", file.getValue().size)
+              .put("mode", file.getValue().mode);
+      resource.putObject("checksum").put("value", file.getValue().sha1);
+    }
+    long[] uploaded = new long[1];
+    JsonNode pkg = upload("/v3/packages/" + packageId + "/upload", "POST", "bits", resources, bits, uploaded, log);
+    long deadline = System.currentTimeMillis() + timeout.toMillis();
+    while (true) {
+      String state = pkg.path("state").asText();
+      if ("READY".equals(state)) {
+        return uploaded[0];
+      }
+      if ("FAILED".equals(state) || "EXPIRED".equals(state)) {
+        throw new IOException("Upload failed: package " + state.toLowerCase(Locale.ROOT));
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        throw new TimeoutException("Package still " + state.toLowerCase(Locale.ROOT) + " after " + timeout.getSeconds() + " seconds");
+      }
+      Thread.sleep(POLL_INTERVAL);
+      pkg = controller.get("/v3/packages/" + packageId);
+    }
+  }
+
+  /**
+   * Sends the bits as a multipart request.
+   *
+   * @param uploaded receives the number of bytes uploaded
+   * @return the response
+   */
+  private JsonNode upload(String path, String method, String field, ArrayNode resources, ApplicationBits bits, long[] uploaded, PrintStream log) throws IOException, InterruptedException {
+    String boundary = UUID.randomUUID().toString();
+    byte[] head = ("--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"resources\"\r\n\r\n"
+            + MAPPER.writeValueAsString(resources) + "\r\n"
+            + "--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"" + field + "\"; filename=\"application.zip\"\r\n"
+            + "Content-Type: application/zip\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    Path spool = Files.createTempDirectory("cfBits");
+    try {
+      File archive = bits.toArchiveFile(spool.toFile());
+      HttpURLConnection connection = controller.open(path, method);
+      connection.setDoOutput(true);
+      if (archive != null) {
+        connection.setFixedLengthStreamingMode(head.length + archive.length() + tail.length);
+      } else {
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+      }
+      connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+      long start = System.nanoTime();
+      try (OutputStream body = connection.getOutputStream()) {
+        body.write(head);
+        if (archive != null) {
+          uploaded[0] = transfer(archive, body);
+        } else {
+          CountingOutputStream counter = new CountingOutputStream(body);
+          bits.writeTo(counter);
+          counter.flush();
+          uploaded[0] = counter.getByteCount();
+        }
+        body.write(tail);
+      }
+      JsonNode response = CloudController.read(connection);
+      double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+      log.println(String.format(Locale.ROOT, "Uploaded %d bytes in %.1fs (%.1f MB/s)%s",
+              uploaded[0], seconds, uploaded[0] / seconds / (1024 * 1024), archive == null ? "" : " from " + archive.getName()));
+      return response;
+    } finally {
+      try {
+        bits.discardArchive();
+      } finally {
+        new FilePath(spool.toFile()).deleteRecursive();
+      }
+    }
+  }
+
+  /**
+   * Sends a file with {@link FileChannel#transferTo}, so it is not read into
+   * the heap in one piece. {@link HttpURLConnection} only exposes a stream,
+   * so the bytes still go through a buffer on their way to the socket.
+   *
+   * @return the number of bytes sent
+   */
+  private static long transfer(File file, OutputStream out) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      WritableByteChannel target = Channels.newChannel(out);
+      long size = channel.size();
+      long position = 0;
+      while (position < size) {
+        position += channel.transferTo(position, size - position, target);
+      }
+      return size;
+    }
+  }
+
+  private void waitForJob(JsonNode job, Duration timeout) throws IOException, InterruptedException, TimeoutException {
+    long deadline = System.currentTimeMillis() + timeout.toMillis();
+    while (true) {
+      String status = job.path("entity").path("status").asText();
+      if ("finished".equals(status)) {
+        return;
+      }
+      if ("failed".equals(status)) {
+        throw new IOException("Upload failed: " + job.path("entity").path("error_details").path("description").asText(status));
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        throw new TimeoutException("Upload still " + status + " after " + timeout.getSeconds() + " seconds");
+      }
+      Thread.sleep(POLL_INTERVAL);
+      job = controller.get("/v2/jobs/" + job.path("metadata").path("guid").asText());
+    }
+  }
+}
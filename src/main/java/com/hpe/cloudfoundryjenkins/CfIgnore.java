@@ -0,0 +1,256 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.util.FileVisitor;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The files left out of an application, as the cf CLI leaves them out: the
+ * patterns of the application's {@code .cfignore}, after the CLI's defaults,
+ * followed by the patterns given on the step.
+ * <p>
+ * Patterns follow the {@code .gitignore} syntax: {@code #} starts a comment,
+ * {@code !} re-includes what an earlier pattern excluded, a trailing
+ * {@code /} only matches directories, and a pattern with a {@code /}
+ * elsewhere is relative to the application directory, while one without
+ * matches a name at any depth. The last matching pattern wins.
+ */
+final class CfIgnore {
+
+  /**
+   * Name of the ignore file, in the application directory.
+   */
+  static final String FILE_NAME = ".cfignore";
+
+  /**
+   * What the cf CLI always leaves out.
+   */
+  static final List<String> DEFAULTS = Collections.unmodifiableList(Arrays.asList(
+          ".cfignore", "/manifest.yml", ".gitignore", ".git", ".hg", ".svn", "_darcs", ".DS_Store"));
+
+  private final List<Rule> rules = new ArrayList<>();
+
+  /**
+   * @param patterns the patterns, in order
+   */
+  CfIgnore(List<String> patterns) {
+    for (String pattern : patterns) {
+      Rule rule = Rule.parse(pattern);
+      if (rule != null) {
+        rules.add(rule);
+      }
+    }
+  }
+
+  /**
+   * Loads the rules of an application directory, where the directory is.
+   *
+   * @param directory the application directory
+   * @param excludes further patterns, e.g. from the step
+   * @return the rules
+   */
+  static CfIgnore load(File directory, List<String> excludes) throws IOException {
+    List<String> patterns = new ArrayList<>(DEFAULTS);
+    File cfIgnore = new File(directory, FILE_NAME);
+    if (cfIgnore.isFile()) {
+      patterns.addAll(Files.readAllLines(cfIgnore.toPath(), StandardCharsets.UTF_8));
+    }
+    patterns.addAll(excludes);
+    return new CfIgnore(patterns);
+  }
+
+  /**
+   * Splits a list of patterns given on the step.
+   *
+   * @param excludes patterns separated by commas or new lines, may be
+   * {@code null}
+   * @return the patterns
+   */
+  static List<String> split(String excludes) {
+    List<String> patterns = new ArrayList<>();
+    if (excludes != null) {
+      for (String pattern : excludes.split("[,\\r\\n]")) {
+        if (!pattern.trim().isEmpty()) {
+          patterns.add(pattern.trim());
+        }
+      }
+    }
+    return patterns;
+  }
+
+  /**
+   * @param path a path relative to the application directory, separated
+   * with {@code /}
+   * @param directory {@code true} if the path is a directory
+   * @return {@code true} if the path is left out. Whatever is below an
+   * excluded directory is excluded as well.
+   */
+  boolean isExcluded(String path, boolean directory) {
+    for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+      if (matches(path.substring(0, slash), true)) {
+        return true;
+      }
+    }
+    return matches(path, directory);
+  }
+
+  private boolean matches(String path, boolean directory) {
+    boolean excluded = false;
+    for (Rule rule : rules) {
+      if (rule.negated == excluded && rule.matches(path, directory)) {
+        excluded = !rule.negated;
+      }
+    }
+    return excluded;
+  }
+
+  /**
+   * Visits the files and directories of an application directory which are
+   * not excluded, with paths relative to the directory. Excluded directories
+   * are not descended into.
+   *
+   * @param directory the application directory
+   * @param visitor the visitor
+   * @return what was left out
+   */
+  Exclusions scan(File directory, FileVisitor visitor) throws IOException {
+    Exclusions exclusions = new Exclusions();
+    scan(directory, "", visitor, exclusions);
+    return exclusions;
+  }
+
+  private void scan(File directory, String prefix, FileVisitor visitor, Exclusions exclusions) throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      throw new IOException("Failed to list " + directory);
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      String path = prefix + child.getName();
+      boolean isDirectory = child.isDirectory();
+      if (matches(path, isDirectory)) {
+        if (isDirectory) {
+          exclusions.directories++;
+        } else {
+          exclusions.files++;
+          exclusions.bytes += child.length();
+        }
+      } else {
+        visitor.visit(child, path);
+        if (isDirectory) {
+          scan(child, path + '/', visitor, exclusions);
+        }
+      }
+    }
+  }
+
+  /**
+   * What a scan left out. Excluded directories are counted as such, without
+   * looking into them.
+   */
+  static final class Exclusions implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    int files;
+    long bytes;
+    int directories;
+
+    /**
+     * @return {@code true} if nothing was left out
+     */
+    boolean isEmpty() {
+      return files == 0 && directories == 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%d files (%d bytes) and %d directories", files, bytes, directories);
+    }
+  }
+
+  /**
+   * A pattern of an ignore file.
+   */
+  private static final class Rule {
+
+    private final Pattern pattern;
+    private final boolean negated;
+    private final boolean directoryOnly;
+    private final boolean anchored;
+
+    private Rule(Pattern pattern, boolean negated, boolean directoryOnly, boolean anchored) {
+      this.pattern = pattern;
+      this.negated = negated;
+      this.directoryOnly = directoryOnly;
+      this.anchored = anchored;
+    }
+
+    /**
+     * @return the rule, or {@code null} for blank lines and comments
+     */
+    static Rule parse(String line) {
+      String pattern = line.trim();
+      if (pattern.isEmpty() || pattern.startsWith("#")) {
+        return null;
+      }
+      boolean negated = pattern.startsWith("!");
+      if (negated) {
+        pattern = pattern.substring(1);
+      }
+      boolean directoryOnly = pattern.endsWith("/");
+      while (pattern.endsWith("/")) {
+        pattern = pattern.substring(0, pattern.length() - 1);
+      }
+      boolean anchored = pattern.contains("/");
+      while (pattern.startsWith("/")) {
+        pattern = pattern.substring(1);
+      }
+      if (pattern.isEmpty()) {
+        return null;
+      }
+      return new Rule(Pattern.compile(toRegex(pattern)), negated, directoryOnly, anchored);
+    }
+
+    boolean matches(String path, boolean directory) {
+      if (directoryOnly && !directory) {
+        return false;
+      }
+      String subject = anchored ? path : path.substring(path.lastIndexOf('/') + 1);
+      return pattern.matcher(subject).matches();
+    }
+
+    private static String toRegex(String glob) {
+      StringBuilder regex = new StringBuilder();
+      for (int i = 0; i < glob.length(); i++) {
+        char c = glob.charAt(i);
+        if (glob.startsWith("**/", i)) {
+          regex.append("(?:.*/)?");
+          i += 2;
+        } else if (glob.startsWith("**", i)) {
+          regex.append(".*");
+          i++;
+        } else if (c == '*') {
+          regex.append("[^/]*");
+        } else if (c == '?') {
+          regex.append("[^/]");
+        } else {
+          regex.append(Pattern.quote(String.valueOf(c)));
+        }
+      }
+      return regex.toString();
+    }
+  }
+}
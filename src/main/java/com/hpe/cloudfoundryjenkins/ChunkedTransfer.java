@@ -0,0 +1,163 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Copies a file from the build agent over several streams at once, each
+ * carrying one chunk of the file.
+ * <p>
+ * A single stream over the remoting channel is bounded by the channel's
+ * window and round trips, which leaves most of the bandwidth to a distant
+ * agent unused. Each chunk is written at its own offset of the target file,
+ * so chunks may arrive in any order.
+ */
+final class ChunkedTransfer {
+
+  /**
+   * Files are not split in chunks smaller than this.
+   */
+  static final long MIN_CHUNK_SIZE = 1024 * 1024;
+
+  private ChunkedTransfer() {
+  }
+
+  /**
+   * Copies a file.
+   *
+   * @param source the file to copy, e.g. on the build agent
+   * @param target the file to copy to, on this machine
+   * @param streams the maximum number of streams to copy over
+   * @return the number of streams used
+   */
+  static int copy(FilePath source, File target, int streams) throws IOException, InterruptedException {
+    long size = source.length();
+    int chunks = (int) Math.max(1, Math.min(streams, size / MIN_CHUNK_SIZE));
+    if (chunks == 1) {
+      try (OutputStream out = new FileOutputStream(target)) {
+        source.copyTo(out);
+      }
+      return 1;
+    }
+    try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+      file.setLength(size);
+    }
+    long chunkSize = (size + chunks - 1) / chunks;
+    ExecutorService executor = Executors.newFixedThreadPool(chunks, runnable -> {
+      Thread thread = new Thread(runnable, "Cloud Foundry transfer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<Void>> transfers = new ArrayList<>(chunks);
+      for (long offset = 0; offset < size; offset += chunkSize) {
+        long chunkOffset = offset;
+        long length = Math.min(chunkSize, size - offset);
+        transfers.add(executor.submit(() -> {
+          source.act(new ReadChunk(chunkOffset, length, new RemoteOutputStream(new ChunkOutputStream(target, chunkOffset))));
+          return null;
+        }));
+      }
+      for (Future<Void> transfer : transfers) {
+        transfer.get();
+      }
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    if (source.getChannel() != null) {
+      // make sure all the writes got delivered before the file is read
+      source.getChannel().syncLocalIO();
+    }
+    return chunks;
+  }
+
+  /**
+   * Writes a chunk of a file into a stream, where the file is.
+   */
+  private static final class ReadChunk extends MasterToSlaveFileCallable<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+    private final long length;
+    private final OutputStream out;
+
+    ReadChunk(long offset, long length, OutputStream out) {
+      this.offset = offset;
+      this.length = length;
+      this.out = out;
+    }
+
+    @Override
+    public Void invoke(File f, VirtualChannel channel) throws IOException {
+      try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ); OutputStream target = out) {
+        WritableByteChannel targetChannel = Channels.newChannel(target);
+        long position = offset;
+        while (position < offset + length) {
+          long transferred = in.transferTo(position, offset + length - position, targetChannel);
+          if (transferred <= 0) {
+            throw new IOException(f + " is shorter than expected");
+          }
+          position += transferred;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Writes into a file from an offset on, leaving the rest of the file as it
+   * is.
+   */
+  private static final class ChunkOutputStream extends OutputStream {
+
+    private final FileChannel channel;
+    private long position;
+
+    ChunkOutputStream(File file, long position) throws IOException {
+      this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+      this.position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import org.apache.commons.io.IOUtils;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+
+/**
+ * Plain HTTP requests to the Cloud Controller, for what the client library
+ * does not cover: streaming uploads and the newer v3 endpoints.
+ * <p>
+ * Requests go through the proxy of the endpoint and skip SSL validation when
+ * the endpoint does, as the connection context of the endpoint does. Plain
+ * HTTP requests send the proxy credentials with each request. HTTPS requests
+ * tunnel through the proxy, which {@link HttpURLConnection} only
+ * authenticates to with the default {@link java.net.Authenticator} of the
+ * JVM, so the credentials are not sent through the tunnel to the Cloud
+ * Controller. Each request is authorized with a token of the token
+ * provider, which refreshes it as needed, and gives up on a Cloud Controller
+ * which does not answer within the timeout.
+ */
+class CloudController {
+
+  static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final ConnectionContextRegistry.Key endpoint;
+  private final ConnectionContext connectionContext;
+  private final TokenProvider tokenProvider;
+  private final int timeout;
+
+  /**
+   * @param endpoint the endpoint to send requests to
+   * @param connectionContext the connection context, to get tokens for
+   * @param tokenProvider the token provider
+   * @param timeout the connect and read timeout, zero for none
+   */
+  CloudController(ConnectionContextRegistry.Key endpoint, ConnectionContext connectionContext, TokenProvider tokenProvider, Duration timeout) {
+    this.endpoint = endpoint;
+    this.connectionContext = connectionContext;
+    this.tokenProvider = tokenProvider;
+    this.timeout = (int) Math.min(timeout.toMillis(), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Opens an authorized request.
+   *
+   * @param path the path of the request, from the API root
+   * @param method the HTTP method
+   * @return the connection, for the caller to send the body if any
+   */
+  HttpURLConnection open(String path, String method) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(endpoint.getApiUrl() + path).openConnection(endpoint.getProxy());
+    if (endpoint.isSkipSslValidation() && connection instanceof HttpsURLConnection) {
+      ((HttpsURLConnection) connection).setSSLSocketFactory(trustAll());
+      ((HttpsURLConnection) connection).setHostnameVerifier((hostname, session) -> true);
+    }
+    String proxyAuthorization = endpoint.getProxyAuthorization();
+    if (proxyAuthorization != null && !(connection instanceof HttpsURLConnection)) {
+      connection.setRequestProperty("Proxy-Authorization", proxyAuthorization);
+    }
+    connection.setConnectTimeout(timeout);
+    connection.setReadTimeout(timeout);
+    connection.setRequestMethod(method);
+    connection.setRequestProperty("Authorization", tokenProvider.getToken(connectionContext).block());
+    connection.setRequestProperty("Accept", "application/json");
+    return connection;
+  }
+
+  /**
+   * @param path the path of the resource, from the API root
+   * @return the resource
+   */
+  JsonNode get(String path) throws IOException {
+    return read(open(path, "GET"));
+  }
+
+  /**
+   * Sends a JSON request.
+   *
+   * @param method the HTTP method
+   * @param path the path of the request, from the API root
+   * @param body the body, or {@code null} for none
+   * @return the response, or an empty node if there was none
+   */
+  JsonNode send(String method, String path, JsonNode body) throws IOException {
+    return send(method, path, "application/json", body == null ? null : MAPPER.writeValueAsBytes(body));
+  }
+
+  /**
+   * Sends a request.
+   *
+   * @param method the HTTP method
+   * @param path the path of the request, from the API root
+   * @param contentType the type of the body
+   * @param body the body, or {@code null} for none
+   * @return the response, or an empty node if there was none. The
+   * {@code Location} header of an asynchronous request is returned as
+   * {@code location}.
+   */
+  JsonNode send(String method, String path, String contentType, byte[] body) throws IOException {
+    HttpURLConnection connection = open(path, method);
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      connection.setRequestProperty("Content-Type", contentType);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body);
+      }
+    }
+    JsonNode response = read(connection);
+    String location = connection.getHeaderField("Location");
+    if (location != null && response.isObject()) {
+      ((ObjectNode) response).put("location", location);
+    }
+    return response;
+  }
+
+  /**
+   * Reads the response of a request.
+   *
+   * @param connection the connection
+   * @return the response, or an empty node if there was none
+   * @throws IOException if the request failed, with the error of the Cloud
+   * Controller
+   */
+  static JsonNode read(HttpURLConnection connection) throws IOException {
+    int code = connection.getResponseCode();
+    if (code >= 400) {
+      String error;
+      try (InputStream in = connection.getErrorStream()) {
+        error = in == null ? "" : IOUtils.toString(in, StandardCharsets.UTF_8);
+      }
+      throw new IOException(connection.getRequestMethod() + " " + connection.getURL().getPath() + " failed with " + code + ": " + error);
+    }
+    try (InputStream in = connection.getInputStream()) {
+      String body = IOUtils.toString(in, StandardCharsets.UTF_8);
+      return body.trim().isEmpty() ? MAPPER.createObjectNode() : MAPPER.readTree(body);
+    }
+  }
+
+  /**
+   * @return a socket factory trusting any certificate, with the trust
+   * managers the connection context uses when it skips SSL validation
+   */
+  private static SSLSocketFactory trustAll() throws IOException {
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, InsecureTrustManagerFactory.INSTANCE.getTrustManagers(), null);
+      return context.getSocketFactory();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+}
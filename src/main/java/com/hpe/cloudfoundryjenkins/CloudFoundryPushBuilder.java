@@ -67,6 +67,81 @@ public class CloudFoundryPushBuilder extends Builder implements SimpleBuildStep
    */
   public List<CloudFoundryPushPublisher.Service> servicesToCreate = new ArrayList<>();
 
+  /**
+   * Maximum number of services to create concurrently.
+   */
+  public String servicesParallelism = String.valueOf(CloudFoundryUtils.DEFAULT_SERVICES_PARALLELISM);
+
+  /**
+   * Maximum number of applications to push concurrently.
+   */
+  public String pushParallelism = String.valueOf(CloudFoundryUtils.DEFAULT_PUSH_PARALLELISM);
+
+  /**
+   * What to do with the other applications once a push failed.
+   */
+  public String pushFailurePolicy = ApplicationPusher.FAIL_FAST;
+
+  /**
+   * Whether to push from the build agent when the workspace is remote.
+   */
+  public boolean pushFromAgent;
+
+  /**
+   * Whether to stream the application files from the build agent when the
+   * workspace is remote.
+   */
+  public boolean streamFromAgent;
+
+  /**
+   * Whether to push applications even if their manifest and bits are
+   * unchanged.
+   */
+  public boolean forcePush;
+
+  /**
+   * Whether to only update the configuration of running applications whose
+   * bits are unchanged.
+   */
+  public boolean updateConfigurationOnly;
+
+  /**
+   * The compression level of the application archive: empty for the default, 0
+   * to store the files without compressing them, or 1 (fastest) to 9
+   * (smallest).
+   */
+  public String compressionLevel;
+
+  /**
+   * How many streams the application files are copied over from the build
+   * agent to the master, at most.
+   */
+  public String transferStreams;
+
+  /**
+   * Patterns of files to leave out of the application directories, in the
+   * .cfignore syntax, separated by commas or new lines.
+   */
+  public String excludes;
+
+  /**
+   * The API the applications are pushed through: empty or v2 for the v2 API,
+   * v3 to apply the manifest and stage the applications through the v3 API.
+   */
+  public String pushEngine;
+
+  /**
+   * How running applications are updated: empty to stop and restart them,
+   * rolling to replace them without downtime.
+   */
+  public String deploymentStrategy;
+
+  /**
+   * The space to promote the droplets of the applications from, as space or
+   * organization/space, or empty to upload and stage their bits.
+   */
+  public String promoteFrom;
+
   /**
    * Manifest to use.
    */
@@ -151,6 +226,214 @@ public class CloudFoundryPushBuilder extends Builder implements SimpleBuildStep
     }
   }
 
+  /**
+   * @return the maximum number of services to create concurrently
+   */
+  public String getServicesParallelism() {
+    return servicesParallelism;
+  }
+
+  /**
+   * @param servicesParallelism the maximum number of services to create concurrently
+   */
+  @DataBoundSetter
+  public void setServicesParallelism(String servicesParallelism) {
+    this.servicesParallelism = servicesParallelism;
+  }
+
+  /**
+   * @return the maximum number of applications to push concurrently
+   */
+  public String getPushParallelism() {
+    return pushParallelism;
+  }
+
+  /**
+   * @param pushParallelism the maximum number of applications to push concurrently
+   */
+  @DataBoundSetter
+  public void setPushParallelism(String pushParallelism) {
+    this.pushParallelism = pushParallelism;
+  }
+
+  /**
+   * @return what to do with the other applications once a push failed
+   */
+  public String getPushFailurePolicy() {
+    return pushFailurePolicy;
+  }
+
+  /**
+   * @param pushFailurePolicy what to do with the other applications once a
+   * push failed: {@code failFast} or {@code collectAll}
+   */
+  @DataBoundSetter
+  public void setPushFailurePolicy(String pushFailurePolicy) {
+    this.pushFailurePolicy = pushFailurePolicy;
+  }
+
+  /**
+   * @return {@code true} if the push runs on the build agent when the
+   * workspace is remote
+   */
+  public boolean isPushFromAgent() {
+    return pushFromAgent;
+  }
+
+  /**
+   * @param pushFromAgent {@code true} to push from the build agent when the
+   * workspace is remote
+   */
+  @DataBoundSetter
+  public void setPushFromAgent(boolean pushFromAgent) {
+    this.pushFromAgent = pushFromAgent;
+  }
+
+  /**
+   * @return {@code true} if the application files are streamed from the
+   * build agent when the workspace is remote
+   */
+  public boolean isStreamFromAgent() {
+    return streamFromAgent;
+  }
+
+  /**
+   * @param streamFromAgent {@code true} to stream the application files from
+   * the build agent when the workspace is remote
+   */
+  @DataBoundSetter
+  public void setStreamFromAgent(boolean streamFromAgent) {
+    this.streamFromAgent = streamFromAgent;
+  }
+
+  /**
+   * @return {@code true} if applications are pushed even if their manifest and
+   * bits are unchanged
+   */
+  public boolean isForcePush() {
+    return forcePush;
+  }
+
+  /**
+   * @param forcePush {@code true} to push applications even if their manifest
+   * and bits are unchanged
+   */
+  @DataBoundSetter
+  public void setForcePush(boolean forcePush) {
+    this.forcePush = forcePush;
+  }
+
+  /**
+   * @return {@code true} if only the configuration of running applications
+   * whose bits are unchanged is updated
+   */
+  public boolean isUpdateConfigurationOnly() {
+    return updateConfigurationOnly;
+  }
+
+  /**
+   * @param updateConfigurationOnly {@code true} to only update the
+   * configuration of running applications whose bits are unchanged
+   */
+  @DataBoundSetter
+  public void setUpdateConfigurationOnly(boolean updateConfigurationOnly) {
+    this.updateConfigurationOnly = updateConfigurationOnly;
+  }
+
+  /**
+   * @return the compression level of the application archive
+   */
+  public String getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * @param compressionLevel the compression level of the application archive
+   */
+  @DataBoundSetter
+  public void setCompressionLevel(String compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * @return how many streams the application files are copied over from the
+   * build agent
+   */
+  public String getTransferStreams() {
+    return transferStreams;
+  }
+
+  /**
+   * @param transferStreams how many streams the application files are copied
+   * over from the build agent
+   */
+  @DataBoundSetter
+  public void setTransferStreams(String transferStreams) {
+    this.transferStreams = transferStreams;
+  }
+
+  /**
+   * @return patterns of files to leave out of the application directories
+   */
+  public String getExcludes() {
+    return excludes;
+  }
+
+  /**
+   * @param excludes patterns of files to leave out of the application
+   * directories
+   */
+  @DataBoundSetter
+  public void setExcludes(String excludes) {
+    this.excludes = excludes;
+  }
+
+  /**
+   * @return the API the applications are pushed through
+   */
+  public String getPushEngine() {
+    return pushEngine;
+  }
+
+  /**
+   * @param pushEngine the API the applications are pushed through
+   */
+  @DataBoundSetter
+  public void setPushEngine(String pushEngine) {
+    this.pushEngine = pushEngine;
+  }
+
+  /**
+   * @return how running applications are updated
+   */
+  public String getDeploymentStrategy() {
+    return deploymentStrategy;
+  }
+
+  /**
+   * @param deploymentStrategy how running applications are updated
+   */
+  @DataBoundSetter
+  public void setDeploymentStrategy(String deploymentStrategy) {
+    this.deploymentStrategy = deploymentStrategy;
+  }
+
+  /**
+   * @return the space to promote the droplets of the applications from
+   */
+  public String getPromoteFrom() {
+    return promoteFrom;
+  }
+
+  /**
+   * @param promoteFrom the space to promote the droplets of the applications
+   * from
+   */
+  @DataBoundSetter
+  public void setPromoteFrom(String promoteFrom) {
+    this.promoteFrom = promoteFrom;
+  }
+
   /**
    * @return the manifest to use
    */
@@ -172,18 +455,34 @@ public class CloudFoundryPushBuilder extends Builder implements SimpleBuildStep
 
   @Override
   public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
-    CloudFoundryPushTask task = new CloudFoundryPushTask(target, organization, cloudSpace, credentialsId, selfSigned, pluginTimeout, servicesToCreate, manifestChoice);
-    return task.perform(build.getWorkspace(), build, launcher, listener);
+    return createTask().perform(build.getWorkspace(), build, launcher, listener);
   }
 
   @Override
   public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
-    CloudFoundryPushTask task = new CloudFoundryPushTask(target, organization, cloudSpace, credentialsId, selfSigned, pluginTimeout, servicesToCreate, manifestChoice);
-    if (!task.perform(workspace, run, launcher, listener)) {
+    if (!createTask().perform(workspace, run, launcher, listener)) {
       throw new AbortException("CloudFoundry Push failed.");
     }
   }
 
+  private CloudFoundryPushTask createTask() {
+    CloudFoundryPushTask task = new CloudFoundryPushTask(target, organization, cloudSpace, credentialsId, selfSigned, pluginTimeout, servicesToCreate, manifestChoice);
+    task.setServicesParallelism(servicesParallelism);
+    task.setPushParallelism(pushParallelism);
+    task.setPushFailurePolicy(pushFailurePolicy);
+    task.setPushFromAgent(pushFromAgent);
+    task.setStreamFromAgent(streamFromAgent);
+    task.setForcePush(forcePush);
+    task.setUpdateConfigurationOnly(updateConfigurationOnly);
+    task.setCompressionLevel(compressionLevel);
+    task.setTransferStreams(transferStreams);
+    task.setExcludes(excludes);
+    task.setPushEngine(pushEngine);
+    task.setDeploymentStrategy(deploymentStrategy);
+    task.setPromoteFrom(promoteFrom);
+    return task;
+  }
+
   @Override
   public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
     return true; // per SimpleBuildStep javadoc
@@ -15,40 +15,17 @@ import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.security.ACL;
 import hudson.util.Secret;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.lang.StringUtils;
-import org.cloudfoundry.client.CloudFoundryClient;
-import org.cloudfoundry.doppler.DopplerClient;
-import org.cloudfoundry.operations.CloudFoundryOperations;
-import org.cloudfoundry.operations.DefaultCloudFoundryOperations;
-import org.cloudfoundry.operations.applications.ApplicationManifest;
-import org.cloudfoundry.operations.applications.LogsRequest;
-import org.cloudfoundry.operations.applications.PushApplicationManifestRequest;
-import org.cloudfoundry.operations.services.CreateServiceInstanceRequest;
-import org.cloudfoundry.operations.services.DeleteServiceInstanceRequest;
-import org.cloudfoundry.operations.services.ServiceInstanceSummary;
 import org.cloudfoundry.reactor.ConnectionContext;
-import org.cloudfoundry.reactor.DefaultConnectionContext;
 import org.cloudfoundry.reactor.TokenProvider;
-import org.cloudfoundry.reactor.client.ReactorCloudFoundryClient;
-import org.cloudfoundry.reactor.doppler.ReactorDopplerClient;
-import org.cloudfoundry.reactor.tokenprovider.PasswordGrantTokenProvider;
-import org.cloudfoundry.reactor.uaa.ReactorUaaClient;
-import org.cloudfoundry.uaa.UaaClient;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
-import org.jenkinsci.plugins.tokenmacro.TokenMacro;
-import reactor.core.publisher.Flux;
 
 /**
  * Implements common push logic.
@@ -66,6 +43,19 @@ public class CloudFoundryPushTask {
   private final String pluginTimeout;
   private final List<CloudFoundryPushPublisher.Service> servicesToCreate;
   private final CloudFoundryPushPublisher.ManifestChoice manifestChoice;
+  private String servicesParallelism;
+  private String pushParallelism;
+  private String pushFailurePolicy;
+  private boolean pushFromAgent;
+  private boolean streamFromAgent;
+  private boolean forcePush;
+  private boolean updateConfigurationOnly;
+  private String compressionLevel;
+  private String transferStreams;
+  private String excludes;
+  private String pushEngine;
+  private String deploymentStrategy;
+  private String promoteFrom;
 
   public CloudFoundryPushTask(String target, String organization, String cloudSpace, String credentialsId, String selfSigned, String pluginTimeout, List<CloudFoundryPushPublisher.Service> servicesToCreate, CloudFoundryPushPublisher.ManifestChoice manifestChoice) {
     this.target = target;
@@ -78,6 +68,104 @@ public class CloudFoundryPushTask {
     this.manifestChoice = manifestChoice;
   }
 
+  /**
+   * @param servicesParallelism the maximum number of services to create concurrently
+   */
+  public void setServicesParallelism(String servicesParallelism) {
+    this.servicesParallelism = servicesParallelism;
+  }
+
+  /**
+   * @param pushParallelism the maximum number of applications to push concurrently
+   */
+  public void setPushParallelism(String pushParallelism) {
+    this.pushParallelism = pushParallelism;
+  }
+
+  /**
+   * @param pushFailurePolicy what to do with the other applications once a push failed
+   */
+  public void setPushFailurePolicy(String pushFailurePolicy) {
+    this.pushFailurePolicy = pushFailurePolicy;
+  }
+
+  /**
+   * @param pushFromAgent {@code true} to push from the build agent when the
+   * workspace is remote
+   */
+  public void setPushFromAgent(boolean pushFromAgent) {
+    this.pushFromAgent = pushFromAgent;
+  }
+
+  /**
+   * @param streamFromAgent {@code true} to stream the application files from
+   * the build agent when the workspace is remote
+   */
+  public void setStreamFromAgent(boolean streamFromAgent) {
+    this.streamFromAgent = streamFromAgent;
+  }
+
+  /**
+   * @param forcePush {@code true} to push applications even if their manifest
+   * and bits are unchanged
+   */
+  public void setForcePush(boolean forcePush) {
+    this.forcePush = forcePush;
+  }
+
+  /**
+   * @param updateConfigurationOnly {@code true} to only update the
+   * configuration of running applications whose bits are unchanged
+   */
+  public void setUpdateConfigurationOnly(boolean updateConfigurationOnly) {
+    this.updateConfigurationOnly = updateConfigurationOnly;
+  }
+
+  /**
+   * @param compressionLevel the compression level of the application archive
+   */
+  public void setCompressionLevel(String compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * @param transferStreams how many streams the application files are copied
+   * over from the build agent
+   */
+  public void setTransferStreams(String transferStreams) {
+    this.transferStreams = transferStreams;
+  }
+
+  /**
+   * @param excludes patterns of files to leave out of the application
+   * directories
+   */
+  public void setExcludes(String excludes) {
+    this.excludes = excludes;
+  }
+
+  /**
+   * @param pushEngine the API the applications are pushed through
+   */
+  public void setPushEngine(String pushEngine) {
+    this.pushEngine = pushEngine;
+  }
+
+  /**
+   * @param deploymentStrategy how running applications are updated
+   */
+  public void setDeploymentStrategy(String deploymentStrategy) {
+    this.deploymentStrategy = deploymentStrategy;
+  }
+
+  /**
+   * @param promoteFrom the space to promote the droplets of the applications
+   * from
+   */
+  public void setPromoteFrom(String promoteFrom) {
+    this.promoteFrom = promoteFrom;
+  }
+
   public boolean perform(FilePath workspace, Run run, Launcher launcher, TaskListener listener) {
         if (workspace == null) {
           throw new IllegalStateException("Workspace cannot be null");
@@ -85,99 +173,109 @@ public class CloudFoundryPushTask {
 
         listener.getLogger().println("Cloud Foundry Plugin:");
 
+        ConnectionContextRegistry.Lease connectionLease = null;
+        FingerprintCache fingerprints = null;
+        MacroExpander macros = new MacroExpander(run, workspace, listener);
         try {
             List<StandardUsernamePasswordCredentials> standardCredentials = CredentialsProvider.lookupCredentials(
                     StandardUsernamePasswordCredentials.class,
                     run.getParent(),
                     ACL.SYSTEM,
-                    URIRequirementBuilder.fromUri(TokenMacro.expandAll(run, workspace, listener, target)).build());
+                    URIRequirementBuilder.fromUri(macros.expand(target)).build());
 
+            String tokenExpandedCredentialsId = macros.expand(credentialsId);
             StandardUsernamePasswordCredentials credentials =
-                    CredentialsMatchers.firstOrNull(standardCredentials, CredentialsMatchers.withId(TokenMacro.expandAll(run, workspace, listener, credentialsId)));
+                    CredentialsMatchers.firstOrNull(standardCredentials, CredentialsMatchers.withId(tokenExpandedCredentialsId));
 
             if (credentials == null) {
                 listener.getLogger().println("ERROR: No credentials have been given.");
                 return false;
             }
 
-            ConnectionContext connectionContext = createConnectionContext(run, workspace, listener);
-
-            TokenProvider tokenProvider = PasswordGrantTokenProvider.builder()
-                .username(credentials.getUsername())
-                .password(Secret.toString(credentials.getPassword()))
-                .build();
-
-            CloudFoundryClient client = ReactorCloudFoundryClient.builder()
-                .connectionContext(connectionContext)
-                .tokenProvider(tokenProvider)
-                .build();
-
-            DopplerClient dopplerClient = ReactorDopplerClient.builder()
-                .connectionContext(connectionContext)
-                .tokenProvider(tokenProvider)
-                .build();
+            ConnectionContextRegistry.Key endpoint = connectionKey(macros);
 
-            UaaClient uaaClient = ReactorUaaClient.builder()
-                .connectionContext(connectionContext)
-                .tokenProvider(tokenProvider)
-                .build();
+            List<CloudFoundryPushPublisher.Service> tokenExpandedServices = new ArrayList<>(servicesToCreate.size());
+            for (CloudFoundryPushPublisher.Service service : servicesToCreate) {
+                tokenExpandedServices.add(new CloudFoundryPushPublisher.Service(
+                    macros.expand(service.name),
+                    macros.expand(service.type),
+                    macros.expand(service.plan),
+                    service.resetService));
+            }
+            String p = macros.expand(servicesParallelism);
+            String s = macros.expand(pluginTimeout);
+            long timeout = StringUtils.isBlank(s) ? 0 : Long.parseLong(s);
+            String pp = macros.expand(pushParallelism);
+            String cl = macros.expand(compressionLevel);
+            Deployment deployment = new Deployment(
+                macros.expand(organization),
+                macros.expand(cloudSpace),
+                tokenExpandedServices,
+                StringUtils.isBlank(p) ? CloudFoundryUtils.DEFAULT_SERVICES_PARALLELISM : Integer.parseInt(p),
+                timeout,
+                StringUtils.isBlank(pp) ? CloudFoundryUtils.DEFAULT_PUSH_PARALLELISM : Integer.parseInt(pp),
+                pushFailurePolicy,
+                forcePush,
+                updateConfigurationOnly,
+                StringUtils.isBlank(cl) ? ParallelZip.DEFAULT_LEVEL : Integer.parseInt(cl),
+                CfIgnore.split(macros.expand(excludes)),
+                macros.expand(pushEngine),
+                macros.expand(deploymentStrategy),
+                macros.expand(promoteFrom));
 
-            CloudFoundryOperations cloudFoundryOperations = DefaultCloudFoundryOperations.builder()
-                .cloudFoundryClient(client)
-                .dopplerClient(dopplerClient)
-                .uaaClient(uaaClient)
-                .organization(TokenMacro.expandAll(run, workspace, listener, organization))
-                .space(TokenMacro.expandAll(run, workspace, listener, cloudSpace))
-                .build();
+            fingerprints = FingerprintCache.load(run.getParent());
 
-            // Create services before push
-            Flux<ServiceInstanceSummary> currentServicesList = cloudFoundryOperations.services().listInstances();
-            List<String> currentServicesNames = currentServicesList.map(service -> service.getName()).collectList().block();
+            connectionLease = ConnectionContextRegistry.get().acquire(endpoint);
+            TokenProvider tokenProvider = TokenProviderCache.get().getTokenProvider(endpoint,
+                tokenExpandedCredentialsId, credentials.getUsername(), Secret.toString(credentials.getPassword()));
 
-            for (CloudFoundryPushPublisher.Service service : servicesToCreate) {
-                final String serviceName = TokenMacro.expandAll(run, workspace, listener, service.name);
-                boolean createService = true;
-                if (currentServicesNames.contains(serviceName)) {
-                    if (service.resetService) {
-                        listener.getLogger().println("Service " + serviceName + " already exists, resetting.");
-                        cloudFoundryOperations.services().deleteInstance(DeleteServiceInstanceRequest.builder().name(serviceName).build()).block();
-                        listener.getLogger().println("Service deleted.");
-                    } else {
-                        createService = false;
-                        listener.getLogger().println("Service " + serviceName + " already exists, skipping creation.");
-                    }
+            if (pushFromAgent && workspace.isRemote()) {
+                listener.getLogger().println("INFO: Pushing from the build agent.");
+                if (endpoint.getProxyAuthorization() != null) {
+                    listener.getLogger().println("WARNING: The proxy credentials are not sent to the build agent, "
+                        + "which goes through the proxy without them.");
                 }
-                if (createService) {
-                    listener.getLogger().println("Creating service " + serviceName);
-                    cloudFoundryOperations.services().createInstance(CreateServiceInstanceRequest.builder()
-                        .serviceName(TokenMacro.expandAll(run, workspace, listener, service.type))
-                        .serviceInstanceName(serviceName)
-                        .planName(TokenMacro.expandAll(run, workspace, listener, service.plan))
-                        .build()).block();
+                String tokenExpandedManifest = null;
+                CloudFoundryPushPublisher.ManifestChoice tokenExpandedManifestChoice = manifestChoice;
+                if ("jenkinsConfig".equals(manifestChoice.value)) {
+                    tokenExpandedManifestChoice = ManifestUtils.expandJenkinsConfig(manifestChoice, macros);
+                } else {
+                    tokenExpandedManifest = ManifestUtils.expandManifestFile(workspace, manifestChoice, macros);
                 }
+                String accessToken = AgentPush.accessToken(tokenProvider, connectionLease.getConnectionContext(), timeout, listener.getLogger());
+                AgentPush.Outcome outcome = workspace.act(new AgentPush(deployment, endpoint, accessToken,
+                    tokenExpandedManifestChoice, tokenExpandedManifest, fingerprints, listener));
+                fingerprints.putAll(outcome.fingerprints);
+                return outcome.success;
             }
 
-            FilePath masterPath = pathOnMaster(workspace);
-            boolean isOnSlave = false;
-            if (masterPath == null || !masterPath.equals(workspace)) {
-              masterPath = transferArtifactsToMaster(masterPath, workspace, manifestChoice, listener);
-              isOnSlave = true;
+            if (streamFromAgent && workspace.isRemote() && !deployment.isDirect()) {
+                listener.getLogger().println("WARNING: Streaming the application files needs the v2 API (direct upload) or v3 push engine, "
+                    + "they are copied to the controller for pushManifest instead.");
+            } else if (streamFromAgent && workspace.isRemote()) {
+                return deployment.push(endpoint, connectionLease.getConnectionContext(), tokenProvider,
+                    new StreamedArtifacts(workspace, manifestChoice, macros, listener), fingerprints, listener);
             }
 
-            List<ApplicationManifest> manifests = ManifestUtils.loadManifests(masterPath, manifestChoice, isOnSlave, run, workspace, listener);
-            String s = TokenMacro.expandAll(run, workspace, listener, pluginTimeout);
-            long opTimeout = StringUtils.isBlank(s) ? 0 : Long.parseLong(s);
-            for(final ApplicationManifest manifest : manifests) {
-              cloudFoundryOperations.applications().pushManifest(PushApplicationManifestRequest.builder().manifest(manifest).build())
-                  .timeout(Duration.ofSeconds(opTimeout))
-                  .doOnError(e -> e.printStackTrace(listener.getLogger()))
-                  .block();
-              printStagingLogs(cloudFoundryOperations, listener, manifest.getName(), opTimeout);
+            if (!workspace.isRemote()) {
+                return deployment.push(endpoint, connectionLease.getConnectionContext(), tokenProvider,
+                    () -> ManifestUtils.loadManifests(workspace, manifestChoice, false, macros), fingerprints, listener);
             }
-            if (!masterPath.equals(workspace)) {
-              masterPath.deleteRecursive();
+
+            // The build is distributed: copy the application files Cloud Foundry does not have to the master
+            final FilePath masterPath = StagingArea.get().createDirectory();
+            try {
+                String ts = macros.expand(transferStreams);
+                return deployment.push(endpoint, connectionLease.getConnectionContext(), tokenProvider,
+                    new StreamedArtifacts(workspace, manifestChoice, macros, listener, masterPath,
+                        StringUtils.isBlank(ts) ? 1 : Integer.parseInt(ts), deployment.isDirect()), fingerprints, listener);
+            } finally {
+                try {
+                    masterPath.deleteRecursive();
+                } catch (IOException e) {
+                    listener.getLogger().println("WARNING: The staged application files could not be deleted: " + e.getMessage());
+                }
             }
-            return true;
         } catch (MalformedURLException e) {
             listener.getLogger().println("ERROR: The target URL is not valid: " + e.getMessage());
             return false;
@@ -190,62 +288,20 @@ public class CloudFoundryPushTask {
         } catch (Exception e) {
             e.printStackTrace(listener.getLogger());
             return false;
+        } finally {
+            if (connectionLease != null) {
+                connectionLease.close();
+            }
+            if (fingerprints != null) {
+                try {
+                    fingerprints.save();
+                } catch (IOException e) {
+                    listener.getLogger().println("WARNING: The file fingerprints could not be saved: " + e.getMessage());
+                }
+            }
         }
   }
 
-    private FilePath pathOnMaster(final FilePath path) throws IOException, InterruptedException {
-      if (path.getChannel() != FilePath.localChannel) {
-        // The build is distributed
-        // We need to make a copy of the target file/directory on the master
-        File tempFile = Files.createTempDirectory("appDir").toFile();
-        tempFile.deleteOnExit();
-        return new FilePath(tempFile);
-      }else {
-        return path;
-      }
-    }
-
-    private FilePath transferArtifactsToMaster(FilePath masterPath, FilePath workspacePath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, TaskListener listener) throws IOException, InterruptedException {
-      FilePath results = masterPath;
-      if (masterPath !=null && !masterPath.equals(workspacePath)) {
-        listener.getLogger().println("INFO: Looks like we are on a distributed system... Transferring build artifacts from the slave to the master.");
-        // only transfer artifacts if we aren't on the master
-        FilePath appPath = new FilePath(workspacePath, manifestChoice.appPath == null ? "" : manifestChoice.appPath);
-        // The build is distributed, and a directory
-        // We need to make a copy of the target directory on the master
-        FilePath zipFilePath = new FilePath(masterPath, "appFile");
-        try(OutputStream outputStream = new FileOutputStream(Paths.get(zipFilePath.toURI()).toFile())) {
-          listener.getLogger().println(String.format("INFO: Transferring from %s to %s", appPath.getRemote(), masterPath.getRemote()));
-          appPath.zip(outputStream);
-        }
-        zipFilePath.unzip(masterPath);
-        try {
-          zipFilePath.delete();
-        } catch(IOException ex) {
-          listener.getLogger().println("WARNING: temporary files were not deleted successfully.");
-        }
-
-        // appPath.zip() creates a top level directory that we want to remove
-        File[] listFiles = new File(masterPath.toURI()).listFiles();
-        if (listFiles != null && listFiles.length == 1) {
-            results = new FilePath(listFiles[0]);
-        } else {
-            // This should never happen because appPath.zip() always makes a directory
-            throw new IllegalStateException("Unzipped output directory was empty.");
-        }
-      }
-      return results;
-    }
-
-    private void printStagingLogs(CloudFoundryOperations cloudFoundryOperations,
-                                  final TaskListener listener, String appName, final long printStagingLogsTimeout) {
-      cloudFoundryOperations.applications().logs(LogsRequest.builder().name(appName).recent(Boolean.TRUE).build())
-        .timeout(Duration.ofSeconds(printStagingLogsTimeout))
-        .doOnNext(applicationLog -> listener.getLogger().println(applicationLog.getMessage()))
-        .blockLast();
-
-    }
-
     private static final Pattern TARGET_PATTERN = Pattern.compile("((?<scheme>https?)://)?(?<targetFqdn>[^:/]+)(:(?<port>\\d+))?(/.*)?");
 
     protected URL targetUrl(String tokenExpandedTarget) throws MalformedURLException {
@@ -271,9 +327,26 @@ public class CloudFoundryPushTask {
     }
 
     protected ConnectionContext createConnectionContext(Run run, FilePath workspace, TaskListener listener) throws MalformedURLException, MacroEvaluationException, IOException, InterruptedException {
+      return connectionKey(new MacroExpander(run, workspace, listener)).newConnectionContext();
+    }
+
+    /**
+     * Borrows a shared connection context for the target from the
+     * {@link ConnectionContextRegistry}.
+     *
+     * @param run the run, or {@code null} if the settings should not be token-expanded
+     * @param workspace the workspace
+     * @param listener the listener
+     * @return the lease, which must be closed once the push is done
+     */
+    protected ConnectionContextRegistry.Lease acquireConnectionContext(Run run, FilePath workspace, TaskListener listener) throws MalformedURLException, MacroEvaluationException, IOException, InterruptedException {
+      return ConnectionContextRegistry.get().acquire(connectionKey(new MacroExpander(run, workspace, listener)));
+    }
+
+    private ConnectionContextRegistry.Key connectionKey(MacroExpander macros) throws MalformedURLException, MacroEvaluationException, IOException, InterruptedException {
       String scheme = "https";
       Boolean secure = null;
-      String tokenExpandedTarget = run != null ? TokenMacro.expandAll(run, workspace, listener, target) : target;
+      String tokenExpandedTarget = macros.expand(target);
       String targetFqdn = tokenExpandedTarget;
       Integer port = null;
       Matcher targetMatcher = TARGET_PATTERN.matcher(targetFqdn);
@@ -291,18 +364,9 @@ public class CloudFoundryPushTask {
           port = Integer.parseInt(portNumber);
         }
       }
-      String skipSslValidation = run != null ? TokenMacro.expandAll(run, workspace, listener, selfSigned) : selfSigned;
-      DefaultConnectionContext.Builder builder = DefaultConnectionContext.builder()
-                .apiHost(targetFqdn)
-                .proxyConfiguration(CloudFoundryUtils.buildProxyConfiguration(targetUrl(tokenExpandedTarget)))
-                .skipSslValidation(Boolean.parseBoolean(skipSslValidation));
-      if (secure != null) {
-        builder = builder.secure(secure.booleanValue());
-      }
-      if (port != null) {
-        builder = builder.port(port);
-      }
-      return builder.build();
+      String skipSslValidation = macros.expand(selfSigned);
+      return new ConnectionContextRegistry.Key(targetFqdn, port, secure, Boolean.parseBoolean(skipSslValidation),
+              CloudFoundryUtils.findProxy(targetUrl(tokenExpandedTarget)));
     }
 
 }
@@ -32,10 +32,14 @@ import org.apache.commons.lang.StringUtils;
 import org.cloudfoundry.client.CloudFoundryClient;
 import org.cloudfoundry.client.v2.ClientV2Exception;
 import org.cloudfoundry.client.v2.info.GetInfoRequest;
-import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.client.v2.organizations.ListOrganizationsRequest;
+import org.cloudfoundry.client.v2.organizations.OrganizationResource;
+import org.cloudfoundry.client.v2.spaces.ListSpacesRequest;
+import org.cloudfoundry.client.v2.spaces.SpaceResource;
 import org.cloudfoundry.reactor.TokenProvider;
 import org.cloudfoundry.reactor.client.ReactorCloudFoundryClient;
 import org.cloudfoundry.reactor.tokenprovider.PasswordGrantTokenProvider;
+import reactor.core.publisher.Mono;
 
 /**
  * Utility methods for interacting with CloudFoundry.
@@ -55,31 +59,89 @@ public class CloudFoundryUtils {
      */
     static final int DEFAULT_PLUGIN_TIMEOUT = 120;
 
+    /**
+     * Default number of services to create concurrently (4).
+     */
+    static final int DEFAULT_SERVICES_PARALLELISM = 4;
+
+    /**
+     * Default number of applications to push concurrently (1).
+     */
+    static final int DEFAULT_PUSH_PARALLELISM = 1;
+
+    /**
+     * Looks up the id of a space by name. Unlike {@code spaces().get}, this
+     * does not gather the applications, services and domains of the space.
+     * @param client the client to use
+     * @param organization the name of the organization
+     * @param space the name of the space
+     * @return the id of the space, looked up once on first subscription
+     */
+    static Mono<String> findSpaceId(CloudFoundryClient client, String organization, String space) {
+        return Mono.fromCallable(() -> {
+            List<OrganizationResource> organizations = client.organizations().list(ListOrganizationsRequest.builder()
+                .name(organization)
+                .page(1)
+                .build())
+                .block()
+                .getResources();
+            if (organizations.isEmpty()) {
+                throw new IllegalArgumentException("Organization " + organization + " not found");
+            }
+            List<SpaceResource> spaces = client.spaces().list(ListSpacesRequest.builder()
+                .name(space)
+                .organizationId(organizations.get(0).getMetadata().getId())
+                .page(1)
+                .build())
+                .block()
+                .getResources();
+            if (spaces.isEmpty()) {
+                throw new IllegalArgumentException("Space " + space + " not found in organization " + organization);
+            }
+            return spaces.get(0).getMetadata().getId();
+        }).cache();
+    }
+
     /**
      * Builds a proxy configuration for the target URL.
      * @param targetURL the target url
      * @return either {@link Optional#empty()} or the proxy configuration.
      */
     static Optional<org.cloudfoundry.reactor.ProxyConfiguration> buildProxyConfiguration(URL targetURL) {
+        ProxyConfiguration proxyConfig = findProxy(targetURL);
+        if (proxyConfig == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(org.cloudfoundry.reactor.ProxyConfiguration.builder()
+            .host(proxyConfig.name)
+            .port(proxyConfig.port)
+            .username(Optional.ofNullable(proxyConfig.getUserName()))
+            .password(Optional.ofNullable(proxyConfig.getPassword()))
+            .build());
+    }
+
+    /**
+     * Finds the Jenkins proxy to use for the target URL.
+     * @param targetURL the target url
+     * @return the proxy, or {@code null} if the target should be reached directly
+     */
+    static ProxyConfiguration findProxy(URL targetURL) {
         Jenkins jenkins = Jenkins.getInstance();
-        if (jenkins == null) return Optional.empty();
+        if (jenkins == null) return null;
 
         ProxyConfiguration proxyConfig = jenkins.proxy;
         if (proxyConfig == null) {
-            return Optional.empty();
+            return null;
         }
 
         String host = targetURL.getHost();
         for (Pattern p : proxyConfig.getNoProxyHostPatterns()) {
             if (p.matcher(host).matches()) {
-                return Optional.empty();
+                return null;
             }
         }
-
-        return Optional.of(org.cloudfoundry.reactor.ProxyConfiguration.builder()
-            .host(proxyConfig.name)
-            .port(proxyConfig.port)
-            .build());
+        return proxyConfig;
     }
 
     /**
@@ -110,8 +172,6 @@ public class CloudFoundryUtils {
 
             CloudFoundryPushTask task = new CloudFoundryPushTask(target, organization, cloudSpace, credentialsId, selfSigned, String.valueOf(DEFAULT_PLUGIN_TIMEOUT), Collections.emptyList(), ManifestChoice.defaultManifestFileConfig());
 
-            ConnectionContext connectionContext = task.createConnectionContext(null, null, TaskListener.NULL);
-
             PasswordGrantTokenProvider.Builder tokenProviderBuilder = PasswordGrantTokenProvider.builder();
             if (credentials != null) {
               tokenProviderBuilder = tokenProviderBuilder.username(credentials.getUsername())
@@ -119,14 +179,16 @@ public class CloudFoundryUtils {
             }
             TokenProvider tokenProvider = tokenProviderBuilder.build();
 
-            CloudFoundryClient client = ReactorCloudFoundryClient.builder()
-                .connectionContext(connectionContext)
-                .tokenProvider(tokenProvider)
-                .build();
+            try (ConnectionContextRegistry.Lease connectionLease = task.acquireConnectionContext(null, null, TaskListener.NULL)) {
+              CloudFoundryClient client = ReactorCloudFoundryClient.builder()
+                  .connectionContext(connectionLease.getConnectionContext())
+                  .tokenProvider(tokenProvider)
+                  .build();
 
-            client.info().get(GetInfoRequest.builder().build())
-                .timeout(Duration.ofSeconds(DEFAULT_PLUGIN_TIMEOUT))
-                .block();
+              client.info().get(GetInfoRequest.builder().build())
+                  .timeout(Duration.ofSeconds(DEFAULT_PLUGIN_TIMEOUT))
+                  .block();
+            }
             URL targetUrl = task.targetUrl(target);
             List<String> warnings = new ArrayList<>();
             if (!targetUrl.getHost().startsWith("api.")) {
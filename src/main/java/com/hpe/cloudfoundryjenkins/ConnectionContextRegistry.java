@@ -0,0 +1,335 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.DefaultConnectionContext;
+import org.cloudfoundry.reactor.ProxyConfiguration;
+
+/**
+ * Controller-wide registry of connection contexts.
+ * <p>
+ * A {@link DefaultConnectionContext} owns its own event loops and connection
+ * pool, so creating one per push is expensive. Pushes against the same
+ * endpoint borrow a shared context from this registry instead. Contexts are
+ * reference counted, disposed once they have been unused for a while, and
+ * disposed when Jenkins shuts down.
+ */
+public final class ConnectionContextRegistry {
+
+  private static final Logger LOGGER = Logger.getLogger(ConnectionContextRegistry.class.getName());
+
+  /**
+   * How long an unused context is kept before being disposed (10 minutes by
+   * default).
+   */
+  static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(Long.getLong(ConnectionContextRegistry.class.getName() + ".idleTimeoutMinutes", 10));
+
+  private static final ConnectionContextRegistry INSTANCE = new ConnectionContextRegistry();
+
+  private final Map<Key, Entry> entries = new HashMap<>();
+
+  ConnectionContextRegistry() {
+  }
+
+  /**
+   * @return the registry shared by all builds
+   */
+  public static ConnectionContextRegistry get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Borrows the connection context for the given endpoint, creating it if
+   * needed. The returned lease must be closed once the caller is done.
+   *
+   * @param key the endpoint
+   * @return the lease
+   */
+  public synchronized Lease acquire(Key key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(key.newConnectionContext());
+      entries.put(key, entry);
+    }
+    entry.references++;
+    return new Lease(key, entry);
+  }
+
+  private synchronized void release(Entry entry) {
+    entry.references--;
+    entry.lastReleased = System.currentTimeMillis();
+  }
+
+  /**
+   * Disposes the contexts which have not been borrowed since
+   * {@link #IDLE_TIMEOUT}.
+   *
+   * @param now the current time, in milliseconds
+   * @return the number of disposed contexts
+   */
+  synchronized int evictIdle(long now) {
+    int evicted = 0;
+    for (Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<Key, Entry> e = it.next();
+      Entry entry = e.getValue();
+      if (entry.references <= 0 && now - entry.lastReleased >= IDLE_TIMEOUT) {
+        it.remove();
+        dispose(e.getKey(), entry);
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Disposes all contexts, whether or not they are still borrowed.
+   */
+  synchronized void disposeAll() {
+    for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+      dispose(e.getKey(), e.getValue());
+    }
+    entries.clear();
+  }
+
+  /**
+   * @return the number of contexts currently held
+   */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private static void dispose(Key key, Entry entry) {
+    TokenProviderCache.get().evict(key);
+    try {
+      entry.connectionContext.dispose();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Failed to dispose connection context for " + key, e);
+    }
+  }
+
+  private static final class Entry {
+
+    private final DefaultConnectionContext connectionContext;
+    private int references;
+    private long lastReleased = System.currentTimeMillis();
+
+    private Entry(DefaultConnectionContext connectionContext) {
+      this.connectionContext = connectionContext;
+    }
+  }
+
+  /**
+   * A borrowed connection context.
+   */
+  public final class Lease implements AutoCloseable {
+
+    private final Key key;
+    private final Entry entry;
+    private boolean closed;
+
+    private Lease(Key key, Entry entry) {
+      this.key = key;
+      this.entry = entry;
+    }
+
+    /**
+     * @return the endpoint of the context
+     */
+    public Key getKey() {
+      return key;
+    }
+
+    /**
+     * @return the shared connection context
+     */
+    public ConnectionContext getConnectionContext() {
+      return entry.connectionContext;
+    }
+
+    /**
+     * Returns the context to the registry. Closing a lease more than once has
+     * no effect.
+     */
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        release(entry);
+      }
+    }
+  }
+
+  /**
+   * Identifies a Cloud Foundry endpoint: everything which goes into a
+   * {@link DefaultConnectionContext}.
+   * <p>
+   * The proxy credentials are not serialized, so a key sent to a build agent
+   * goes through the proxy without them.
+   */
+  public static final class Key implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String apiHost;
+    private final Integer port;
+    private final Boolean secure;
+    private final boolean skipSslValidation;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final transient String proxyUsername;
+    private final transient String proxyPassword;
+
+    /**
+     * @param apiHost the api host
+     * @param port the port, or {@code null} for the scheme's default
+     * @param secure whether to use https, or {@code null} for the default
+     * @param skipSslValidation {@code true} to ignore ssl validation errors
+     * @param proxy the proxy to go through, or {@code null}
+     */
+    public Key(String apiHost, Integer port, Boolean secure, boolean skipSslValidation, hudson.ProxyConfiguration proxy) {
+      this.apiHost = apiHost;
+      this.port = port;
+      this.secure = secure;
+      this.skipSslValidation = skipSslValidation;
+      this.proxyHost = proxy == null ? null : proxy.name;
+      this.proxyPort = proxy == null ? 0 : proxy.port;
+      this.proxyUsername = proxy == null ? null : proxy.getUserName();
+      this.proxyPassword = proxy == null ? null : proxy.getPassword();
+    }
+
+    /**
+     * Creates a new, unshared connection context for this endpoint.
+     *
+     * @return the connection context
+     */
+    public DefaultConnectionContext newConnectionContext() {
+      Optional<ProxyConfiguration> proxyConfiguration = proxyHost == null
+              ? Optional.empty()
+              : Optional.of(ProxyConfiguration.builder()
+                      .host(proxyHost)
+                      .port(proxyPort)
+                      .username(Optional.ofNullable(proxyUsername))
+                      .password(Optional.ofNullable(proxyPassword))
+                      .build());
+      DefaultConnectionContext.Builder builder = DefaultConnectionContext.builder()
+              .apiHost(apiHost)
+              .proxyConfiguration(proxyConfiguration)
+              .skipSslValidation(skipSslValidation);
+      if (secure != null) {
+        builder = builder.secure(secure.booleanValue());
+      }
+      if (port != null) {
+        builder = builder.port(port);
+      }
+      return builder.build();
+    }
+
+    /**
+     * @return the url of the api, e.g. {@code https://api.example.com}
+     */
+    public String getApiUrl() {
+      return toString();
+    }
+
+    /**
+     * @return {@code true} if ssl validation errors are ignored
+     */
+    public boolean isSkipSslValidation() {
+      return skipSslValidation;
+    }
+
+    /**
+     * @return the proxy to go through
+     */
+    public Proxy getProxy() {
+      return proxyHost == null ? Proxy.NO_PROXY : new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort));
+    }
+
+    /**
+     * @return the {@code Proxy-Authorization} header for the proxy, or
+     * {@code null} if it needs none
+     */
+    public String getProxyAuthorization() {
+      if (proxyHost == null || proxyUsername == null || proxyUsername.isEmpty()) {
+        return null;
+      }
+      String credentials = proxyUsername + ":" + (proxyPassword == null ? "" : proxyPassword);
+      return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return skipSslValidation == other.skipSslValidation
+              && proxyPort == other.proxyPort
+              && Objects.equals(apiHost, other.apiHost)
+              && Objects.equals(port, other.port)
+              && Objects.equals(secure, other.secure)
+              && Objects.equals(proxyHost, other.proxyHost)
+              && Objects.equals(proxyUsername, other.proxyUsername)
+              && Objects.equals(proxyPassword, other.proxyPassword);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(apiHost, port, secure, skipSslValidation, proxyHost, proxyPort, proxyUsername);
+    }
+
+    @Override
+    public String toString() {
+      return (Boolean.FALSE.equals(secure) ? "http://" : "https://") + apiHost + (port == null ? "" : ":" + port);
+    }
+  }
+
+  /**
+   * Periodically disposes the contexts nobody has used recently.
+   */
+  @Extension
+  public static final class IdleEviction extends PeriodicWork {
+
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      int evicted = get().evictIdle(System.currentTimeMillis());
+      if (evicted > 0) {
+        LOGGER.log(Level.FINE, "Disposed {0} idle Cloud Foundry connection contexts", evicted);
+      }
+    }
+  }
+
+  /**
+   * Disposes all contexts when Jenkins shuts down.
+   */
+  @Terminator
+  public static void shutdown() {
+    get().disposeAll();
+  }
+}
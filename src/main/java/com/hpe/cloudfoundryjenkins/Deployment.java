@@ -0,0 +1,242 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.apache.commons.lang.StringUtils;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.doppler.DopplerClient;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.DefaultCloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+import org.cloudfoundry.reactor.client.ReactorCloudFoundryClient;
+import org.cloudfoundry.reactor.doppler.ReactorDopplerClient;
+import org.cloudfoundry.reactor.uaa.ReactorUaaClient;
+import org.cloudfoundry.uaa.UaaClient;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import reactor.core.publisher.Mono;
+
+/**
+ * The token-expanded settings of a push, and the push itself.
+ * <p>
+ * A deployment needs no run, so it can be sent to the build agent and pushed
+ * from there.
+ */
+class Deployment implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String organization;
+  private final String space;
+  private final List<CloudFoundryPushPublisher.Service> services;
+  private final int servicesParallelism;
+  private final long timeout;
+  private final int pushParallelism;
+  private final String pushFailurePolicy;
+  private final boolean forcePush;
+  private final boolean updateConfigurationOnly;
+  private final int compressionLevel;
+  private final List<String> excludes;
+  private final String pushEngine;
+  private final String deploymentStrategy;
+  private final String promoteFrom;
+
+  /**
+   * @param organization the organization
+   * @param space the space
+   * @param services the services to create before pushing
+   * @param servicesParallelism the maximum number of services to create concurrently
+   * @param timeout the timeout of each application's push, in seconds
+   * @param pushParallelism the maximum number of applications to push concurrently
+   * @param pushFailurePolicy what to do with the other applications once a push failed
+   * @param forcePush {@code true} to push applications even if their manifest
+   * and bits are unchanged
+   * @param updateConfigurationOnly {@code true} to only update the
+   * configuration of applications whose bits are unchanged
+   * @param compressionLevel the compression level of the application archives
+   * @param excludes patterns of files to leave out of application
+   * directories, besides those of their {@code .cfignore}
+   * @param pushEngine {@link V3Push#V3} to push through the v3 API,
+   * {@link DirectPush#DIRECT} to push through the v2 API without
+   * {@code pushManifest}, anything else to push through {@code pushManifest}
+   * @param deploymentStrategy {@link DirectPush#ROLLING} to deploy to running
+   * applications without downtime, anything else to restart them
+   * @param promoteFrom the space to promote the droplets of the applications
+   * from, as {@code space} or {@code organization/space}, or blank to
+   * upload and stage their bits
+   */
+  Deployment(String organization, String space, List<CloudFoundryPushPublisher.Service> services, int servicesParallelism,
+          long timeout, int pushParallelism, String pushFailurePolicy, boolean forcePush, boolean updateConfigurationOnly,
+          int compressionLevel, List<String> excludes, String pushEngine, String deploymentStrategy,
+          String promoteFrom) {
+    this.organization = organization;
+    this.space = space;
+    this.services = new ArrayList<>(services);
+    this.servicesParallelism = servicesParallelism;
+    this.timeout = timeout;
+    this.pushParallelism = pushParallelism;
+    this.pushFailurePolicy = pushFailurePolicy;
+    this.forcePush = forcePush;
+    this.updateConfigurationOnly = updateConfigurationOnly;
+    this.compressionLevel = compressionLevel;
+    this.excludes = new ArrayList<>(excludes);
+    this.pushEngine = pushEngine;
+    this.deploymentStrategy = deploymentStrategy;
+    this.promoteFrom = promoteFrom;
+  }
+
+  /**
+   * Creates the services and pushes the applications.
+   *
+   * @param endpoint the endpoint of the connection context
+   * @param connectionContext the connection context
+   * @param tokenProvider the token provider
+   * @param manifestLoader loads the manifests, while the services are being
+   * created
+   * @param fingerprints the fingerprints of the files pushed before, updated
+   * with the pushed files
+   * @param listener the build listener
+   * @return {@code true} if all services were created and all applications
+   * pushed
+   */
+  boolean push(ConnectionContextRegistry.Key endpoint, ConnectionContext connectionContext, TokenProvider tokenProvider, ManifestLoader manifestLoader,
+      FingerprintCache fingerprints, TaskListener listener) throws IOException, InterruptedException, MacroEvaluationException {
+    CloudFoundryClient client = ReactorCloudFoundryClient.builder()
+        .connectionContext(connectionContext)
+        .tokenProvider(tokenProvider)
+        .build();
+
+    DopplerClient dopplerClient = ReactorDopplerClient.builder()
+        .connectionContext(connectionContext)
+        .tokenProvider(tokenProvider)
+        .build();
+
+    UaaClient uaaClient = ReactorUaaClient.builder()
+        .connectionContext(connectionContext)
+        .tokenProvider(tokenProvider)
+        .build();
+
+    CloudFoundryOperations cloudFoundryOperations = DefaultCloudFoundryOperations.builder()
+        .cloudFoundryClient(client)
+        .dopplerClient(dopplerClient)
+        .uaaClient(uaaClient)
+        .organization(organization)
+        .space(space)
+        .build();
+
+    // Create services in the background, each push only waits for the services it binds
+    ServiceProvisioner serviceProvisioner = new ServiceProvisioner(client, cloudFoundryOperations, listener);
+    Mono<String> spaceId = CloudFoundryUtils.findSpaceId(client, organization, space);
+    Mono<Set<String>> currentServicesNames = serviceProvisioner.findExistingServices(spaceId,
+        services.stream().map(service -> service.name).collect(Collectors.toList()));
+    ServiceProvisioner.Provisioning provisioning = serviceProvisioner.start(services, currentServicesNames, servicesParallelism);
+
+    try {
+      if (!isDirect()) {
+        warnIgnoredOptions(listener.getLogger());
+      }
+      List<ApplicationManifest> manifests = manifestLoader.load();
+      BitsUploader uploader = new BitsUploader(endpoint, connectionContext, tokenProvider, Duration.ofSeconds(timeout));
+      boolean rolling = DirectPush.ROLLING.equals(deploymentStrategy);
+      DirectPush directPush = new DirectPush(client, cloudFoundryOperations, spaceId, uploader, Duration.ofSeconds(timeout), fingerprints, forcePush,
+          updateConfigurationOnly, compressionLevel, excludes, rolling);
+      // droplets can only be copied through the v3 API, whatever the push engine
+      DropletPromotion promotion = StringUtils.isBlank(promoteFrom)
+          ? null
+          : new DropletPromotion(uploader.getController(), promoteFrom, Duration.ofSeconds(timeout));
+      V3Push v3Push = V3Push.V3.equals(pushEngine) || promotion != null
+          ? new V3Push(directPush, uploader, Duration.ofSeconds(timeout), forcePush, updateConfigurationOnly, compressionLevel, rolling, promotion)
+          : null;
+      boolean direct = isDirect();
+      Function<ApplicationManifest, ApplicationBits> bitsOf = manifest -> {
+        ApplicationBits bits = manifestLoader.bitsOf(manifest);
+        return bits == null && direct ? localBitsOf(manifest) : bits;
+      };
+      ApplicationPusher applicationPusher = new ApplicationPusher(cloudFoundryOperations, listener, timeout, pushParallelism, pushFailurePolicy,
+          directPush, v3Push, bitsOf);
+      boolean success = applicationPusher.report(applicationPusher.push(manifests, provisioning));
+      return serviceProvisioner.report(provisioning.awaitAll()) && success;
+    } finally {
+      // stop the services still being created if the push failed or was aborted
+      provisioning.cancel();
+    }
+  }
+
+  /**
+   * @return {@code true} if the applications are uploaded by this plugin,
+   * {@code false} if {@code pushManifest} reads their files itself, which
+   * is the default unless a push needs more than it does
+   */
+  boolean isDirect() {
+    return DirectPush.DIRECT.equals(pushEngine) || V3Push.V3.equals(pushEngine) || DirectPush.ROLLING.equals(deploymentStrategy)
+        || StringUtils.isNotBlank(promoteFrom);
+  }
+
+  /**
+   * Tells which options {@code pushManifest} cannot honour, since it reads and
+   * uploads the application files itself.
+   */
+  private void warnIgnoredOptions(PrintStream log) {
+    String engines = " needs the v2 API (direct upload) or v3 push engine, ";
+    if (!excludes.isEmpty()) {
+      log.println("WARNING: Excluding files" + engines + "pushManifest uploads every file, whatever the .cfignore file.");
+    }
+    if (compressionLevel != ParallelZip.DEFAULT_LEVEL) {
+      log.println("WARNING: The compression level" + engines + "pushManifest compresses the application files itself.");
+    }
+    if (updateConfigurationOnly) {
+      log.println("WARNING: Updating the configuration in place" + engines + "pushManifest pushes every application in full.");
+    }
+  }
+
+  /**
+   * Loads the manifests to push.
+   */
+  interface ManifestLoader {
+
+    /**
+     * @return the manifests
+     */
+    List<ApplicationManifest> load() throws IOException, InterruptedException, MacroEvaluationException;
+
+    /**
+     * @param manifest one of the loaded manifests
+     * @return the bits of the application, or {@code null} if they are read
+     * from the path of the manifest on this machine, which is the default
+     */
+    default ApplicationBits bitsOf(ApplicationManifest manifest) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the bits of an application from the path of its manifest on this
+   * machine, so they can be resource matched with the cached fingerprints.
+   *
+   * @param manifest the manifest
+   * @return the bits, or {@code null} if the path is neither a directory nor
+   * an archive
+   */
+  static ApplicationBits localBitsOf(ApplicationManifest manifest) {
+    Path path = manifest.getPath();
+    if (path != null && (Files.isDirectory(path) || Files.isRegularFile(path) && ApplicationBits.isArchive(path.getFileName().toString()))) {
+      return ApplicationBits.of(new FilePath(path.toFile()));
+    }
+    return null;
+  }
+}
@@ -0,0 +1,854 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.applications.ApplicationEntity;
+import org.cloudfoundry.client.v2.applications.ApplicationInstanceInfo;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
+import org.cloudfoundry.client.v2.applications.ApplicationResource;
+import org.cloudfoundry.client.v2.applications.CreateApplicationRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationRoutesRequest;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.client.v2.routes.RouteEntity;
+import org.cloudfoundry.client.v2.routes.RouteResource;
+import org.cloudfoundry.client.v2.spaces.ListSpaceApplicationsRequest;
+import org.cloudfoundry.client.v2.stacks.ListStacksRequest;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.DeleteApplicationRequest;
+import org.cloudfoundry.operations.applications.RenameApplicationRequest;
+import org.cloudfoundry.operations.applications.RestartApplicationRequest;
+import org.cloudfoundry.operations.applications.Route;
+import org.cloudfoundry.operations.applications.ScaleApplicationRequest;
+import org.cloudfoundry.operations.applications.StartApplicationRequest;
+import org.cloudfoundry.operations.applications.StopApplicationRequest;
+import org.cloudfoundry.operations.domains.Domain;
+import org.cloudfoundry.operations.domains.Status;
+import org.cloudfoundry.operations.routes.MapRouteRequest;
+import org.cloudfoundry.operations.routes.UnmapRouteRequest;
+import org.cloudfoundry.operations.services.BindServiceInstanceRequest;
+import org.cloudfoundry.util.PaginationUtils;
+import reactor.core.publisher.Mono;
+
+/**
+ * Pushes an application by driving the Cloud Controller directly, rather than
+ * through {@code pushManifest}, so the application bits can come from anywhere
+ * (e.g. straight from the build agent) instead of a directory on this machine.
+ * <p>
+ * The application is created or updated from its manifest, its routes are
+ * mapped, its services bound, its bits uploaded, and it is then (re)started.
+ * Only the files which the Cloud Controller does not have yet are uploaded.
+ * <p>
+ * The digest of the manifest and bits is recorded on the application, so an
+ * application which is running with the same manifest and bits already is
+ * left alone.
+ * <p>
+ * With a rolling deployment, a running application is replaced blue-green
+ * instead: it is renamed, the new application is pushed next to it with the
+ * same routes, and the old one is deleted once all the instances of the new
+ * one are running. Should the new application fail to start, it is deleted
+ * and the old one gets its name back.
+ */
+class DirectPush {
+
+  /**
+   * Cloud Controller error code of a service which is already bound to the
+   * application.
+   */
+  private static final int SERVICE_ALREADY_BOUND = 90003;
+
+  /**
+   * Environment variable recording, on the application, the digest of the
+   * manifest and bits it was last pushed with.
+   */
+  static final String DIGEST_VARIABLE = "JENKINS_PUSH_DIGEST";
+
+  /**
+   * Environment variable recording, on the application, the digest of the
+   * bits it was last pushed with.
+   */
+  static final String BITS_DIGEST_VARIABLE = "JENKINS_BITS_DIGEST";
+
+  /**
+   * Push engine which pushes the applications whose path is a directory or an
+   * archive through this class, rather than through {@code pushManifest}.
+   */
+  static final String DIRECT = "direct";
+
+  /**
+   * Deployment strategy which replaces the instances of the application
+   * without downtime.
+   */
+  static final String ROLLING = "rolling";
+
+  /**
+   * Suffix of the name of the application being replaced during a rolling
+   * deployment.
+   */
+  static final String VENERABLE_SUFFIX = "-venerable";
+
+  private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+  private final CloudFoundryClient client;
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final Mono<String> spaceId;
+  private final BitsUploader uploader;
+  private final Duration timeout;
+  private final FingerprintCache fingerprints;
+  private final boolean force;
+  private final boolean configurationOnly;
+  private final int compressionLevel;
+  private final List<String> excludes;
+  private final boolean rolling;
+  private volatile Map<String, String> domains;
+  private volatile String defaultDomain;
+
+  /**
+   * @param client the client to use
+   * @param cloudFoundryOperations the operations to use
+   * @param spaceId the id of the space, looked up once
+   * @param uploader the uploader of the application bits
+   * @param timeout the staging and upload timeout
+   * @param fingerprints the fingerprints of the files pushed before
+   * @param force {@code true} to push applications even if their manifest
+   * and bits are unchanged
+   * @param configurationOnly {@code true} to only update the configuration
+   * of applications whose bits are unchanged
+   * @param compressionLevel the compression level of the application archives
+   * @param excludes patterns of files to leave out of application
+   * directories, besides those of their {@code .cfignore}
+   * @param rolling {@code true} to replace running applications blue-green
+   */
+  DirectPush(CloudFoundryClient client, CloudFoundryOperations cloudFoundryOperations, Mono<String> spaceId, BitsUploader uploader, Duration timeout,
+          FingerprintCache fingerprints, boolean force, boolean configurationOnly, int compressionLevel,
+          List<String> excludes, boolean rolling) {
+    this.client = client;
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.spaceId = spaceId;
+    this.uploader = uploader;
+    this.timeout = timeout;
+    this.fingerprints = fingerprints;
+    this.force = force;
+    this.configurationOnly = configurationOnly;
+    this.compressionLevel = compressionLevel;
+    this.excludes = excludes;
+    this.rolling = rolling;
+  }
+
+  /**
+   * @return {@code true} if running applications are replaced blue-green
+   */
+  boolean isRolling() {
+    return rolling;
+  }
+
+  /**
+   * Pushes an application, unless it is running with the same manifest and
+   * bits already. When only the configuration of a running application
+   * changed, and {@code configurationOnly} is set, only the configuration is
+   * updated.
+   *
+   * @param manifest the manifest of the application
+   * @param bits the application bits
+   * @param log the log to report to
+   * @return what was done
+   */
+  Outcome push(ApplicationManifest manifest, ApplicationBits bits, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    Prepared prepared = prepare(manifest, bits, log);
+    if (rolling) {
+      return pushRolling(manifest, prepared, log);
+    }
+    return push(manifest, prepared, log);
+  }
+
+  /**
+   * Replaces a running application blue-green, or pushes it as usual if it
+   * is not running.
+   */
+  private Outcome pushRolling(ApplicationManifest manifest, Prepared prepared, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    String name = manifest.getName();
+    ApplicationResource existing = findApplication(name);
+    if (existing == null || !"STARTED".equals(existing.getEntity().getState())) {
+      return push(manifest, prepared, log);
+    }
+    Map<String, Object> liveEnvironment = existing.getEntity().getEnvironmentJsons() == null
+            ? Collections.emptyMap()
+            : existing.getEntity().getEnvironmentJsons();
+    if (!force && prepared.digest != null && prepared.digest.equals(liveEnvironment.get(DIGEST_VARIABLE))) {
+      log.println(name + ": unchanged, skipped");
+      return new Outcome(ApplicationPusher.Status.UNCHANGED, Collections.emptyList());
+    }
+    String venerable = name + VENERABLE_SUFFIX;
+    ApplicationResource leftover = findApplication(venerable);
+    if (leftover != null) {
+      log.println("Deleting " + venerable + ", left over by an earlier rolling deployment");
+      cloudFoundryOperations.applications().delete(DeleteApplicationRequest.builder().name(venerable).build()).block();
+    }
+    ApplicationManifest replacement = manifest;
+    if (Boolean.TRUE.equals(manifest.getRandomRoute())) {
+      // keep serving the route chosen when the application was first pushed
+      List<Route> routes = new ArrayList<>();
+      for (RouteSpec route : getRoutes(existing.getMetadata().getId()).values()) {
+        routes.add(Route.builder().route(route.toString()).build());
+      }
+      replacement = ApplicationManifest.builder().from(manifest).randomRoute(null).routes(routes).noRoute(routes.isEmpty() ? Boolean.TRUE : null).build();
+    }
+    log.println("Rolling deployment of " + name + ": the running application is kept as " + venerable + " until the new one is healthy");
+    cloudFoundryOperations.applications().rename(RenameApplicationRequest.builder().name(name).newName(venerable).build()).block();
+    try {
+      // the new application shares the routes, the router only sends it requests once its instances are healthy
+      push(replacement, prepared, log);
+      awaitHealthy(findApplication(name).getMetadata().getId(), name,
+              manifest.getTimeout() == null ? timeout : Duration.ofSeconds(manifest.getTimeout()), log);
+    } catch (IOException | InterruptedException | TimeoutException | RuntimeException e) {
+      log.println("Rolling deployment of " + name + " failed, rolling back to the running application");
+      try {
+        if (findApplication(name) != null) {
+          cloudFoundryOperations.applications().delete(DeleteApplicationRequest.builder().name(name).build()).block();
+        }
+        cloudFoundryOperations.applications().rename(RenameApplicationRequest.builder().name(venerable).newName(name).build()).block();
+      } catch (RuntimeException rollback) {
+        log.println("ERROR: Rolling back failed, the running application is left as " + venerable + ": " + rollback.getMessage());
+      }
+      throw e;
+    }
+    log.println("Retiring " + venerable);
+    cloudFoundryOperations.applications().delete(DeleteApplicationRequest.builder().name(venerable).build()).block();
+    return new Outcome(ApplicationPusher.Status.PUSHED, Collections.emptyList());
+  }
+
+  /**
+   * Waits until all the instances of an application are running.
+   *
+   * @param applicationId the id of the application
+   * @param name the name of the application
+   * @param startupTimeout how long to wait
+   * @param log the log to report to
+   */
+  private void awaitHealthy(String applicationId, String name, Duration startupTimeout, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    long deadline = System.currentTimeMillis() + startupTimeout.toMillis();
+    while (true) {
+      int running = 0;
+      int pending = 0;
+      for (ApplicationInstanceInfo instance : client.applicationsV2().instances(ApplicationInstancesRequest.builder()
+              .applicationId(applicationId)
+              .build())
+              .block()
+              .getInstances().values()) {
+        if ("RUNNING".equals(instance.getState())) {
+          running++;
+        } else if ("CRASHED".equals(instance.getState())) {
+          throw new IOException("An instance of " + name + " crashed on startup");
+        } else {
+          pending++;
+        }
+      }
+      if (pending == 0) {
+        log.println(name + ": " + running + " instances running and healthy");
+        return;
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        throw new TimeoutException(name + " has " + running + " of " + (running + pending) + " instances running after "
+                + startupTimeout.getSeconds() + " seconds");
+      }
+      Thread.sleep(POLL_INTERVAL);
+    }
+  }
+
+  private Outcome push(ApplicationManifest manifest, Prepared prepared, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    String name = manifest.getName();
+    ApplicationBits included = prepared.bits;
+    Map<String, FingerprintCache.Fingerprint> files = prepared.files;
+    String bitsDigest = prepared.bitsDigest;
+    String digest = prepared.digest;
+
+    ApplicationResource existing = findApplication(name);
+    boolean running = existing != null && "STARTED".equals(existing.getEntity().getState());
+    Map<String, Object> liveEnvironment = existing == null || existing.getEntity().getEnvironmentJsons() == null
+            ? Collections.emptyMap()
+            : existing.getEntity().getEnvironmentJsons();
+    if (!force && running && digest != null && digest.equals(liveEnvironment.get(DIGEST_VARIABLE))) {
+      log.println(name + ": unchanged, skipped");
+      return new Outcome(ApplicationPusher.Status.UNCHANGED, Collections.emptyList());
+    }
+    Map<String, Object> environment = new LinkedHashMap<>();
+    if (manifest.getEnvironmentVariables() != null) {
+      environment.putAll(manifest.getEnvironmentVariables());
+    }
+    if (digest != null) {
+      environment.put(DIGEST_VARIABLE, digest);
+      environment.put(BITS_DIGEST_VARIABLE, bitsDigest);
+    }
+    if (configurationOnly && !force && running && bitsDigest != null && bitsDigest.equals(liveEnvironment.get(BITS_DIGEST_VARIABLE))
+            && !needsStaging(manifest, existing.getEntity())) {
+      return updateConfiguration(manifest, existing, environment, log);
+    }
+    String applicationId;
+    if (existing == null) {
+      log.println("Creating application " + name);
+      applicationId = client.applicationsV2().create(CreateApplicationRequest.builder()
+              .name(name)
+              .spaceId(getSpaceId())
+              .memory(manifest.getMemory())
+              .diskQuota(manifest.getDisk())
+              .instances(manifest.getInstances())
+              .buildpack(manifest.getBuildpack())
+              .command(manifest.getCommand())
+              .stackId(getStackId(manifest.getStack()))
+              .environmentJsons(environment)
+              .healthCheckType(manifest.getHealthCheckType() == null ? null : manifest.getHealthCheckType().name().toLowerCase(Locale.ROOT))
+              .healthCheckTimeout(manifest.getTimeout())
+              .build())
+              .block()
+              .getMetadata().getId();
+    } else {
+      log.println("Updating application " + name);
+      applicationId = existing.getMetadata().getId();
+      if ("STARTED".equals(existing.getEntity().getState())) {
+        cloudFoundryOperations.applications().stop(StopApplicationRequest.builder().name(name).build()).block();
+      }
+      client.applicationsV2().update(UpdateApplicationRequest.builder()
+              .applicationId(applicationId)
+              .memory(manifest.getMemory())
+              .diskQuota(manifest.getDisk())
+              .instances(manifest.getInstances())
+              .buildpack(manifest.getBuildpack())
+              .command(manifest.getCommand())
+              .stackId(getStackId(manifest.getStack()))
+              .environmentJsons(environment)
+              .healthCheckType(manifest.getHealthCheckType() == null ? null : manifest.getHealthCheckType().name().toLowerCase(Locale.ROOT))
+              .healthCheckTimeout(manifest.getTimeout())
+              .build())
+              .block();
+    }
+    // a random route is only ever chosen once
+    if (existing == null || !Boolean.TRUE.equals(manifest.getRandomRoute()) || getRoutes(applicationId).isEmpty()) {
+      mapRoutes(manifest, log);
+    }
+    bindServices(manifest, log);
+    Map<String, FingerprintCache.Fingerprint> matched = match(files, log);
+    ApplicationBits unmatched = matched.isEmpty() ? included : included.without(matched.keySet());
+    uploader.upload(applicationId, unmatched.withCompressionLevel(compressionLevel), matched, timeout, log);
+    log.println("Starting application " + name);
+    cloudFoundryOperations.applications().start(StartApplicationRequest.builder()
+            .name(name)
+            .stagingTimeout(timeout)
+            .startupTimeout(manifest.getTimeout() == null ? timeout : Duration.ofSeconds(manifest.getTimeout()))
+            .build())
+            .block();
+    return new Outcome(ApplicationPusher.Status.PUSHED, Collections.emptyList());
+  }
+
+  /**
+   * Leaves the excluded files out of the bits of an application, and
+   * fingerprints and digests them.
+   *
+   * @param manifest the manifest of the application
+   * @param bits the application bits
+   * @param log the log to report to
+   * @return the bits to push and their digests
+   */
+  Prepared prepare(ApplicationManifest manifest, ApplicationBits bits, PrintStream log) throws IOException, InterruptedException {
+    String name = manifest.getName();
+    ApplicationBits included = bits.withExcludes(excludes);
+    Map<String, FingerprintCache.Fingerprint> cached = fingerprints.get(name);
+    FingerprintCache.Scan scan = included.fingerprint(cached);
+    Map<String, FingerprintCache.Fingerprint> files = scan == null ? null : scan.files;
+    if (scan != null) {
+      if (!scan.exclusions.isEmpty()) {
+        log.println("Excluded " + scan.exclusions + " of " + name + " (.cfignore and step excludes)");
+      }
+      long hits = files.entrySet().stream().filter(file -> file.getValue().equals(cached.get(file.getKey()))).count();
+      log.println(String.format(Locale.ROOT, "Fingerprinted %d files, %d (%.0f%%) from the cache",
+              files.size(), hits, files.isEmpty() ? 0.0 : 100.0 * hits / files.size()));
+      fingerprints.put(name, files);
+    }
+    String bitsDigest = bitsDigest(files, files == null ? included.digest() : null);
+    return new Prepared(included, files, bitsDigest, bitsDigest == null ? null : digest(manifest, bitsDigest));
+  }
+
+  /**
+   * Asks the Cloud Controller which of the application files it has already.
+   *
+   * @param files the fingerprints of the application files, or {@code null}
+   * if the bits could not be fingerprinted
+   * @param log the log to report to
+   * @return the files the Cloud Controller has, by relative path
+   */
+  Map<String, FingerprintCache.Fingerprint> match(Map<String, FingerprintCache.Fingerprint> files, PrintStream log) throws IOException {
+    if (files == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, FingerprintCache.Fingerprint> matched = uploader.match(files);
+    log.println(String.format(Locale.ROOT, "%d of %d files (%d bytes) already known to Cloud Foundry",
+            matched.size(), files.size(), matched.values().stream().mapToLong(file -> file.size).sum()));
+    return matched;
+  }
+
+  /**
+   * @return {@code true} if the buildpack or stack of the manifest differ
+   * from the ones of the running application, so its droplet is outdated
+   */
+  private boolean needsStaging(ApplicationManifest manifest, ApplicationEntity live) {
+    return manifest.getBuildpack() != null && !manifest.getBuildpack().equals(live.getBuildpack())
+            || manifest.getStack() != null && !getStackId(manifest.getStack()).equals(live.getStackId());
+  }
+
+  /**
+   * Brings the configuration of a running application in line with its
+   * manifest, with as few calls as possible: updating the environment,
+   * mapping and unmapping routes, scaling in place, and restarting at most
+   * once, only when a change needs it.
+   */
+  private Outcome updateConfiguration(ApplicationManifest manifest, ApplicationResource existing, Map<String, Object> environment, PrintStream log) {
+    String name = manifest.getName();
+    ApplicationEntity live = existing.getEntity();
+    log.println("Application files of " + name + " are unchanged, updating its configuration only");
+    List<String> operations = new ArrayList<>();
+
+    boolean restart = false;
+    if (!userVariables(environment).equals(userVariables(live.getEnvironmentJsons()))) {
+      operations.add("updated environment");
+      restart = true;
+    }
+    if (differs(manifest.getCommand(), live.getCommand())) {
+      operations.add("updated command");
+      restart = true;
+    }
+    String healthCheckType = manifest.getHealthCheckType() == null ? null : manifest.getHealthCheckType().name().toLowerCase(Locale.ROOT);
+    if (differs(healthCheckType, live.getHealthCheckType()) || differs(manifest.getTimeout(), live.getHealthCheckTimeout())) {
+      operations.add("updated health check");
+      restart = true;
+    }
+    // always record the new digest
+    client.applicationsV2().update(UpdateApplicationRequest.builder()
+            .applicationId(existing.getMetadata().getId())
+            .command(manifest.getCommand())
+            .environmentJsons(environment)
+            .healthCheckType(healthCheckType)
+            .healthCheckTimeout(manifest.getTimeout())
+            .build())
+            .block();
+
+    Map<String, RouteSpec> current = getRoutes(existing.getMetadata().getId());
+    // a random route is only ever chosen once
+    if (!Boolean.TRUE.equals(manifest.getRandomRoute()) || current.isEmpty()) {
+      Map<String, RouteSpec> desired = new LinkedHashMap<>();
+      for (RouteSpec route : desiredRoutes(manifest)) {
+        desired.put(route.toString(), route);
+      }
+      for (RouteSpec route : desired.values()) {
+        if (!current.containsKey(route.toString())) {
+          mapRoute(name, route, log);
+          operations.add("mapped route " + route);
+        }
+      }
+      for (RouteSpec route : current.values()) {
+        if (!desired.containsKey(route.toString())) {
+          log.println("Unmapping route " + route);
+          cloudFoundryOperations.routes().unmap(UnmapRouteRequest.builder()
+                  .applicationName(name)
+                  .host(route.host)
+                  .domain(route.domain)
+                  .path(route.path)
+                  .build())
+                  .block();
+          operations.add("unmapped route " + route);
+        }
+      }
+    }
+
+    for (String service : bindServices(manifest, log)) {
+      operations.add("bound service " + service);
+      restart = true;
+    }
+
+    // scaling memory or disk restarts the application, last so the restart
+    // picks up the other changes too
+    Integer instances = differs(manifest.getInstances(), live.getInstances()) ? manifest.getInstances() : null;
+    Integer memory = differs(manifest.getMemory(), live.getMemory()) ? manifest.getMemory() : null;
+    Integer disk = differs(manifest.getDisk(), live.getDiskQuota()) ? manifest.getDisk() : null;
+    if (instances != null || memory != null || disk != null) {
+      cloudFoundryOperations.applications().scale(ScaleApplicationRequest.builder()
+              .name(name)
+              .instances(instances)
+              .memoryLimit(memory)
+              .diskLimit(disk)
+              .stagingTimeout(timeout)
+              .startupTimeout(timeout)
+              .build())
+              .block();
+      operations.add("scaled to" + (instances == null ? "" : " " + instances + " instances")
+              + (memory == null ? "" : " " + memory + "M memory") + (disk == null ? "" : " " + disk + "M disk"));
+    }
+    if (restart && memory == null && disk == null) {
+      cloudFoundryOperations.applications().restart(RestartApplicationRequest.builder()
+              .name(name)
+              .stagingTimeout(timeout)
+              .startupTimeout(manifest.getTimeout() == null ? timeout : Duration.ofSeconds(manifest.getTimeout()))
+              .build())
+              .block();
+      operations.add("restarted");
+    }
+    log.println("Updated configuration of " + name + ": " + (operations.isEmpty() ? "nothing to do" : String.join(", ", operations)));
+    return new Outcome(ApplicationPusher.Status.UPDATED, operations);
+  }
+
+  private static boolean differs(Object desired, Object live) {
+    return desired != null && !desired.equals(live);
+  }
+
+  /**
+   * @return the environment variables, without the ones recorded by this
+   * plugin, as strings
+   */
+  private static Map<String, String> userVariables(Map<String, ?> environment) {
+    Map<String, String> variables = new TreeMap<>();
+    if (environment != null) {
+      for (Map.Entry<String, ?> variable : environment.entrySet()) {
+        if (!DIGEST_VARIABLE.equals(variable.getKey()) && !BITS_DIGEST_VARIABLE.equals(variable.getKey())) {
+          variables.put(variable.getKey(), String.valueOf(variable.getValue()));
+        }
+      }
+    }
+    return variables;
+  }
+
+  /**
+   * Lists the routes of the application only, rather than every route of
+   * the space.
+   *
+   * @return the routes mapped to the application, by their
+   * {@link RouteSpec#toString()}
+   */
+  private Map<String, RouteSpec> getRoutes(String applicationId) {
+    Map<String, RouteSpec> routes = new LinkedHashMap<>();
+    for (RouteResource route : PaginationUtils.requestClientV2Resources(page -> client.applicationsV2().listRoutes(ListApplicationRoutesRequest.builder()
+            .applicationId(applicationId)
+            .page(page)
+            .build()))
+            .collectList().block()) {
+      RouteEntity entity = route.getEntity();
+      RouteSpec spec = new RouteSpec(entity.getHost(), getDomainNames().get(entity.getDomainId()), entity.getPath());
+      routes.put(spec.toString(), spec);
+    }
+    return routes;
+  }
+
+  /**
+   * Digests the bits.
+   *
+   * @param files the fingerprints of the application files, or {@code null}
+   * @param archiveDigest the digest of the bits if they could not be
+   * fingerprinted, or {@code null}
+   * @return the digest, or {@code null} if the bits could not be digested
+   */
+  static String bitsDigest(Map<String, FingerprintCache.Fingerprint> files, String archiveDigest) {
+    if (files == null) {
+      return archiveDigest;
+    }
+    MessageDigest digest = newDigest();
+    for (Map.Entry<String, FingerprintCache.Fingerprint> file : new TreeMap<>(files).entrySet()) {
+      update(digest, file.getKey() + '\t' + file.getValue().sha1 + '\t' + file.getValue().mode);
+    }
+    return toHex(digest);
+  }
+
+  /**
+   * Digests everything a push depends on: the manifest, except for its path,
+   * and the bits.
+   *
+   * @param manifest the manifest
+   * @param bitsDigest the digest of the bits
+   * @return the digest
+   */
+  static String digest(ApplicationManifest manifest, String bitsDigest) {
+    MessageDigest digest = newDigest();
+    update(digest, ApplicationManifest.builder().from(manifest).path(null).build().toString());
+    update(digest, bitsDigest);
+    return toHex(digest);
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(MessageDigest digest) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  private static void update(MessageDigest digest, String text) {
+    digest.update(text.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) '\n');
+  }
+
+  private ApplicationResource findApplication(String name) {
+    List<ApplicationResource> resources = client.spaces().listApplications(ListSpaceApplicationsRequest.builder()
+            .spaceId(getSpaceId())
+            .name(name)
+            .page(1)
+            .build())
+            .block()
+            .getResources();
+    return resources.isEmpty() ? null : resources.get(0);
+  }
+
+  /**
+   * @return the id of the space
+   */
+  String getSpaceId() {
+    return spaceId.block();
+  }
+
+  private String getStackId(String stack) {
+    if (stack == null) {
+      return null;
+    }
+    return client.stacks().list(ListStacksRequest.builder().name(stack).page(1).build())
+            .block()
+            .getResources().stream()
+            .findFirst()
+            .orElseThrow(() -> new IllegalArgumentException("Stack " + stack + " does not exist"))
+            .getMetadata().getId();
+  }
+
+  /**
+   * The domains of the organization, private domains first, as
+   * {@code pushManifest} orders them.
+   */
+  private List<String> getDomains() {
+    return new ArrayList<>(getDomainNames().values());
+  }
+
+  /**
+   * @return the names of the domains of the organization, by id
+   */
+  private Map<String, String> getDomainNames() {
+    if (domains == null) {
+      Map<String, String> names = new LinkedHashMap<>();
+      String shared = null;
+      for (Domain domain : cloudFoundryOperations.domains().list().collectList().block()) {
+        names.put(domain.getId(), domain.getName());
+        if (shared == null && domain.getStatus() == Status.SHARED) {
+          shared = domain.getName();
+        }
+      }
+      defaultDomain = shared;
+      domains = names;
+    }
+    return domains;
+  }
+
+  /**
+   * @return the domain of the routes a manifest does not name a domain for:
+   * the first shared domain, as with {@code pushManifest}
+   */
+  private String getDefaultDomain() {
+    getDomainNames();
+    if (defaultDomain == null) {
+      throw new IllegalArgumentException("No default domain found");
+    }
+    return defaultDomain;
+  }
+
+  private void mapRoutes(ApplicationManifest manifest, PrintStream log) {
+    for (RouteSpec route : desiredRoutes(manifest)) {
+      mapRoute(manifest.getName(), route, log);
+    }
+  }
+
+  /**
+   * @return the routes the manifest asks for
+   */
+  List<RouteSpec> desiredRoutes(ApplicationManifest manifest) {
+    List<RouteSpec> routes = new ArrayList<>();
+    if (Boolean.TRUE.equals(manifest.getNoRoute())) {
+      return routes;
+    }
+    if (manifest.getRoutes() != null && !manifest.getRoutes().isEmpty()) {
+      for (Route route : manifest.getRoutes()) {
+        routes.add(parseRoute(route.getRoute()));
+      }
+      return routes;
+    }
+    List<String> routeDomains = manifest.getDomains() == null || manifest.getDomains().isEmpty()
+            ? Collections.singletonList(getDefaultDomain())
+            : manifest.getDomains();
+    List<String> hosts;
+    if (Boolean.TRUE.equals(manifest.getNoHostname())) {
+      hosts = Collections.singletonList(null);
+    } else if (manifest.getHosts() != null && !manifest.getHosts().isEmpty()) {
+      hosts = manifest.getHosts();
+    } else if (Boolean.TRUE.equals(manifest.getRandomRoute())) {
+      hosts = Collections.singletonList(manifest.getName() + "-" + UUID.randomUUID().toString().substring(0, 8));
+    } else {
+      hosts = Collections.singletonList(manifest.getName());
+    }
+    for (String domain : routeDomains) {
+      for (String host : hosts) {
+        routes.add(new RouteSpec(host, domain, manifest.getRoutePath()));
+      }
+    }
+    return routes;
+  }
+
+  private RouteSpec parseRoute(String route) {
+    String path = null;
+    int slash = route.indexOf('/');
+    if (slash >= 0) {
+      path = route.substring(slash);
+      route = route.substring(0, slash);
+    }
+    List<String> candidates = new ArrayList<>(getDomains());
+    candidates.sort(Comparator.comparingInt(String::length).reversed());
+    for (String domain : candidates) {
+      if (route.equals(domain)) {
+        return new RouteSpec(null, domain, path);
+      }
+      if (route.endsWith("." + domain)) {
+        return new RouteSpec(route.substring(0, route.length() - domain.length() - 1), domain, path);
+      }
+    }
+    throw new IllegalArgumentException("No domain of the organization matches route " + route);
+  }
+
+  private void mapRoute(String applicationName, RouteSpec route, PrintStream log) {
+    log.println("Mapping route " + route);
+    cloudFoundryOperations.routes().map(MapRouteRequest.builder()
+            .applicationName(applicationName)
+            .host(route.host)
+            .domain(route.domain)
+            .path(route.path)
+            .build())
+            .block();
+  }
+
+  /**
+   * @return the services which were not bound yet
+   */
+  private List<String> bindServices(ApplicationManifest manifest, PrintStream log) {
+    List<String> bound = new ArrayList<>();
+    if (manifest.getServices() == null) {
+      return bound;
+    }
+    for (String service : manifest.getServices()) {
+      try {
+        cloudFoundryOperations.services().bind(BindServiceInstanceRequest.builder()
+                .applicationName(manifest.getName())
+                .serviceInstanceName(service)
+                .build())
+                .block();
+        log.println("Bound service " + service);
+        bound.add(service);
+      } catch (ClientV2Exception e) {
+        if (e.getCode() == null || e.getCode() != SERVICE_ALREADY_BOUND) {
+          throw e;
+        }
+      }
+    }
+    return bound;
+  }
+
+  /**
+   * A route, as host, domain and path.
+   */
+  static final class RouteSpec {
+
+    final String host;
+    final String domain;
+    final String path;
+
+    RouteSpec(String host, String domain, String path) {
+      this.host = host == null || host.isEmpty() ? null : host;
+      this.domain = domain;
+      this.path = path == null || path.isEmpty() ? null : path;
+    }
+
+    @Override
+    public String toString() {
+      return (host == null ? "" : host + ".") + domain + (path == null ? "" : path);
+    }
+  }
+
+  /**
+   * The bits of an application, ready to push.
+   */
+  static final class Prepared {
+
+    /**
+     * The bits, without the excluded files.
+     */
+    final ApplicationBits bits;
+
+    /**
+     * The fingerprints of the files, or {@code null} if the bits could not
+     * be fingerprinted.
+     */
+    final Map<String, FingerprintCache.Fingerprint> files;
+
+    /**
+     * The digest of the bits, or {@code null} if they could not be
+     * digested.
+     */
+    final String bitsDigest;
+
+    /**
+     * The digest of the manifest and bits, or {@code null} if the bits could
+     * not be digested.
+     */
+    final String digest;
+
+    Prepared(ApplicationBits bits, Map<String, FingerprintCache.Fingerprint> files, String bitsDigest, String digest) {
+      this.bits = bits;
+      this.files = files;
+      this.bitsDigest = bitsDigest;
+      this.digest = digest;
+    }
+  }
+
+  /**
+   * What a push did to an application.
+   */
+  static final class Outcome {
+
+    final ApplicationPusher.Status status;
+
+    /**
+     * The operations of a configuration update.
+     */
+    final List<String> operations;
+
+    Outcome(ApplicationPusher.Status status, List<String> operations) {
+      this.status = status;
+      this.operations = operations;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import hudson.Util;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Promotes the droplets of applications from another space, instead of
+ * uploading and staging their bits again.
+ * <p>
+ * The current droplet of the application by the same name in the source
+ * space is copied by the Cloud Controller into the target application, so
+ * nothing goes through Jenkins and no buildpack runs. The same bits are
+ * then running in both spaces, which is what a pipeline promoting a build
+ * from one environment to the next wants anyway.
+ */
+class DropletPromotion {
+
+  private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+  private final CloudController controller;
+  private final String organization;
+  private final String space;
+  private final Duration timeout;
+  private volatile String sourceSpaceId;
+
+  /**
+   * @param controller the Cloud Controller of both spaces
+   * @param source the source space, as {@code space} in the organization of
+   * the target space, or {@code organization/space}
+   * @param timeout how long to wait for the droplets to be copied
+   */
+  DropletPromotion(CloudController controller, String source, Duration timeout) {
+    this.controller = controller;
+    String[] parts = parseSource(source);
+    this.organization = parts[0];
+    this.space = parts[1];
+    this.timeout = timeout;
+  }
+
+  /**
+   * @param source {@code space} or {@code organization/space}
+   * @return the organization, or {@code null} for the one of the target
+   * space, and the space
+   * @throws IllegalArgumentException if the source names no space
+   */
+  static String[] parseSource(String source) {
+    String trimmed = source == null ? "" : source.trim();
+    int slash = trimmed.indexOf('/');
+    String organization = slash < 0 ? null : trimmed.substring(0, slash).trim();
+    String space = trimmed.substring(slash + 1).trim();
+    if (space.isEmpty() || organization != null && organization.isEmpty()) {
+      throw new IllegalArgumentException("Invalid space to promote droplets from: " + source);
+    }
+    return new String[]{organization, space};
+  }
+
+  /**
+   * @return the source space, as configured
+   */
+  String getSource() {
+    return organization == null ? space : organization + "/" + space;
+  }
+
+  /**
+   * Finds the current droplet of an application in the source space.
+   *
+   * @param name the name of the application
+   * @param targetSpaceId the id of the target space
+   * @return the droplet
+   * @throws IOException if the source application has no droplet
+   */
+  JsonNode findDroplet(String name, String targetSpaceId) throws IOException {
+    JsonNode apps = controller.get("/v3/apps?names=" + Util.rawEncode(name) + "&space_guids=" + getSourceSpaceId(targetSpaceId)).path("resources");
+    if (apps.size() == 0) {
+      throw new IOException("There is no application " + name + " in " + getSource() + " to promote");
+    }
+    try {
+      return controller.get("/v3/apps/" + apps.get(0).path("guid").asText() + "/droplets/current");
+    } catch (IOException e) {
+      throw new IOException("Application " + name + " in " + getSource() + " has no droplet to promote", e);
+    }
+  }
+
+  /**
+   * Copies a droplet into an application and waits until it is ready.
+   *
+   * @param droplet the droplet, from {@link #findDroplet}
+   * @param applicationId the id of the target application
+   * @param name the name of the application
+   * @param log the log to report to
+   * @return the id of the copy
+   */
+  String copy(JsonNode droplet, String applicationId, String name, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    log.println("Promoting droplet of " + name + " from " + getSource());
+    long start = System.nanoTime();
+    ObjectNode request = CloudController.MAPPER.createObjectNode();
+    request.putObject("relationships").putObject("app").putObject("data").put("guid", applicationId);
+    JsonNode copy = controller.send("POST", "/v3/droplets?source_guid=" + droplet.path("guid").asText(), request);
+    long deadline = System.currentTimeMillis() + timeout.toMillis();
+    while (true) {
+      String state = copy.path("state").asText();
+      if ("STAGED".equals(state)) {
+        break;
+      }
+      if ("FAILED".equals(state) || "EXPIRED".equals(state)) {
+        throw new IOException("Copying the droplet of " + name + " failed: " + copy.path("error").asText(state));
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        throw new TimeoutException("Droplet of " + name + " still " + state.toLowerCase(Locale.ROOT) + " after " + timeout.getSeconds() + " seconds");
+      }
+      Thread.sleep(POLL_INTERVAL);
+      copy = controller.get("/v3/droplets/" + copy.path("guid").asText());
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    Long staging = stagingMillis(droplet);
+    log.println(String.format(Locale.ROOT, "Promoted droplet of %s in %.1fs%s", name, elapsed / 1000.0, staging == null ? ""
+            : String.format(Locale.ROOT, ", instead of %.1fs of staging in %s (%.1fs saved, not counting the upload)",
+                    staging / 1000.0, getSource(), Math.max(staging - elapsed, 0) / 1000.0)));
+    return copy.path("guid").asText();
+  }
+
+  /**
+   * @param droplet a droplet
+   * @return how long the build of the droplet took, or {@code null} if that
+   * is not known
+   */
+  private Long stagingMillis(JsonNode droplet) {
+    try {
+      String appId = droplet.path("links").path("app").path("href").asText().replaceFirst(".*/", "");
+      for (JsonNode build : controller.get("/v3/builds?app_guids=" + appId + "&order_by=-created_at").path("resources")) {
+        if (droplet.path("guid").asText().equals(build.path("droplet").path("guid").asText())) {
+          return buildMillis(build);
+        }
+      }
+    } catch (IOException e) {
+      // only needed for the report
+    }
+    return null;
+  }
+
+  /**
+   * @param build a build
+   * @return how long the build took, or {@code null} if its timestamps
+   * cannot be read
+   */
+  static Long buildMillis(JsonNode build) {
+    try {
+      return Duration.between(Instant.parse(build.path("created_at").asText()), Instant.parse(build.path("updated_at").asText())).toMillis();
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  private String getSourceSpaceId(String targetSpaceId) throws IOException {
+    if (sourceSpaceId == null) {
+      String organizationId;
+      if (organization == null) {
+        organizationId = controller.get("/v3/spaces/" + targetSpaceId).path("relationships").path("organization").path("data").path("guid").asText();
+      } else {
+        JsonNode organizations = controller.get("/v3/organizations?names=" + Util.rawEncode(organization)).path("resources");
+        if (organizations.size() == 0) {
+          throw new IOException("There is no organization " + organization + " to promote droplets from");
+        }
+        organizationId = organizations.get(0).path("guid").asText();
+      }
+      JsonNode spaces = controller.get("/v3/spaces?names=" + Util.rawEncode(space) + "&organization_guids=" + organizationId).path("resources");
+      if (spaces.size() == 0) {
+        throw new IOException("There is no space " + getSource() + " to promote droplets from");
+      }
+      sourceSpaceId = spaces.get(0).path("guid").asText();
+    }
+    return sourceSpaceId;
+  }
+}
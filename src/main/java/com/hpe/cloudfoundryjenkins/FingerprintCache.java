@@ -0,0 +1,371 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.Job;
+import hudson.remoting.VirtualChannel;
+import hudson.util.AtomicFileWriter;
+import hudson.util.FileVisitor;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * SHA-1 fingerprints of the application files pushed by a job, kept alongside
+ * the job between builds.
+ * <p>
+ * A fingerprint is reused as long as the size and last modified time of its
+ * file are unchanged, so only the files which changed since the previous push
+ * are hashed again. Fingerprints are kept per application, by path relative
+ * to the application directory.
+ * <p>
+ * The file holds one fingerprint per line, in tab-separated fields whose
+ * backslashes, tabs and line breaks are escaped with a backslash. Only the
+ * applications fingerprinted by the last push are written back, so renamed or
+ * removed applications and files do not linger.
+ */
+class FingerprintCache implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Name of the file holding the fingerprints, in the job directory.
+   */
+  static final String FILE_NAME = "cloudfoundry-fingerprints.txt";
+
+  private final transient File file;
+  private final Map<String, Map<String, Fingerprint>> applications = new HashMap<>();
+  private final Set<String> fingerprinted = new HashSet<>();
+
+  private FingerprintCache(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Loads the fingerprints of a job.
+   *
+   * @param job the job
+   * @return the fingerprints of the previous pushes of the job
+   */
+  static FingerprintCache load(Job<?, ?> job) {
+    return load(new File(job.getRootDir(), FILE_NAME));
+  }
+
+  /**
+   * Loads fingerprints from a file. A missing or unreadable file gives an
+   * empty cache.
+   *
+   * @param file the file
+   * @return the fingerprints
+   */
+  static FingerprintCache load(File file) {
+    FingerprintCache cache = new FingerprintCache(file);
+    if (file.isFile()) {
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          String[] fields = line.split("\t", -1);
+          if (fields.length == 6) {
+            cache.applications.computeIfAbsent(unescape(fields[0]), application -> new HashMap<>())
+                    .put(unescape(fields[1]), new Fingerprint(Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], fields[5]));
+          }
+        }
+      } catch (IOException | NumberFormatException e) {
+        // only a cache: start over
+        cache.applications.clear();
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * @param application the name of the application
+   * @return the fingerprints of the files of the application, by relative
+   * path
+   */
+  synchronized Map<String, Fingerprint> get(String application) {
+    return new HashMap<>(applications.getOrDefault(application, new HashMap<>()));
+  }
+
+  /**
+   * Replaces the fingerprints of an application.
+   *
+   * @param application the name of the application
+   * @param fingerprints the fingerprints of the files of the application, by
+   * relative path
+   */
+  synchronized void put(String application, Map<String, Fingerprint> fingerprints) {
+    applications.put(application, new HashMap<>(fingerprints));
+    fingerprinted.add(application);
+  }
+
+  /**
+   * Replaces the fingerprints of the applications of another cache, e.g. one
+   * which was sent to the build agent and updated there.
+   *
+   * @param other the other cache
+   */
+  void putAll(FingerprintCache other) {
+    Map<String, Map<String, Fingerprint>> updated = new HashMap<>();
+    synchronized (other) {
+      for (String application : other.fingerprinted) {
+        updated.put(application, other.applications.get(application));
+      }
+    }
+    synchronized (this) {
+      applications.putAll(updated);
+      fingerprinted.addAll(updated.keySet());
+    }
+  }
+
+  /**
+   * Writes the fingerprints of the applications fingerprinted since the
+   * cache was loaded back to the job directory, dropping the others. The
+   * file is left as it is if no application was fingerprinted, e.g. when the
+   * push failed before any.
+   */
+  synchronized void save() throws IOException {
+    if (file == null || fingerprinted.isEmpty()) {
+      return;
+    }
+    AtomicFileWriter writer = new AtomicFileWriter(file);
+    try {
+      for (String application : fingerprinted) {
+        for (Map.Entry<String, Fingerprint> entry : applications.get(application).entrySet()) {
+          Fingerprint fingerprint = entry.getValue();
+          writer.write(escape(application) + '\t' + escape(entry.getKey()) + '\t' + fingerprint.size + '\t'
+                  + fingerprint.lastModified + '\t' + fingerprint.sha1 + '\t' + fingerprint.mode + '\n');
+        }
+      }
+      writer.commit();
+    } finally {
+      writer.abort();
+    }
+  }
+
+  /**
+   * @return the field, with its backslashes, tabs and line breaks escaped
+   */
+  static String escape(String field) {
+    StringBuilder escaped = new StringBuilder(field.length());
+    for (char c : field.toCharArray()) {
+      switch (c) {
+        case '\\':
+          escaped.append("\\\\");
+          break;
+        case '\t':
+          escaped.append("\\t");
+          break;
+        case '\n':
+          escaped.append("\\n");
+          break;
+        case '\r':
+          escaped.append("\\r");
+          break;
+        default:
+          escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  /**
+   * @return the field {@link #escape} escaped
+   */
+  static String unescape(String field) {
+    StringBuilder unescaped = new StringBuilder(field.length());
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\' && i + 1 < field.length()) {
+        c = field.charAt(++i);
+        c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+      }
+      unescaped.append(c);
+    }
+    return unescaped.toString();
+  }
+
+  /**
+   * The fingerprint of a file.
+   */
+  static final class Fingerprint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final long size;
+    final long lastModified;
+    final String sha1;
+    final String mode;
+
+    Fingerprint(long size, long lastModified, String sha1, String mode) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.sha1 = sha1;
+      this.mode = mode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Fingerprint that = (Fingerprint) o;
+      return size == that.size && lastModified == that.lastModified && sha1.equals(that.sha1) && mode.equals(that.mode);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(size, lastModified, sha1, mode);
+    }
+  }
+
+  /**
+   * The fingerprints of the files of an application directory, and what was
+   * left out of it.
+   */
+  static final class Scan implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The fingerprints, by relative path.
+     */
+    final HashMap<String, Fingerprint> files;
+
+    /**
+     * The files and directories excluded by the {@code .cfignore} and the
+     * step.
+     */
+    final CfIgnore.Exclusions exclusions;
+
+    Scan(HashMap<String, Fingerprint> files, CfIgnore.Exclusions exclusions) {
+      this.files = files;
+      this.exclusions = exclusions;
+    }
+  }
+
+  /**
+   * Fingerprints the files of an application directory where it is (e.g. on
+   * the build agent), several files at a time, reusing the cached
+   * fingerprints of unchanged files. Files excluded by the {@code .cfignore}
+   * of the directory are not read, and excluded directories are not walked.
+   */
+  static final class FingerprintFiles extends MasterToSlaveFileCallable<Scan> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How many files are hashed at once (the number of processors by
+     * default). Read where the files are, e.g. on the build agent.
+     */
+    private static final int HASH_THREADS = Math.max(1, Integer.getInteger(FingerprintCache.class.getName() + ".hashThreads",
+            Runtime.getRuntime().availableProcessors()));
+
+    private final Map<String, Fingerprint> cached;
+    private final List<String> excludes;
+
+    /**
+     * @param cached the fingerprints of the previous push, by relative path
+     */
+    FingerprintFiles(Map<String, Fingerprint> cached) {
+      this(cached, Collections.emptyList());
+    }
+
+    /**
+     * @param cached the fingerprints of the previous push, by relative path
+     * @param excludes patterns of files to leave out, besides those of the
+     * {@code .cfignore}
+     */
+    FingerprintFiles(Map<String, Fingerprint> cached, List<String> excludes) {
+      this.cached = cached;
+      this.excludes = excludes;
+    }
+
+    @Override
+    public Scan invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+      Map<String, Path> paths = new LinkedHashMap<>();
+      CfIgnore.Exclusions exclusions = CfIgnore.load(f, excludes).scan(f, new FileVisitor() {
+        @Override
+        public void visit(File file, String relativePath) {
+          if (file.isFile()) {
+            paths.put(relativePath, file.toPath());
+          }
+        }
+      });
+      ConcurrentHashMap<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+      ForkJoinPool pool = new ForkJoinPool(HASH_THREADS);
+      try {
+        pool.submit(() -> paths.entrySet().parallelStream().forEach(file -> {
+          String relative = file.getKey();
+          try {
+            fingerprints.put(relative, fingerprint(file.getValue(), cached.get(relative)));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        })).get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof UncheckedIOException) {
+          throw ((UncheckedIOException) e.getCause()).getCause();
+        }
+        throw new IOException(e.getCause());
+      } finally {
+        pool.shutdown();
+      }
+      return new Scan(new HashMap<>(fingerprints), exclusions);
+    }
+
+    static Fingerprint fingerprint(Path file, Fingerprint cached) throws IOException {
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      long lastModified = attributes.lastModifiedTime().toMillis();
+      String mode = Files.isExecutable(file) ? "755" : "644";
+      if (cached != null && cached.size == attributes.size() && cached.lastModified == lastModified && cached.mode.equals(mode)) {
+        return cached;
+      }
+      return new Fingerprint(attributes.size(), lastModified, sha1(file), mode);
+    }
+
+    private static String sha1(Path file) throws IOException {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      byte[] buffer = new byte[64 * 1024];
+      try (InputStream in = Files.newInputStream(file)) {
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+          digest.update(buffer, 0, read);
+        }
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    }
+  }
+}
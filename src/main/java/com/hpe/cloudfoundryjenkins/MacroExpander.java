@@ -0,0 +1,62 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+/**
+ * Token-expands the settings of a push, once per distinct text.
+ * <p>
+ * Every {@link TokenMacro#expandAll} call goes through all the registered
+ * macros, and macros reading the workspace make a round trip to the build
+ * agent. A push expands the same texts several times, e.g. the target, and
+ * most settings hold no macro at all, so texts without a {@code $} are
+ * returned as they are and the others are expanded once per push.
+ */
+final class MacroExpander {
+
+  private final Run run;
+  private final FilePath workspace;
+  private final TaskListener listener;
+  private final Map<String, String> expanded = new HashMap<>();
+
+  /**
+   * @param run the run, or {@code null} to leave texts as they are
+   * @param workspace the workspace
+   * @param listener the listener
+   */
+  MacroExpander(Run run, FilePath workspace, TaskListener listener) {
+    this.run = run;
+    this.workspace = workspace;
+    this.listener = listener;
+  }
+
+  /**
+   * @param text the text, may be {@code null}
+   * @return the token-expanded text
+   */
+  String expand(String text) throws IOException, InterruptedException, MacroEvaluationException {
+    if (run == null || text == null || text.indexOf('$') < 0) {
+      return text;
+    }
+    synchronized (expanded) {
+      String cached = expanded.get(text);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    String result = TokenMacro.expandAll(run, workspace, listener, text);
+    synchronized (expanded) {
+      expanded.put(text, result);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.ManagementLink;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+
+/**
+ * Controller-wide cache of parsed manifests.
+ * <p>
+ * Manifests are keyed by a digest of their token-expanded contents and of the
+ * contents of the manifests they inherit from, so the values of the macros a
+ * manifest references are part of its key, while macros it does not reference
+ * are not. Builds whose manifests did not change skip parsing the YAML.
+ * Neither the key nor the cached manifests depend on where the manifests are:
+ * cached manifests hold their application paths relative to the directory of
+ * the manifest, so they are shared by all workspaces. The least recently used
+ * manifests are dropped first.
+ */
+public final class ManifestCache {
+
+  /**
+   * How many parsed manifests are kept (64 by default, 0 to disable the
+   * cache).
+   */
+  static final int SIZE = Integer.getInteger(ManifestCache.class.getName() + ".size", 64);
+
+  private static final ManifestCache INSTANCE = new ManifestCache(SIZE);
+
+  private final int size;
+  private final Map<String, List<ApplicationManifest>> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param size how many parsed manifests are kept
+   */
+  ManifestCache(int size) {
+    this.size = size;
+    this.entries = new LinkedHashMap<String, List<ApplicationManifest>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<ApplicationManifest>> eldest) {
+        return size() > ManifestCache.this.size;
+      }
+    };
+  }
+
+  /**
+   * @return the cache shared by all builds
+   */
+  public static ManifestCache get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Gets parsed manifests, parsing them if they are not cached. Manifests
+   * which fail to parse are not cached.
+   *
+   * @param key the key of the manifest, see {@link #key(String, List)}
+   * @param parser parses the manifest
+   * @return the parsed manifests
+   */
+  List<ApplicationManifest> get(String key, Parser parser) throws IOException {
+    synchronized (entries) {
+      List<ApplicationManifest> cached = entries.get(key);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return cached;
+      }
+    }
+    misses.incrementAndGet();
+    List<ApplicationManifest> parsed = Collections.unmodifiableList(parser.parse());
+    if (size > 0) {
+      synchronized (entries) {
+        entries.put(key, parsed);
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * Computes the key of a manifest.
+   *
+   * @param manifest the token-expanded contents of the manifest
+   * @param inherited the contents of the manifests it inherits from, see
+   * {@link ManifestUtils#readInherited}
+   * @return the key
+   */
+  static String key(String manifest, List<String> inherited) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update(manifest.getBytes(StandardCharsets.UTF_8));
+    for (String parent : inherited) {
+      digest.update((byte) 0);
+      digest.update(parent.getBytes(StandardCharsets.UTF_8));
+    }
+    return Util.toHexString(digest.digest());
+  }
+
+  /**
+   * @return how many times parsed manifests were found in the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return how many times manifests had to be parsed
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of cached manifests
+   */
+  public int getSize() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return how many manifests are kept at most
+   */
+  public int getCapacity() {
+    return size;
+  }
+
+  /**
+   * Parses a manifest.
+   */
+  interface Parser {
+
+    /**
+     * @return the parsed manifests, with application paths relative to the
+     * directory of the manifest
+     */
+    List<ApplicationManifest> parse() throws IOException;
+  }
+
+  /**
+   * Shows the hits and misses of the cache to administrators.
+   */
+  @Extension
+  public static final class Statistics extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+      return "document.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+      return "Cloud Foundry Manifest Cache";
+    }
+
+    @Override
+    public String getDescription() {
+      return "Hits and misses of the cache of parsed Cloud Foundry manifests.";
+    }
+
+    @Override
+    public String getUrlName() {
+      return "cloudfoundry-manifest-cache";
+    }
+
+    /**
+     * @return the cache
+     */
+    public ManifestCache getCache() {
+      return get();
+    }
+  }
+}
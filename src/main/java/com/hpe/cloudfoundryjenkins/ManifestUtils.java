@@ -6,16 +6,25 @@ package com.hpe.cloudfoundryjenkins;
 import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
 import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.io.IOUtils;
@@ -23,7 +32,6 @@ import org.apache.commons.lang.StringUtils;
 import org.cloudfoundry.operations.applications.ApplicationManifest;
 import org.cloudfoundry.operations.applications.ApplicationManifestUtils;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
-import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 
 /**
  * Utility methods for dealing with manifests.
@@ -33,47 +41,269 @@ import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 public class ManifestUtils {
 
   public static List<ApplicationManifest> loadManifests(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, boolean isOnSlave, Run run, FilePath workspace, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
+    return loadManifests(filesPath, manifestChoice, isOnSlave, new MacroExpander(run, workspace, taskListener));
+  }
+
+  /**
+   * Loads the manifests.
+   *
+   * @param filesPath the directory the manifest file is relative to
+   * @param manifestChoice the manifest choice
+   * @param isOnSlave {@code true} if {@code filesPath} already is the application path
+   * @param macros the token expansion of the build
+   * @return the application manifests
+   */
+  static List<ApplicationManifest> loadManifests(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, boolean isOnSlave, MacroExpander macros) throws IOException, InterruptedException, MacroEvaluationException {
     switch (manifestChoice.value) {
       case "manifestFile":
-        return loadManifestFiles(filesPath, manifestChoice, run, workspace, taskListener);
+        return parseManifestFile(filesPath, manifestChoice, expandManifestFile(filesPath, manifestChoice, macros));
       case "jenkinsConfig":
-        return jenkinsConfig(filesPath, manifestChoice, isOnSlave, run, workspace, taskListener);
+        return buildJenkinsConfig(filesPath, expandJenkinsConfig(manifestChoice, macros), isOnSlave);
       default:
         throw new IllegalArgumentException("manifest choice must be either 'manifestFile' or 'jenkinsConfig', but was " + manifestChoice.value);
     }
   }
 
-  private static List<ApplicationManifest> loadManifestFiles(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, Run run, FilePath workspace, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
-    String tokenExpandedManifestPath = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.getManifestFile());
+  /**
+   * Reads the manifest file and token-expands its contents.
+   *
+   * @param filesPath the directory the manifest file is relative to
+   * @param manifestChoice the manifest choice
+   * @param run the run
+   * @param workspace the workspace
+   * @param taskListener the listener
+   * @return the token-expanded manifest
+   */
+  static String expandManifestFile(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, Run run, FilePath workspace, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
+    return expandManifestFile(filesPath, manifestChoice, new MacroExpander(run, workspace, taskListener));
+  }
+
+  /**
+   * Reads the manifest file and token-expands its contents.
+   *
+   * @param filesPath the directory the manifest file is relative to
+   * @param manifestChoice the manifest choice
+   * @param macros the token expansion of the build
+   * @return the token-expanded manifest
+   */
+  static String expandManifestFile(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, MacroExpander macros) throws IOException, InterruptedException, MacroEvaluationException {
+    String tokenExpandedManifestPath = macros.expand(manifestChoice.getManifestFile());
     FilePath manifestPath;
     File f = new File(tokenExpandedManifestPath);
     if (f.isAbsolute()) {
-      manifestPath = new FilePath(f);
+      manifestPath = new FilePath(filesPath.getChannel(), tokenExpandedManifestPath);
     } else {
       manifestPath = new FilePath(filesPath, tokenExpandedManifestPath);
     }
-    List<String> manifestContents = IOUtils.readLines(manifestPath.read());
-    StringBuilder sb = new StringBuilder();
-    for (String line : manifestContents) {
-      String tokenExpandedLine = TokenMacro.expandAll(run, workspace, taskListener, line);
-      sb.append(tokenExpandedLine).append(System.lineSeparator());
+    String manifest;
+    try (InputStream in = manifestPath.read()) {
+      manifest = IOUtils.toString(in, StandardCharsets.UTF_8);
     }
-    FilePath actualSourceManifestFilePath = filesPath;
+    return expandLines(manifest, macros::expand);
+  }
+
+  /**
+   * Token-expands a text in a single pass, line by line. Only the lines which
+   * may hold a macro, i.e. have a {@code $}, are handed to the expander; the
+   * others are copied as they are, line separators included.
+   *
+   * @param text the text
+   * @param expander token-expands a line, without its separator
+   * @return the token-expanded text
+   */
+  static String expandLines(String text, LineExpander expander) throws IOException, InterruptedException, MacroEvaluationException {
+    StringBuilder sb = new StringBuilder(text.length());
+    int start = 0;
+    while (start < text.length()) {
+      int newLine = text.indexOf('\n', start);
+      int next = newLine < 0 ? text.length() : newLine + 1;
+      int end = newLine < 0 ? text.length() : (newLine > start && text.charAt(newLine - 1) == '\r' ? newLine - 1 : newLine);
+      if (text.lastIndexOf('$', end - 1) >= start) {
+        sb.append(expander.expand(text.substring(start, end))).append(text, end, next);
+      } else {
+        sb.append(text, start, next);
+      }
+      start = next;
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Token-expands a line of a manifest.
+   */
+  interface LineExpander {
+
+    /**
+     * @param line the line
+     * @return the token-expanded line
+     */
+    String expand(String line) throws IOException, InterruptedException, MacroEvaluationException;
+  }
+
+  /**
+   * Parses a token-expanded manifest file. This needs no run, so it can be
+   * called on the machine holding the files, which must be this one.
+   * <p>
+   * Nothing is written next to the manifest, so concurrent builds sharing a
+   * workspace do not race. The client library only reads manifests from
+   * files, so the manifest and the manifests it inherits from go to a private
+   * temporary directory; application paths are resolved against the
+   * directory of the original manifest all the same. Parsed manifests are
+   * cached by {@link ManifestCache}.
+   *
+   * @param filesPath the directory the manifest file is relative to
+   * @param manifestChoice the manifest choice
+   * @param tokenExpandedManifest the token-expanded contents of the manifest
+   * @return the application manifests
+   */
+  static List<ApplicationManifest> parseManifestFile(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, String tokenExpandedManifest) throws IOException, InterruptedException {
+    return parseManifestFile(filesPath, manifestChoice, tokenExpandedManifest, filesPath);
+  }
+
+  /**
+   * Parses a token-expanded manifest file against another directory than the
+   * one holding it, e.g. a placeholder on the controller for a manifest of a
+   * remote workspace.
+   *
+   * @param filesPath the directory the application paths are resolved against
+   * @param manifestChoice the manifest choice
+   * @param tokenExpandedManifest the token-expanded contents of the manifest
+   * @param sourcePath the directory the manifest file is relative to, where
+   * the manifests it inherits from are read
+   * @return the application manifests
+   */
+  static List<ApplicationManifest> parseManifestFile(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, String tokenExpandedManifest,
+          FilePath sourcePath) throws IOException, InterruptedException {
+    Path manifestDirectory = Paths.get(manifestDirectory(filesPath, manifestChoice).toURI());
+    List<String> inherited = readInherited(tokenExpandedManifest, manifestDirectory(sourcePath, manifestChoice));
+    return ManifestCache.get().get(ManifestCache.key(tokenExpandedManifest, inherited), () -> read(tokenExpandedManifest, inherited))
+            .stream()
+            .map(manifest -> attach(manifest, manifestDirectory))
+            .map(manifest -> fixManifest(filesPath, manifest))
+            .collect(Collectors.toList());
+  }
+
+  private static FilePath manifestDirectory(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice) {
     if (manifestChoice.getManifestFile().contains(File.separator)) {
       int pos = manifestChoice.getManifestFile().lastIndexOf(File.separator);
-      actualSourceManifestFilePath = new FilePath(actualSourceManifestFilePath, manifestChoice.getManifestFile().substring(0, pos));
+      return new FilePath(filesPath, manifestChoice.getManifestFile().substring(0, pos));
     }
-    FilePath tokenExpandedManifestFile = actualSourceManifestFilePath.createTextTempFile("cf-jenkins-plugin-generated-manifest", ".yml", sb.toString(), true);
+    return filesPath;
+  }
+
+  /**
+   * How deep a chain of inherited manifests is followed.
+   */
+  private static final int MAX_INHERIT_DEPTH = 16;
+
+  /**
+   * Reads the manifests a manifest inherits from, on the machine holding
+   * them.
+   *
+   * @param manifest the contents of the manifest
+   * @param manifestDirectory the directory of the manifest
+   * @return the contents of the inherited manifests, the closest first
+   */
+  static List<String> readInherited(String manifest, FilePath manifestDirectory) throws IOException, InterruptedException {
+    List<String> inherited = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    FilePath directory = manifestDirectory;
+    for (String inherit = inheritOf(manifest); inherit != null; inherit = inheritOf(inherited.get(inherited.size() - 1))) {
+      FilePath parent = new FilePath(directory, inherit);
+      if (!seen.add(parent.getRemote()) || seen.size() > MAX_INHERIT_DEPTH) {
+        throw new IOException("Too many inherited manifests, or an inheritance loop, at " + parent.getRemote());
+      }
+      if (!parent.exists()) {
+        throw new IOException("The inherited manifest " + parent.getRemote() + " does not exist");
+      }
+      inherited.add(parent.readToString());
+      directory = parent.getParent();
+    }
+    return inherited;
+  }
+
+  /**
+   * Parses a token-expanded manifest in a temporary directory, with the
+   * manifests it inherits from.
+   *
+   * @return the manifests, with application paths relative to the directory
+   * of the manifest
+   */
+  private static List<ApplicationManifest> read(String tokenExpandedManifest, List<String> inherited) throws IOException {
+    Path scratch = Files.createTempDirectory("cfManifest");
     try {
-      return ApplicationManifestUtils.read(Paths.get(tokenExpandedManifestFile.toURI()))
+      Path manifestFile = scratch.resolve("manifest.yml");
+      // each manifest inherits from the copy of the next one
+      String contents = tokenExpandedManifest;
+      for (int i = 0; i < inherited.size(); i++) {
+        String parent = "inherited-" + (i + 1) + ".yml";
+        Files.write(i == 0 ? manifestFile : scratch.resolve("inherited-" + i + ".yml"),
+                withInherit(contents, parent).getBytes(StandardCharsets.UTF_8));
+        contents = inherited.get(i);
+      }
+      Files.write(inherited.isEmpty() ? manifestFile : scratch.resolve("inherited-" + inherited.size() + ".yml"),
+              contents.getBytes(StandardCharsets.UTF_8));
+      return ApplicationManifestUtils.read(manifestFile)
               .stream()
-              .map(manifest -> fixManifest(filesPath, manifest))
+              .map(manifest -> detach(manifest, scratch))
               .collect(Collectors.toList());
     } finally {
-      tokenExpandedManifestFile.delete();
+      Util.deleteRecursive(scratch.toFile());
     }
   }
 
+  private static final Pattern INHERIT = Pattern.compile("^inherit:[ \\t]*(.*?)[ \\t]*$", Pattern.MULTILINE);
+
+  /**
+   * @param manifest the contents of a manifest
+   * @return the manifest the given one inherits from, as written, or
+   * {@code null} if it inherits from none
+   */
+  static String inheritOf(String manifest) {
+    Matcher inherit = INHERIT.matcher(manifest);
+    if (!inherit.find()) {
+      return null;
+    }
+    String parent = inherit.group(1);
+    if (parent.length() >= 2 && (parent.startsWith("'") && parent.endsWith("'") || parent.startsWith("\"") && parent.endsWith("\""))) {
+      parent = parent.substring(1, parent.length() - 1);
+    }
+    return parent;
+  }
+
+  /**
+   * Replaces the {@code inherit} of a manifest.
+   */
+  private static String withInherit(String manifest, String parent) {
+    Matcher inherit = INHERIT.matcher(manifest);
+    if (!inherit.find()) {
+      return manifest;
+    }
+    return manifest.substring(0, inherit.start()) + "inherit: '" + parent.replace("'", "''") + "'" + manifest.substring(inherit.end());
+  }
+
+  /**
+   * Makes the application path of a manifest parsed in a temporary directory
+   * relative to that directory.
+   */
+  private static ApplicationManifest detach(ApplicationManifest manifest, Path scratch) {
+    if (manifest.getPath() == null || !manifest.getPath().normalize().startsWith(scratch)) {
+      return manifest;
+    }
+    return ApplicationManifest.builder().from(manifest).path(scratch.relativize(manifest.getPath().normalize())).build();
+  }
+
+  /**
+   * Resolves a relative application path against the directory of the
+   * manifest.
+   */
+  private static ApplicationManifest attach(ApplicationManifest manifest, Path manifestDirectory) {
+    if (manifest.getPath() == null || manifest.getPath().isAbsolute()) {
+      return manifest;
+    }
+    return ApplicationManifest.builder().from(manifest).path(manifestDirectory.resolve(manifest.getPath().toString())).build();
+  }
+
   /**
    * Workarounds for any manifest issues should be added here.
    *
@@ -93,56 +323,107 @@ public class ManifestUtils {
     }
   }
 
-  private static List<ApplicationManifest> jenkinsConfig(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, boolean isOnSlave, final Run run, final FilePath workspace, final TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
+  /**
+   * Token-expands the settings of a manifest entered in Jenkins.
+   *
+   * @param manifestChoice the manifest choice
+   * @param run the run
+   * @param workspace the workspace
+   * @param taskListener the listener
+   * @return a token-expanded copy of the manifest choice
+   */
+  static CloudFoundryPushPublisher.ManifestChoice expandJenkinsConfig(CloudFoundryPushPublisher.ManifestChoice manifestChoice, final Run run, final FilePath workspace, final TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
+    return expandJenkinsConfig(manifestChoice, new MacroExpander(run, workspace, taskListener));
+  }
+
+  /**
+   * Token-expands the settings of a manifest entered in Jenkins.
+   *
+   * @param manifestChoice the manifest choice
+   * @param macros the token expansion of the build
+   * @return a token-expanded copy of the manifest choice
+   */
+  static CloudFoundryPushPublisher.ManifestChoice expandJenkinsConfig(CloudFoundryPushPublisher.ManifestChoice manifestChoice, MacroExpander macros) throws IOException, InterruptedException, MacroEvaluationException {
+    List<EnvironmentVariable> envVars = null;
+    if (manifestChoice.envVars != null) {
+      envVars = new ArrayList<>(manifestChoice.envVars.size());
+      for (EnvironmentVariable envVar : manifestChoice.envVars) {
+        envVars.add(new EnvironmentVariable(macros.expand(envVar.key), macros.expand(envVar.value)));
+      }
+    }
+    List<ServiceName> servicesNames = null;
+    if (manifestChoice.servicesNames != null) {
+      servicesNames = new ArrayList<>(manifestChoice.servicesNames.size());
+      for (ServiceName serviceName : manifestChoice.servicesNames) {
+        servicesNames.add(new ServiceName(macros.expand(serviceName.name)));
+      }
+    }
+    return new CloudFoundryPushPublisher.ManifestChoice(manifestChoice.value, manifestChoice.manifestFile,
+            macros.expand(manifestChoice.appName),
+            macros.expand(manifestChoice.memory),
+            macros.expand(manifestChoice.hostname),
+            macros.expand(manifestChoice.instances),
+            macros.expand(manifestChoice.timeout),
+            macros.expand(manifestChoice.noRoute),
+            macros.expand(manifestChoice.appPath),
+            macros.expand(manifestChoice.buildpack),
+            macros.expand(manifestChoice.stack),
+            macros.expand(manifestChoice.command),
+            macros.expand(manifestChoice.domain),
+            envVars, servicesNames);
+  }
+
+  /**
+   * Builds the manifest entered in Jenkins. This needs no run, so it can be
+   * called on the machine holding the files.
+   *
+   * @param filesPath the directory holding the application files
+   * @param manifestChoice the token-expanded manifest choice
+   * @param isOnSlave {@code true} if {@code filesPath} already is the application path
+   * @return the application manifest
+   */
+  static List<ApplicationManifest> buildJenkinsConfig(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, boolean isOnSlave) throws IOException, InterruptedException {
     ApplicationManifest.Builder manifestBuilder = ApplicationManifest.builder();
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.appName) ? manifestBuilder.name(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.appName)) : manifestBuilder;
+    manifestBuilder = !StringUtils.isBlank(manifestChoice.appName) ? manifestBuilder.name(manifestChoice.appName) : manifestBuilder;
     if (isOnSlave) {
-      manifestBuilder = !StringUtils.isBlank(manifestChoice.appPath)
-              ? manifestBuilder.path(Paths.get(Paths.get(filesPath.toURI()).toString()))
-              : manifestBuilder.path(Paths.get(filesPath.toURI()));
+      manifestBuilder = manifestBuilder.path(Paths.get(filesPath.toURI()));
     } else {
       manifestBuilder = !StringUtils.isBlank(manifestChoice.appPath)
-              ? manifestBuilder.path(Paths.get(Paths.get(filesPath.toURI()).toString(), TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.appPath)))
+              ? manifestBuilder.path(Paths.get(Paths.get(filesPath.toURI()).toString(), manifestChoice.appPath))
               : manifestBuilder.path(Paths.get(filesPath.toURI()));
     }
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.buildpack) ? manifestBuilder.buildpack(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.buildpack)) : manifestBuilder;
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.command) ? manifestBuilder.command(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.command)) : manifestBuilder;
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.domain) ? manifestBuilder.domain(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.domain)) : manifestBuilder;
+    manifestBuilder = !StringUtils.isBlank(manifestChoice.buildpack) ? manifestBuilder.buildpack(manifestChoice.buildpack) : manifestBuilder;
+    manifestBuilder = !StringUtils.isBlank(manifestChoice.command) ? manifestBuilder.command(manifestChoice.command) : manifestBuilder;
+    manifestBuilder = !StringUtils.isBlank(manifestChoice.domain) ? manifestBuilder.domain(manifestChoice.domain) : manifestBuilder;
     if (!CollectionUtils.isEmpty(manifestChoice.envVars)) {
       Map<String, Object> tokenMacroExpandedEnvVars = new HashMap<>(manifestChoice.envVars.size());
       for (EnvironmentVariable envVar : manifestChoice.getEnvVars()) {
-        String key = TokenMacro.expandAll(run, workspace, taskListener, envVar.key);
-        String value = TokenMacro.expandAll(run, workspace, taskListener, envVar.value);
-        tokenMacroExpandedEnvVars.put(key, value);
+        tokenMacroExpandedEnvVars.put(envVar.key, envVar.value);
       }
       manifestBuilder = manifestBuilder.environmentVariables(tokenMacroExpandedEnvVars);
     }
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.hostname) ? manifestBuilder.host(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.hostname)) : manifestBuilder;
+    manifestBuilder = !StringUtils.isBlank(manifestChoice.hostname) ? manifestBuilder.host(manifestChoice.hostname) : manifestBuilder;
     if (!StringUtils.isBlank(manifestChoice.instances)) {
-      String instances = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.instances);
-      manifestBuilder = manifestBuilder.instances(Integer.valueOf(instances));
+      manifestBuilder = manifestBuilder.instances(Integer.valueOf(manifestChoice.instances));
     }
     if (!StringUtils.isBlank(manifestChoice.memory)) {
-      String memory = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.memory);
-      Integer memoryMb = asMemoryInteger(memory);
+      Integer memoryMb = asMemoryInteger(manifestChoice.memory);
       manifestBuilder = manifestBuilder.memory(memoryMb);
     }
     if (!StringUtils.isBlank(manifestChoice.noRoute)) {
-      String s = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.noRoute);
-      Boolean noRoute = Boolean.parseBoolean(s);
+      Boolean noRoute = Boolean.parseBoolean(manifestChoice.noRoute);
       manifestBuilder = manifestBuilder.noRoute(noRoute);
     }
     if (!CollectionUtils.isEmpty(manifestChoice.servicesNames)) {
       List<String> servicesNames = new ArrayList<String>(manifestChoice.servicesNames.size());
       for (ServiceName serviceName : manifestChoice.servicesNames) {
-        servicesNames.add(TokenMacro.expandAll(run, workspace, taskListener, serviceName.name));
+        servicesNames.add(serviceName.name);
       }
       manifestBuilder = manifestBuilder.services(servicesNames);
     }
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.stack) ? manifestBuilder.stack(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.stack)) : manifestBuilder;
+    manifestBuilder = !StringUtils.isBlank(manifestChoice.stack) ? manifestBuilder.stack(manifestChoice.stack) : manifestBuilder;
     if (!StringUtils.isBlank(manifestChoice.timeout)) {
-      String timeout = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.timeout);
-      manifestBuilder = manifestBuilder.timeout(Integer.valueOf(timeout));
+      manifestBuilder = manifestBuilder.timeout(Integer.valueOf(manifestChoice.timeout));
     }
     return Collections.singletonList(manifestBuilder.build());
   }
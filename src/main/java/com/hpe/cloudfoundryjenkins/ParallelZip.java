@@ -0,0 +1,216 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.Util;
+import hudson.util.FileVisitor;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ScatterZipOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntryRequest;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Writes a zip archive of visited files, deflating several files at a time.
+ * <p>
+ * Like commons-compress' {@code ParallelScatterZipCreator}, each thread
+ * deflates its files to a temporary scatter file, and the scatter files are
+ * gathered into the archive once it is closed. Unlike it, the compression
+ * level is applied with nothing newer than the commons-compress 1.10 API,
+ * which Jenkins core bundles. Files which are already compressed, as told by
+ * their extension or by sampling their entropy, are stored rather than
+ * deflated again. Like {@link hudson.util.io.Archiver}, closing the archive
+ * closes the underlying stream.
+ */
+final class ParallelZip extends FileVisitor implements Closeable {
+
+  /**
+   * Compression level which stores every file.
+   */
+  static final int STORE = Deflater.NO_COMPRESSION;
+
+  /**
+   * Compression level of {@link Deflater}'s default.
+   */
+  static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+  /**
+   * How many files are compressed at once (the number of processors by
+   * default).
+   */
+  private static final int THREADS = Math.max(1, Integer.getInteger(ParallelZip.class.getName() + ".threads",
+          Runtime.getRuntime().availableProcessors()));
+
+  private static final int ENTROPY_SAMPLE = 4096;
+
+  private static final double COMPRESSED_ENTROPY = 7.5;
+
+  private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+          "zip", "jar", "war", "ear", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "br",
+          "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "avi", "mov", "woff", "woff2"));
+
+  private final OutputStream out;
+  private final int level;
+  private final ExecutorService executor;
+  private final List<Future<?>> pending = new ArrayList<>();
+  private final List<ScatterZipOutputStream> scatters = Collections.synchronizedList(new ArrayList<>());
+  private final ThreadLocal<ScatterZipOutputStream> scatter = new ThreadLocal<>();
+  private Path spool;
+
+  /**
+   * @param out the stream to write the archive to
+   * @param level the compression level, from {@link #STORE} to 9, or
+   * {@link #DEFAULT_LEVEL}
+   */
+  ParallelZip(OutputStream out, int level) {
+    this.out = out;
+    this.level = level;
+    this.executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+      Thread thread = new Thread(runnable, "Cloud Foundry zip");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public void visit(File f, String relativePath) throws IOException {
+    pending.add(executor.submit(() -> {
+      ZipArchiveEntry entry = new ZipArchiveEntry(f.isDirectory() ? relativePath + '/' : relativePath);
+      entry.setTime(f.lastModified());
+      entry.setUnixMode(f.isDirectory() ? 040755 : f.canExecute() ? 0100755 : 0100644);
+      // the method is chosen by the thread which compresses the file, since
+      // telling compressed files apart reads them
+      entry.setMethod(f.isDirectory() || level == STORE || isCompressed(f) ? ZipEntry.STORED : ZipEntry.DEFLATED);
+      // opened once the entry is compressed, so its size is the one read
+      scatter().addArchiveEntry(ZipArchiveEntryRequest.createZipArchiveEntryRequest(entry, () -> {
+        if (f.isDirectory()) {
+          return new ByteArrayInputStream(new byte[0]);
+        }
+        try {
+          return Files.newInputStream(f.toPath());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }));
+      return null;
+    }));
+  }
+
+  /**
+   * @return the scatter stream of the current thread, which its entries are
+   * compressed to
+   */
+  private ScatterZipOutputStream scatter() throws IOException {
+    ScatterZipOutputStream stream = scatter.get();
+    if (stream == null) {
+      stream = ScatterZipOutputStream.fileBased(Files.createTempFile(spool(), "entries", ".zip").toFile(), level);
+      scatters.add(stream);
+      scatter.set(stream);
+    }
+    return stream;
+  }
+
+  /**
+   * @return the number of entries added so far
+   */
+  long countEntries() {
+    return pending.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      for (Future<?> entry : pending) {
+        entry.get();
+      }
+      try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out)) {
+        for (ScatterZipOutputStream stream : scatters) {
+          stream.writeTo(zip);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    } finally {
+      executor.shutdownNow();
+      for (ScatterZipOutputStream stream : scatters) {
+        stream.close();
+      }
+      if (spool != null) {
+        Util.deleteRecursive(spool.toFile());
+      }
+    }
+  }
+
+  private synchronized Path spool() throws IOException {
+    if (spool == null) {
+      spool = Files.createTempDirectory("cfZip");
+    }
+    return spool;
+  }
+
+  /**
+   * @return {@code true} if the file looks compressed already, by its
+   * extension or the entropy of its first bytes
+   */
+  static boolean isCompressed(File file) throws IOException {
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+      return true;
+    }
+    if (file.length() < ENTROPY_SAMPLE) {
+      return false;
+    }
+    byte[] sample = new byte[ENTROPY_SAMPLE];
+    int read;
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      read = IOUtils.read(in, sample);
+    }
+    return entropy(sample, read) > COMPRESSED_ENTROPY;
+  }
+
+  /**
+   * @return the Shannon entropy of the bytes, in bits per byte
+   */
+  static double entropy(byte[] bytes, int length) {
+    int[] counts = new int[256];
+    for (int i = 0; i < length; i++) {
+      counts[bytes[i] & 0xFF]++;
+    }
+    double entropy = 0;
+    for (int count : counts) {
+      if (count > 0) {
+        double p = (double) count / length;
+        entropy -= p * Math.log(p) / Math.log(2);
+      }
+    }
+    return entropy;
+  }
+}
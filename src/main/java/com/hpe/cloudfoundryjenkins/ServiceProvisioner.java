@@ -0,0 +1,275 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.spaces.ListSpaceServiceInstancesRequest;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.services.CreateServiceInstanceRequest;
+import org.cloudfoundry.operations.services.DeleteServiceInstanceRequest;
+import org.cloudfoundry.operations.services.ServiceInstanceSummary;
+import org.cloudfoundry.util.PaginationUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.ConnectableFlux;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Creates the services to create before pushing, several at a time, while
+ * the rest of the push carries on.
+ * <p>
+ * The log lines of each service are buffered and written to the build log in
+ * one block once that service is done, so they are not interleaved with the
+ * lines of the other services.
+ */
+class ServiceProvisioner {
+
+  /**
+   * Maximum number of names in one name-filtered service instance lookup.
+   */
+  static final int NAME_FILTER_BATCH_SIZE = 50;
+
+  /**
+   * Error code of the Cloud Controllers which do not support filtering the
+   * service instances of a space by name.
+   */
+  static final String BAD_QUERY_PARAMETER = "CF-BadQueryParameter";
+
+  private final CloudFoundryClient client;
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final TaskListener listener;
+
+  /**
+   * @param client the client to use
+   * @param cloudFoundryOperations the operations to use
+   * @param listener the build listener
+   */
+  ServiceProvisioner(CloudFoundryClient client, CloudFoundryOperations cloudFoundryOperations, TaskListener listener) {
+    this.client = client;
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.listener = listener;
+  }
+
+  /**
+   * Looks up which of the given service instances already exist in the space.
+   * The instances are filtered by name on the server side, rather than listing
+   * every instance of the space. If the target rejects the filter as a bad
+   * query parameter, this falls back to listing the space; any other error
+   * fails the lookup.
+   *
+   * @param spaceId the id of the space
+   * @param names the names of the service instances
+   * @return the names of the service instances which exist
+   */
+  Mono<Set<String>> findExistingServices(Mono<String> spaceId, Collection<String> names) {
+    return Mono.<Set<String>>fromCallable(() -> {
+      List<String> wanted = new ArrayList<>(new LinkedHashSet<>(names));
+      if (wanted.isEmpty()) {
+        return Collections.<String>emptySet();
+      }
+      String id = spaceId.block();
+      try {
+        Set<String> existing = new HashSet<>();
+        for (int i = 0; i < wanted.size(); i += NAME_FILTER_BATCH_SIZE) {
+          existing.addAll(listServiceInstanceNames(id, wanted.subList(i, Math.min(wanted.size(), i + NAME_FILTER_BATCH_SIZE))));
+        }
+        return existing;
+      } catch (ClientV2Exception e) {
+        if (!BAD_QUERY_PARAMETER.equals(e.getErrorCode())) {
+          throw e;
+        }
+        listener.getLogger().println("WARNING: Could not look up services by name (" + e.getMessage() + "), listing all the services of the space instead.");
+        return new HashSet<>(cloudFoundryOperations.services().listInstances()
+                .map(ServiceInstanceSummary::getName)
+                .collectList()
+                .block());
+      }
+    }).subscribeOn(Schedulers.elastic());
+  }
+
+  private List<String> listServiceInstanceNames(String spaceId, List<String> names) {
+    return PaginationUtils.requestClientV2Resources(page -> client.spaces().listServiceInstances(ListSpaceServiceInstancesRequest.builder()
+            .spaceId(spaceId)
+            .names(names)
+            .returnUserProvidedServiceInstances(true)
+            .page(page)
+            .build()))
+            .map(resource -> resource.getEntity().getName())
+            .collectList()
+            .block();
+  }
+
+  /**
+   * Starts creating (or resetting) the given services in the background.
+   *
+   * @param services the token-expanded services to create
+   * @param existingServices the names of the service instances which already exist
+   * @param parallelism the maximum number of services to create concurrently
+   * @return a handle to wait for the services, which must be canceled once
+   * the push is over
+   */
+  Provisioning start(List<CloudFoundryPushPublisher.Service> services, Mono<Set<String>> existingServices, int parallelism) {
+    Mono<Set<String>> existing = existingServices.cache();
+    ConnectableFlux<Outcome> outcomes = Flux.fromIterable(services)
+            .flatMap(service -> existing.flatMap(names -> provisionAndLog(service, names.contains(service.name))), Math.max(1, parallelism))
+            .replay();
+    // the connection, unlike a subscriber, cancels the requests in flight when disposed
+    Disposable connection = outcomes.connect();
+    return new Provisioning(services.stream().map(service -> service.name).collect(Collectors.toSet()), outcomes, connection);
+  }
+
+  /**
+   * Prints a summary of the failed services, if any.
+   *
+   * @param outcomes the outcomes
+   * @return {@code true} if all services were provisioned successfully
+   */
+  boolean report(List<Outcome> outcomes) {
+    List<Outcome> failures = outcomes.stream().filter(outcome -> outcome.error != null).collect(Collectors.toList());
+    if (failures.isEmpty()) {
+      return true;
+    }
+    listener.getLogger().println("ERROR: " + failures.size() + " of " + outcomes.size() + " services could not be created:");
+    for (Outcome failure : failures) {
+      listener.getLogger().println("  " + failure.serviceName + ": " + failure.error.getMessage());
+    }
+    return false;
+  }
+
+  private Mono<Outcome> provisionAndLog(CloudFoundryPushPublisher.Service service, boolean exists) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    PrintStream log = newPrintStream(buffer);
+    return provision(service, exists, log)
+            .materialize()
+            .map(signal -> {
+              Outcome outcome;
+              if (signal.isOnError()) {
+                log.println("ERROR: Could not create service " + service.name + ": " + signal.getThrowable().getMessage());
+                outcome = new Outcome(service.name, signal.getThrowable());
+              } else {
+                outcome = new Outcome(service.name, null);
+              }
+              log.flush();
+              synchronized (listener) {
+                listener.getLogger().print(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+              }
+              return outcome;
+            });
+  }
+
+  private Mono<Void> provision(CloudFoundryPushPublisher.Service service, boolean exists, PrintStream log) {
+    Mono<Void> create = Mono.defer(() -> {
+      log.println("Creating service " + service.name);
+      return cloudFoundryOperations.services().createInstance(CreateServiceInstanceRequest.builder()
+              .serviceName(service.type)
+              .serviceInstanceName(service.name)
+              .planName(service.plan)
+              .build());
+    });
+    if (!exists) {
+      return create;
+    }
+    if (!service.resetService) {
+      return Mono.fromRunnable(() -> log.println("Service " + service.name + " already exists, skipping creation."));
+    }
+    return Mono.defer(() -> {
+      log.println("Service " + service.name + " already exists, resetting.");
+      return cloudFoundryOperations.services().deleteInstance(DeleteServiceInstanceRequest.builder().name(service.name).build());
+    })
+            .doOnSuccess(v -> log.println("Service deleted."))
+            .then(create);
+  }
+
+  private static PrintStream newPrintStream(ByteArrayOutputStream buffer) {
+    try {
+      return new PrintStream(buffer, true, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Services being created in the background.
+   */
+  static final class Provisioning {
+
+    private final Set<String> serviceNames;
+    private final Flux<Outcome> outcomes;
+    private final Disposable connection;
+
+    private Provisioning(Set<String> serviceNames, Flux<Outcome> outcomes, Disposable connection) {
+      this.serviceNames = serviceNames;
+      this.outcomes = outcomes;
+      this.connection = connection;
+    }
+
+    /**
+     * Waits until the given services are created. Services which are not
+     * being created are not waited for.
+     *
+     * @param names the names of the services
+     * @return the outcomes of the services which were being created
+     */
+    List<Outcome> await(Collection<String> names) {
+      Set<String> awaited = new HashSet<>(names);
+      awaited.retainAll(serviceNames);
+      if (awaited.isEmpty()) {
+        return Collections.emptyList();
+      }
+      return outcomes
+              .filter(outcome -> awaited.contains(outcome.serviceName))
+              .distinct(outcome -> outcome.serviceName)
+              .take(awaited.size())
+              .collectList()
+              .block();
+    }
+
+    /**
+     * Waits until all services are created.
+     *
+     * @return the outcome of each service, in completion order
+     */
+    List<Outcome> awaitAll() {
+      return outcomes.collectList().block();
+    }
+
+    /**
+     * Cancels the services still being created, so nothing keeps running
+     * after a push which failed, timed out or was aborted. Services which
+     * were created are left alone.
+     */
+    void cancel() {
+      connection.dispose();
+    }
+  }
+
+  /**
+   * The result of creating one service.
+   */
+  static final class Outcome {
+
+    final String serviceName;
+    final Throwable error;
+
+    Outcome(String serviceName, Throwable error) {
+      this.serviceName = serviceName;
+      this.error = error;
+    }
+  }
+}
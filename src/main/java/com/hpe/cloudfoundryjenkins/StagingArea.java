@@ -0,0 +1,239 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-wide area where the application files of remote workspaces are
+ * staged before they are uploaded.
+ * <p>
+ * Staged files are bounded by a disk budget. Each push reserves the space its
+ * archive may take before transferring it, and waits in line while the budget
+ * is used up by other pushes, so a burst of builds queues instead of filling
+ * the disk. A single push larger than the whole budget still goes ahead once
+ * nothing else is staged. Since a push only ever holds one reservation, pushes
+ * cannot deadlock waiting for each other.
+ * <p>
+ * Staging directories are deleted as soon as the build is done with them.
+ * Whatever a crash left behind is swept when Jenkins starts.
+ */
+public final class StagingArea {
+
+  private static final Logger LOGGER = Logger.getLogger(StagingArea.class.getName());
+
+  /**
+   * How much disk the staged files may take, in megabytes (4096 by default,
+   * 0 for no limit).
+   */
+  static final long BUDGET = Long.getLong(StagingArea.class.getName() + ".budgetMegabytes", 4096) * 1024 * 1024;
+
+  /**
+   * Prefix of the temporary directories older versions staged files in.
+   */
+  private static final String LEGACY_PREFIX = "appDir";
+
+  private static volatile StagingArea instance;
+
+  private final File root;
+  private final long budget;
+  private final Set<Long> abandoned = new HashSet<>();
+  private long used;
+  private long nextTicket;
+  private long nowServing;
+
+  /**
+   * @param root the directory to stage files in
+   * @param budget how many bytes the staged files may take, 0 for no limit
+   */
+  StagingArea(File root, long budget) {
+    this.root = root;
+    this.budget = budget;
+  }
+
+  /**
+   * @return the staging area shared by all builds
+   */
+  public static StagingArea get() {
+    if (instance == null) {
+      synchronized (StagingArea.class) {
+        if (instance == null) {
+          Jenkins jenkins = Jenkins.getInstance();
+          instance = new StagingArea(jenkins == null
+                  ? new File(System.getProperty("java.io.tmpdir"), "cloudfoundry-staging")
+                  : new File(jenkins.getRootDir(), "cloudfoundry-staging"), BUDGET);
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Creates a directory for a build to stage files in. The caller deletes it
+   * once done.
+   *
+   * @return the directory
+   */
+  FilePath createDirectory() throws IOException {
+    Files.createDirectories(root.toPath());
+    return new FilePath(Files.createTempDirectory(root.toPath(), "build").toFile());
+  }
+
+  /**
+   * Reserves disk space, waiting in line until the budget allows it.
+   *
+   * @param bytes how many bytes to reserve
+   * @param log the log to report waiting to
+   * @return the reservation, to be closed once the staged files are deleted
+   * @throws InterruptedException if the build was aborted while waiting
+   */
+  synchronized Reservation reserve(long bytes, PrintStream log) throws InterruptedException {
+    long ticket = nextTicket++;
+    boolean reported = false;
+    try {
+      while (ticket != nowServing || (budget > 0 && used > 0 && used + bytes > budget)) {
+        if (!reported) {
+          log.println(String.format(Locale.ROOT, "Waiting for %d MB of staging space on the master (%d of %d MB in use, %d pushes ahead)",
+                  megabytes(bytes), megabytes(used), megabytes(budget), ticket - nowServing));
+          reported = true;
+        }
+        wait();
+      }
+    } catch (InterruptedException e) {
+      // give up our place in line without holding up the ones behind us
+      abandoned.add(ticket);
+      advance();
+      throw e;
+    }
+    used += bytes;
+    nowServing++;
+    advance();
+    return new Reservation(bytes);
+  }
+
+  private void advance() {
+    while (abandoned.remove(nowServing)) {
+      nowServing++;
+    }
+    notifyAll();
+  }
+
+  private synchronized void release(long bytes) {
+    used -= bytes;
+    notifyAll();
+  }
+
+  /**
+   * @return how many bytes are reserved
+   */
+  synchronized long getUsed() {
+    return used;
+  }
+
+  private static long megabytes(long bytes) {
+    return (bytes + 1024 * 1024 - 1) / (1024 * 1024);
+  }
+
+  /**
+   * Deletes what was staged before Jenkins last stopped, and the temporary
+   * directories older versions left behind.
+   */
+  @Initializer(after = InitMilestone.PLUGINS_STARTED)
+  public static void sweep() {
+    get().sweep(new File(System.getProperty("java.io.tmpdir")), System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+  }
+
+  /**
+   * @param legacyDirectory the directory older versions staged files in
+   * @param legacyCutoff legacy directories modified before this time are
+   * deleted
+   * @return how many directories were deleted
+   */
+  int sweep(File legacyDirectory, long legacyCutoff) {
+    int swept = 0;
+    File[] orphans = root.listFiles();
+    if (orphans != null) {
+      for (File orphan : orphans) {
+        swept += delete(orphan);
+      }
+    }
+    File[] legacy = legacyDirectory.listFiles((dir, name) -> name.startsWith(LEGACY_PREFIX));
+    if (legacy != null) {
+      for (File orphan : legacy) {
+        if (orphan.isDirectory() && orphan.lastModified() < legacyCutoff) {
+          swept += delete(orphan);
+        }
+      }
+    }
+    if (swept > 0) {
+      LOGGER.log(Level.INFO, "Deleted {0} orphaned Cloud Foundry staging directories", swept);
+    }
+    return swept;
+  }
+
+  private static int delete(File directory) {
+    try {
+      new FilePath(directory).deleteRecursive();
+      return 1;
+    } catch (IOException | InterruptedException e) {
+      LOGGER.log(Level.WARNING, "Failed to delete " + directory, e);
+      return 0;
+    }
+  }
+
+  /**
+   * Disk space reserved for staged files.
+   */
+  final class Reservation implements Closeable {
+
+    private long bytes;
+
+    private Reservation(long bytes) {
+      this.bytes = bytes;
+    }
+
+    /**
+     * Gives back what was reserved beyond what the staged files actually
+     * take.
+     *
+     * @param actual how many bytes the staged files take
+     */
+    void shrinkTo(long actual) {
+      long surplus;
+      synchronized (this) {
+        surplus = Math.max(0, bytes - actual);
+        bytes -= surplus;
+      }
+      if (surplus > 0) {
+        release(surplus);
+      }
+    }
+
+    @Override
+    public void close() {
+      long released;
+      synchronized (this) {
+        released = bytes;
+        bytes = 0;
+      }
+      if (released > 0) {
+        release(released);
+      }
+    }
+  }
+}
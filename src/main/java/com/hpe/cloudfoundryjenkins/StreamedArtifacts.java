@@ -0,0 +1,158 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * Loads the manifests of a remote workspace and streams the application files
+ * from the build agent straight into the upload, without copying them to the
+ * controller first.
+ * <p>
+ * The manifests are parsed against an empty placeholder directory on the
+ * controller, with the manifests they inherit from read from the workspace.
+ * The application paths are then mapped back to the workspace on the agent.
+ * <p>
+ * With a staging directory, the application files are copied to the
+ * controller before they are uploaded, but only once resource matching told
+ * which of them Cloud Foundry does not have yet. When {@code pushManifest}
+ * pushes the applications, all their files are copied to the staging
+ * directory up front instead, and the manifests point there.
+ */
+class StreamedArtifacts implements Deployment.ManifestLoader {
+
+  private final FilePath workspace;
+  private final CloudFoundryPushPublisher.ManifestChoice manifestChoice;
+  private final MacroExpander macros;
+  private final TaskListener listener;
+  private final FilePath staging;
+  private final int transferStreams;
+  private final boolean direct;
+  private Path placeholder;
+
+  /**
+   * @param workspace the remote workspace
+   * @param manifestChoice the manifest choice
+   * @param macros the token expansion of the build
+   * @param listener the listener
+   */
+  StreamedArtifacts(FilePath workspace, CloudFoundryPushPublisher.ManifestChoice manifestChoice, MacroExpander macros, TaskListener listener) {
+    this(workspace, manifestChoice, macros, listener, null, 1, true);
+  }
+
+  /**
+   * @param workspace the remote workspace
+   * @param manifestChoice the manifest choice
+   * @param macros the token expansion of the build
+   * @param listener the listener
+   * @param staging the directory on the controller to copy the application
+   * files to, or {@code null} to stream them
+   * @param transferStreams how many streams the application files are
+   * copied over to the staging directory, at most
+   * @param direct {@code true} if the application files are uploaded by this
+   * plugin, {@code false} to copy them all to the staging directory for
+   * {@code pushManifest}
+   */
+  StreamedArtifacts(FilePath workspace, CloudFoundryPushPublisher.ManifestChoice manifestChoice, MacroExpander macros, TaskListener listener, FilePath staging,
+      int transferStreams, boolean direct) {
+    this.workspace = workspace;
+    this.manifestChoice = manifestChoice;
+    this.macros = macros;
+    this.listener = listener;
+    this.staging = staging;
+    this.transferStreams = transferStreams;
+    this.direct = direct;
+  }
+
+  @Override
+  public List<ApplicationManifest> load() throws IOException, InterruptedException, MacroEvaluationException {
+    if (staging == null) {
+      listener.getLogger().println("INFO: Streaming the application files from the build agent.");
+    } else if (direct) {
+      listener.getLogger().println("INFO: Looks like we are on a distributed system... Transferring the application files Cloud Foundry does not have from the slave to the master.");
+    } else {
+      listener.getLogger().println("INFO: Looks like we are on a distributed system... Transferring build artifacts from the slave to the master.");
+    }
+    placeholder = Files.createTempDirectory("cfManifest");
+    FilePath placeholderPath = new FilePath(placeholder.toFile());
+    List<ApplicationManifest> manifests;
+    try {
+      if ("jenkinsConfig".equals(manifestChoice.value)) {
+        manifests = ManifestUtils.buildJenkinsConfig(placeholderPath, ManifestUtils.expandJenkinsConfig(manifestChoice, macros), false);
+      } else {
+        String tokenExpandedManifest = ManifestUtils.expandManifestFile(workspace, manifestChoice, macros);
+        manifests = ManifestUtils.parseManifestFile(placeholderPath, manifestChoice, tokenExpandedManifest, workspace);
+      }
+    } finally {
+      placeholderPath.deleteRecursive();
+    }
+    if (direct) {
+      return manifests;
+    }
+    List<ApplicationManifest> copied = new ArrayList<>(manifests.size());
+    for (ApplicationManifest manifest : manifests) {
+      copied.add(copyToStaging(manifest));
+    }
+    return copied;
+  }
+
+  /**
+   * Copies all the application files of a manifest to the staging directory.
+   *
+   * @return the manifest, with its path in the staging directory
+   */
+  private ApplicationManifest copyToStaging(ApplicationManifest manifest) throws IOException, InterruptedException {
+    if (manifest.getPath() == null) {
+      return manifest;
+    }
+    FilePath source = toWorkspacePath(manifest.getPath());
+    FilePath target = staging.child(Util.rawEncode(manifest.getName()));
+    target.mkdirs();
+    listener.getLogger().println(String.format("INFO: Transferring from %s to %s", source.getRemote(), target.getRemote()));
+    if (source.isDirectory()) {
+      source.copyRecursiveTo(target);
+    } else {
+      target = target.child(source.getName());
+      source.copyTo(target);
+    }
+    return ApplicationManifest.builder().from(manifest).path(Paths.get(target.getRemote())).build();
+  }
+
+  @Override
+  public ApplicationBits bitsOf(ApplicationManifest manifest) {
+    if (!direct || manifest.getPath() == null) {
+      return null;
+    }
+    FilePath path = toWorkspacePath(manifest.getPath());
+    return staging == null ? ApplicationBits.of(path) : ApplicationBits.staged(path, staging.child(Util.rawEncode(manifest.getName())),
+        transferStreams, listener.getLogger());
+  }
+
+  /**
+   * Maps a path of a manifest parsed against the placeholder directory back
+   * to the workspace.
+   *
+   * @param path the path in the manifest
+   * @return the path on the agent
+   */
+  FilePath toWorkspacePath(Path path) {
+    Path normalized = path.normalize();
+    if (!normalized.startsWith(placeholder)) {
+      return new FilePath(workspace.getChannel(), path.toString());
+    }
+    String relative = placeholder.relativize(normalized).toString().replace(File.separatorChar, '/');
+    return relative.isEmpty() ? workspace : workspace.child(relative);
+  }
+}
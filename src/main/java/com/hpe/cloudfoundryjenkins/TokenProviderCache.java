@@ -0,0 +1,208 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.Util;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+import org.cloudfoundry.reactor.tokenprovider.PasswordGrantTokenProvider;
+import reactor.core.publisher.Mono;
+
+/**
+ * Controller-wide cache of UAA token providers.
+ * <p>
+ * Token providers hold on to the access and refresh tokens they obtain, so
+ * reusing one across builds lets back-to-back and concurrent pushes to the
+ * same target skip the password grant entirely. Providers are keyed by
+ * endpoint and credentials ID, and replaced as soon as the fingerprint of the
+ * credentials changes.
+ */
+public final class TokenProviderCache {
+
+  /**
+   * How long before its expiry an access token is refreshed (60 seconds by
+   * default).
+   */
+  static final long REFRESH_MARGIN = TimeUnit.SECONDS.toMillis(Long.getLong(TokenProviderCache.class.getName() + ".refreshMarginSeconds", 60));
+
+  private static final TokenProviderCache INSTANCE = new TokenProviderCache();
+
+  private final Map<Key, Entry> entries = new HashMap<>();
+
+  TokenProviderCache() {
+  }
+
+  /**
+   * @return the cache shared by all builds
+   */
+  public static TokenProviderCache get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Gets the token provider for the given endpoint and credentials, creating
+   * it if the credentials were never used or have changed since.
+   *
+   * @param endpoint the endpoint
+   * @param credentialsId the ID of the jenkins credentials
+   * @param username the username
+   * @param password the password
+   * @return the token provider
+   */
+  public synchronized TokenProvider getTokenProvider(ConnectionContextRegistry.Key endpoint, String credentialsId, String username, String password) {
+    Key key = new Key(endpoint, credentialsId);
+    String fingerprint = fingerprint(username, password);
+    Entry entry = entries.get(key);
+    if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+      entry = new Entry(fingerprint, new RefreshingTokenProvider(PasswordGrantTokenProvider.builder()
+              .username(username)
+              .password(password)
+              .build()));
+      entries.put(key, entry);
+    }
+    return entry.tokenProvider;
+  }
+
+  /**
+   * Forgets the token providers of an endpoint, e.g. because its connection
+   * context has been disposed.
+   *
+   * @param endpoint the endpoint
+   */
+  synchronized void evict(ConnectionContextRegistry.Key endpoint) {
+    for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext();) {
+      if (it.next().endpoint.equals(endpoint)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the number of cached token providers
+   */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  static String fingerprint(String username, String password) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(String.valueOf(username).getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+      return Util.toHexString(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final Pattern EXPIRY_PATTERN = Pattern.compile("\"exp\"\\s*:\\s*(\\d+)");
+
+  /**
+   * Reads the expiry of a JWT access token.
+   *
+   * @param token the token, optionally prefixed by its type
+   * @return the expiry in milliseconds since the epoch, or {@code null} if it
+   * could not be determined
+   */
+  static Long expiryOf(String token) {
+    if (token == null) {
+      return null;
+    }
+    String[] parts = token.substring(token.lastIndexOf(' ') + 1).split("\\.");
+    if (parts.length < 2) {
+      return null;
+    }
+    try {
+      String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+      Matcher matcher = EXPIRY_PATTERN.matcher(payload);
+      return matcher.find() ? TimeUnit.SECONDS.toMillis(Long.parseLong(matcher.group(1))) : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Refreshes the tokens of the underlying provider shortly before they
+   * expire, rather than waiting for a request to be rejected.
+   */
+  static final class RefreshingTokenProvider implements TokenProvider {
+
+    private final TokenProvider delegate;
+    private final Map<ConnectionContext, Long> expiries = new ConcurrentHashMap<>();
+
+    RefreshingTokenProvider(TokenProvider delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Mono<String> getToken(ConnectionContext connectionContext) {
+      Long expiry = expiries.get(connectionContext);
+      if (expiry != null && System.currentTimeMillis() >= expiry - REFRESH_MARGIN && expiries.remove(connectionContext, expiry)) {
+        delegate.invalidate(connectionContext);
+      }
+      return delegate.getToken(connectionContext)
+              .doOnNext(token -> {
+                Long tokenExpiry = expiryOf(token);
+                if (tokenExpiry != null) {
+                  expiries.put(connectionContext, tokenExpiry);
+                }
+              });
+    }
+
+    @Override
+    public void invalidate(ConnectionContext connectionContext) {
+      expiries.remove(connectionContext);
+      delegate.invalidate(connectionContext);
+    }
+  }
+
+  private static final class Key {
+
+    private final ConnectionContextRegistry.Key endpoint;
+    private final String credentialsId;
+
+    private Key(ConnectionContextRegistry.Key endpoint, String credentialsId) {
+      this.endpoint = endpoint;
+      this.credentialsId = credentialsId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return endpoint.equals(other.endpoint) && Objects.equals(credentialsId, other.credentialsId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(endpoint, credentialsId);
+    }
+  }
+
+  private static final class Entry {
+
+    private final String fingerprint;
+    private final TokenProvider tokenProvider;
+
+    private Entry(String fingerprint, TokenProvider tokenProvider) {
+      this.fingerprint = fingerprint;
+      this.tokenProvider = tokenProvider;
+    }
+  }
+}
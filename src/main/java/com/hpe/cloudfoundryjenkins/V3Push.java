@@ -0,0 +1,501 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import hudson.Util;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+
+/**
+ * Pushes an application through the v3 API of the Cloud Controller.
+ * <p>
+ * The manifest is applied to the space in one request, and the Cloud
+ * Controller reconciles the configuration, routes and service bindings of
+ * the application itself. The bits then go into a package, which is staged
+ * into a droplet by a build, and the droplet is made current before the
+ * application is restarted. This takes a handful of requests, where the v2
+ * push makes one or more per setting, route and service.
+ * <p>
+ * The manifest is sent as JSON, which is valid YAML. Like {@link DirectPush},
+ * only the files the Cloud Controller does not have are uploaded, and an
+ * application running with the same manifest and bits is left alone.
+ * <p>
+ * With a rolling deployment, a running application is not restarted: the new
+ * droplet goes out in a deployment, which replaces the instances one at a
+ * time and only moves on once the new instance passes its health check.
+ * Memory and disk changes go out with the deployment as well, rather than
+ * restarting the running instances.
+ * <p>
+ * When droplets are promoted from another space, the droplet of the
+ * application there is copied instead of uploading and staging the bits.
+ */
+class V3Push {
+
+  /**
+   * Engine which pushes through the v2 API.
+   */
+  static final String V2 = "v2";
+
+  /**
+   * Engine which pushes through the v3 API.
+   */
+  static final String V3 = "v3";
+
+  private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+  private final DirectPush directPush;
+  private final BitsUploader uploader;
+  private final CloudController controller;
+  private final Duration timeout;
+  private final boolean force;
+  private final boolean configurationOnly;
+  private final int compressionLevel;
+  private final boolean rolling;
+  private final DropletPromotion promotion;
+
+  /**
+   * @param directPush prepares the bits, and resolves the space and routes
+   * @param uploader the uploader of the application bits
+   * @param timeout the staging and upload timeout
+   * @param force {@code true} to push applications even if their manifest
+   * and bits are unchanged
+   * @param configurationOnly {@code true} to only apply the manifest of
+   * applications whose bits are unchanged
+   * @param compressionLevel the compression level of the application archives
+   * @param rolling {@code true} to deploy to running applications without
+   * downtime
+   * @param promotion promotes the droplets of another space, or {@code null}
+   * to stage the bits
+   */
+  V3Push(DirectPush directPush, BitsUploader uploader, Duration timeout, boolean force, boolean configurationOnly, int compressionLevel,
+      boolean rolling, DropletPromotion promotion) {
+    this.directPush = directPush;
+    this.uploader = uploader;
+    this.controller = uploader.getController();
+    this.timeout = timeout;
+    this.force = force;
+    this.configurationOnly = configurationOnly;
+    this.compressionLevel = compressionLevel;
+    this.rolling = rolling;
+    this.promotion = promotion;
+  }
+
+  /**
+   * @return {@code true} if droplets are promoted from another space, so
+   * the applications need no bits
+   */
+  boolean isPromoting() {
+    return promotion != null;
+  }
+
+  /**
+   * Pushes an application, unless it is running with the same manifest and
+   * bits already.
+   *
+   * @param manifest the manifest of the application
+   * @param bits the application bits, or {@code null} for a docker image or
+   * a promoted droplet
+   * @param log the log to report to
+   * @return what was done
+   */
+  DirectPush.Outcome push(ApplicationManifest manifest, ApplicationBits bits, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    String name = manifest.getName();
+    String spaceId = directPush.getSpaceId();
+    JsonNode sourceDroplet = null;
+    DirectPush.Prepared prepared;
+    if (promotion != null) {
+      // the source droplet stands in for the bits, so promoting it again is a no-op
+      sourceDroplet = promotion.findDroplet(name, spaceId);
+      String dropletDigest = "droplet:" + sourceDroplet.path("guid").asText();
+      prepared = new DirectPush.Prepared(null, null, dropletDigest, DirectPush.digest(manifest, dropletDigest));
+    } else {
+      prepared = bits == null ? null : directPush.prepare(manifest, bits, log);
+    }
+
+    JsonNode app = findApplication(name, spaceId);
+    boolean running = app != null && "STARTED".equals(app.path("state").asText());
+    Map<String, String> liveEnvironment = running ? environmentOf(app) : Collections.emptyMap();
+    if (!force && running && prepared != null && prepared.digest != null && prepared.digest.equals(liveEnvironment.get(DirectPush.DIGEST_VARIABLE))) {
+      log.println(name + ": unchanged, skipped");
+      return new DirectPush.Outcome(ApplicationPusher.Status.UNCHANGED, Collections.emptyList());
+    }
+    String applicationId;
+    if (app == null) {
+      log.println("Creating application " + name);
+      ObjectNode request = CloudController.MAPPER.createObjectNode().put("name", name);
+      request.putObject("relationships").putObject("space").putObject("data").put("guid", spaceId);
+      applicationId = controller.send("POST", "/v3/apps", request).path("guid").asText();
+    } else {
+      log.println("Updating application " + name);
+      applicationId = app.path("guid").asText();
+    }
+
+    ObjectNode applied = toManifest(manifest);
+    if (rolling && running) {
+      // scaling the memory or disk of the running instances restarts them in place, the deployment scales its new instances instead
+      ((ObjectNode) applied.path("applications").get(0)).remove(Arrays.asList("memory", "disk_quota"));
+    }
+    log.println("Applying manifest of " + name);
+    awaitJob(controller.send("POST", "/v3/spaces/" + spaceId + "/actions/apply_manifest", "application/x-yaml",
+        CloudController.MAPPER.writeValueAsBytes(applied)));
+
+    if (configurationOnly && !force && running && prepared != null && prepared.bitsDigest != null
+        && prepared.bitsDigest.equals(liveEnvironment.get(DirectPush.BITS_DIGEST_VARIABLE)) && !needsStaging(manifest, app)) {
+      if (rolling) {
+        log.println("Application files of " + name + " are unchanged, deploying the applied manifest");
+        deploy(applicationId, null, name, manifest, log);
+        recordDigests(applicationId, prepared);
+        return new DirectPush.Outcome(ApplicationPusher.Status.UPDATED, Collections.singletonList("applied manifest, deployed"));
+      }
+      log.println("Application files of " + name + " are unchanged, restarting it with the applied manifest");
+      restart(applicationId, name, manifest, log);
+      recordDigests(applicationId, prepared);
+      return new DirectPush.Outcome(ApplicationPusher.Status.UPDATED, Collections.singletonList("applied manifest, restarted"));
+    }
+
+    String dropletId;
+    if (sourceDroplet != null) {
+      dropletId = promotion.copy(sourceDroplet, applicationId, name, log);
+    } else {
+      String packageId = createPackage(applicationId, manifest, prepared, log);
+      dropletId = stage(packageId, name, log);
+    }
+    if (rolling && running) {
+      deploy(applicationId, dropletId, name, manifest, log);
+      recordDigests(applicationId, prepared);
+      return new DirectPush.Outcome(ApplicationPusher.Status.PUSHED, Collections.emptyList());
+    }
+    ObjectNode current = CloudController.MAPPER.createObjectNode();
+    current.putObject("data").put("guid", dropletId);
+    controller.send("PATCH", "/v3/apps/" + applicationId + "/relationships/current_droplet", current);
+    restart(applicationId, name, manifest, log);
+    recordDigests(applicationId, prepared);
+    return new DirectPush.Outcome(ApplicationPusher.Status.PUSHED, Collections.emptyList());
+  }
+
+  /**
+   * Records the digests of a push in the environment of the application,
+   * once its droplet runs. A push which fails before leaves the digests of
+   * the previous push, so the next build pushes again.
+   */
+  private void recordDigests(String applicationId, DirectPush.Prepared prepared) throws IOException {
+    if (prepared == null || prepared.digest == null) {
+      return;
+    }
+    ObjectNode request = CloudController.MAPPER.createObjectNode();
+    request.putObject("var")
+        .put(DirectPush.DIGEST_VARIABLE, prepared.digest)
+        .put(DirectPush.BITS_DIGEST_VARIABLE, prepared.bitsDigest);
+    controller.send("PATCH", "/v3/apps/" + applicationId + "/environment_variables", request);
+  }
+
+  /**
+   * Creates the package of an application and uploads its bits.
+   *
+   * @return the id of the package, ready to stage
+   */
+  private String createPackage(String applicationId, ApplicationManifest manifest, DirectPush.Prepared prepared, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    ObjectNode request = CloudController.MAPPER.createObjectNode();
+    request.putObject("relationships").putObject("app").putObject("data").put("guid", applicationId);
+    if (prepared == null) {
+      request.put("type", "docker").putObject("data").put("image", manifest.getDocker().getImage());
+      return controller.send("POST", "/v3/packages", request).path("guid").asText();
+    }
+    request.put("type", "bits");
+    String packageId = controller.send("POST", "/v3/packages", request).path("guid").asText();
+    Map<String, FingerprintCache.Fingerprint> matched = directPush.match(prepared.files, log);
+    ApplicationBits unmatched = matched.isEmpty() ? prepared.bits : prepared.bits.without(matched.keySet());
+    uploader.uploadPackage(packageId, unmatched.withCompressionLevel(compressionLevel), matched, timeout, log);
+    return packageId;
+  }
+
+  /**
+   * Stages a package and waits for its droplet.
+   *
+   * @return the id of the droplet
+   */
+  private String stage(String packageId, String name, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    log.println("Staging application " + name);
+    ObjectNode request = CloudController.MAPPER.createObjectNode();
+    request.putObject("package").put("guid", packageId);
+    JsonNode build = controller.send("POST", "/v3/builds", request);
+    long deadline = System.currentTimeMillis() + timeout.toMillis();
+    while (true) {
+      String state = build.path("state").asText();
+      if ("STAGED".equals(state)) {
+        return build.path("droplet").path("guid").asText();
+      }
+      if ("FAILED".equals(state)) {
+        throw new IOException("Staging " + name + " failed: " + build.path("error").asText(state));
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        throw new TimeoutException("Staging " + name + " still " + state.toLowerCase(Locale.ROOT) + " after " + timeout.getSeconds() + " seconds");
+      }
+      Thread.sleep(POLL_INTERVAL);
+      build = controller.get("/v3/builds/" + build.path("guid").asText());
+    }
+  }
+
+  /**
+   * Restarts an application and waits until its instances are running.
+   */
+  private void restart(String applicationId, String name, ApplicationManifest manifest, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    log.println("Starting application " + name);
+    controller.send("POST", "/v3/apps/" + applicationId + "/actions/stop", null);
+    controller.send("POST", "/v3/apps/" + applicationId + "/actions/start", null);
+    awaitRunning(applicationId, name, manifest.getTimeout() == null ? timeout : Duration.ofSeconds(manifest.getTimeout()));
+  }
+
+  /**
+   * Replaces the instances of a running application one at a time, and waits
+   * until all of them are running. A deployment which does not complete in
+   * time is canceled, which rolls the application back. The new instances get
+   * the memory and disk of the manifest, which were left out of the applied
+   * manifest.
+   *
+   * @param dropletId the droplet to deploy, or {@code null} to deploy the
+   * current droplet with the current configuration
+   */
+  private void deploy(String applicationId, String dropletId, String name, ApplicationManifest manifest, PrintStream log) throws IOException, InterruptedException, TimeoutException {
+    log.println("Rolling deployment of " + name);
+    ObjectNode request = CloudController.MAPPER.createObjectNode();
+    if (dropletId != null) {
+      request.putObject("droplet").put("guid", dropletId);
+    }
+    ObjectNode options = scalingOptions(applicationId, manifest);
+    if (options != null) {
+      request.set("options", options);
+    }
+    request.putObject("relationships").putObject("app").putObject("data").put("guid", applicationId);
+    JsonNode deployment = controller.send("POST", "/v3/deployments", request);
+    String deploymentId = deployment.path("guid").asText();
+    Duration startupTimeout = manifest.getTimeout() == null ? timeout : Duration.ofSeconds(manifest.getTimeout());
+    // each instance gets the startup timeout, but the deployment as a whole is bounded too
+    long deadline = System.currentTimeMillis() + timeout.toMillis() + startupTimeout.toMillis();
+    while (true) {
+      String outcome = deploymentOutcome(deployment);
+      if ("DEPLOYED".equals(outcome)) {
+        break;
+      }
+      if (outcome != null) {
+        throw new IOException("Deployment of " + name + " " + outcome.toLowerCase(Locale.ROOT));
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        log.println("Canceling the deployment of " + name + ", the previous droplet keeps running");
+        controller.send("POST", "/v3/deployments/" + deploymentId + "/actions/cancel", null);
+        throw new TimeoutException("Deployment of " + name + " not complete after " + (timeout.getSeconds() + startupTimeout.getSeconds()) + " seconds");
+      }
+      Thread.sleep(POLL_INTERVAL);
+      deployment = controller.get("/v3/deployments/" + deploymentId);
+    }
+    awaitRunning(applicationId, name, startupTimeout);
+  }
+
+  /**
+   * @return the deployment options scaling the new instances to the memory
+   * and disk of the manifest, or {@code null} if the web process has them
+   * already, so Cloud Controllers without deployment options still deploy
+   * unscaled applications
+   */
+  private ObjectNode scalingOptions(String applicationId, ApplicationManifest manifest) throws IOException {
+    if (manifest.getMemory() == null && manifest.getDisk() == null) {
+      return null;
+    }
+    JsonNode web = controller.get("/v3/apps/" + applicationId + "/processes/web");
+    ObjectNode options = CloudController.MAPPER.createObjectNode();
+    if (manifest.getMemory() != null && manifest.getMemory() != web.path("memory_in_mb").asInt()) {
+      options.put("memory_in_mb", manifest.getMemory());
+    }
+    if (manifest.getDisk() != null && manifest.getDisk() != web.path("disk_in_mb").asInt()) {
+      options.put("disk_in_mb", manifest.getDisk());
+    }
+    return options.size() == 0 ? null : options;
+  }
+
+  /**
+   * @param deployment a deployment
+   * @return {@code null} while the deployment is in progress, otherwise how
+   * it ended: {@code DEPLOYED}, {@code CANCELED}, {@code FAILED} or
+   * {@code SUPERSEDED}
+   */
+  static String deploymentOutcome(JsonNode deployment) {
+    JsonNode status = deployment.path("status");
+    if (status.has("value")) {
+      // newer Cloud Controllers finalize every deployment, with the reason telling how it ended
+      return "FINALIZED".equals(status.path("value").asText()) ? status.path("reason").asText("DEPLOYED") : null;
+    }
+    String state = deployment.path("state").asText();
+    return "DEPLOYING".equals(state) || "CANCELING".equals(state) ? null : state;
+  }
+
+  /**
+   * Waits until the instances of the web process of an application are
+   * running.
+   *
+   * @param applicationId the id of the application
+   * @param name the name of the application
+   * @param startupTimeout how long to wait
+   */
+  void awaitRunning(String applicationId, String name, Duration startupTimeout) throws IOException, InterruptedException, TimeoutException {
+    long deadline = System.currentTimeMillis() + startupTimeout.toMillis();
+    while (true) {
+      int running = 0;
+      int pending = 0;
+      for (JsonNode instance : controller.get("/v3/apps/" + applicationId + "/processes/web/stats").path("resources")) {
+        String state = instance.path("state").asText();
+        if ("RUNNING".equals(state)) {
+          running++;
+        } else if ("CRASHED".equals(state)) {
+          throw new IOException("An instance of " + name + " crashed on startup");
+        } else {
+          pending++;
+        }
+      }
+      if (pending == 0) {
+        return;
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        throw new TimeoutException(name + " has " + running + " of " + (running + pending) + " instances running after "
+            + startupTimeout.getSeconds() + " seconds");
+      }
+      Thread.sleep(POLL_INTERVAL);
+    }
+  }
+
+  /**
+   * Waits for an asynchronous request of the Cloud Controller.
+   *
+   * @param response the response to the request, with the location of its
+   * job
+   */
+  private void awaitJob(JsonNode response) throws IOException, InterruptedException, TimeoutException {
+    String location = response.path("location").asText(null);
+    if (location == null) {
+      return;
+    }
+    String path = new URL(location).getPath();
+    long deadline = System.currentTimeMillis() + timeout.toMillis();
+    while (true) {
+      JsonNode job = controller.get(path);
+      String state = job.path("state").asText();
+      if ("COMPLETE".equals(state)) {
+        return;
+      }
+      if ("FAILED".equals(state)) {
+        List<String> errors = new ArrayList<>();
+        for (JsonNode error : job.path("errors")) {
+          errors.add(error.path("detail").asText());
+        }
+        throw new IOException(job.path("operation").asText("Job") + " failed: " + String.join(", ", errors));
+      }
+      if (System.currentTimeMillis() >= deadline) {
+        throw new TimeoutException(job.path("operation").asText("Job") + " still " + state.toLowerCase(Locale.ROOT) + " after " + timeout.getSeconds() + " seconds");
+      }
+      Thread.sleep(POLL_INTERVAL);
+    }
+  }
+
+  /**
+   * @return the application, or {@code null} if there is none by that name
+   */
+  JsonNode findApplication(String name, String spaceId) throws IOException {
+    JsonNode resources = controller.get("/v3/apps?names=" + Util.rawEncode(name) + "&space_guids=" + spaceId).path("resources");
+    return resources.size() == 0 ? null : resources.get(0);
+  }
+
+  private Map<String, String> environmentOf(JsonNode app) throws IOException {
+    JsonNode variables = controller.get("/v3/apps/" + app.path("guid").asText() + "/environment_variables").path("var");
+    Map<String, String> environment = new HashMap<>();
+    variables.fields().forEachRemaining(variable -> environment.put(variable.getKey(), variable.getValue().asText()));
+    return environment;
+  }
+
+  /**
+   * @return {@code true} if the buildpack or stack of the manifest differ
+   * from the ones of the application, so its droplet is outdated
+   */
+  private static boolean needsStaging(ApplicationManifest manifest, JsonNode app) {
+    JsonNode lifecycle = app.path("lifecycle").path("data");
+    JsonNode buildpacks = lifecycle.path("buildpacks");
+    return manifest.getBuildpack() != null && !(buildpacks.size() == 1 && manifest.getBuildpack().equals(buildpacks.get(0).asText()))
+        || manifest.getStack() != null && !manifest.getStack().equals(lifecycle.path("stack").asText());
+  }
+
+  /**
+   * Converts a manifest to the manifest to apply. The digests of the push
+   * are left out, they are only recorded once the push succeeded.
+   *
+   * @param manifest the manifest
+   * @return the manifest to apply
+   */
+  ObjectNode toManifest(ApplicationManifest manifest) {
+    ObjectNode root = CloudController.MAPPER.createObjectNode();
+    ObjectNode application = root.putArray("applications").addObject();
+    application.put("name", manifest.getName());
+    if (manifest.getInstances() != null) {
+      application.put("instances", manifest.getInstances());
+    }
+    if (manifest.getMemory() != null) {
+      application.put("memory", manifest.getMemory() + "M");
+    }
+    if (manifest.getDisk() != null) {
+      application.put("disk_quota", manifest.getDisk() + "M");
+    }
+    if (manifest.getBuildpack() != null) {
+      application.put("buildpack", manifest.getBuildpack());
+    }
+    if (manifest.getStack() != null) {
+      application.put("stack", manifest.getStack());
+    }
+    if (manifest.getCommand() != null) {
+      application.put("command", manifest.getCommand());
+    }
+    if (manifest.getHealthCheckType() != null) {
+      application.put("health-check-type", manifest.getHealthCheckType().name().toLowerCase(Locale.ROOT));
+    }
+    if (manifest.getTimeout() != null) {
+      application.put("timeout", manifest.getTimeout());
+    }
+    if (manifest.getDocker() != null && manifest.getDocker().getImage() != null) {
+      application.putObject("docker").put("image", manifest.getDocker().getImage());
+    }
+    ObjectNode environment = application.putObject("env");
+    if (manifest.getEnvironmentVariables() != null) {
+      for (Map.Entry<String, ?> variable : manifest.getEnvironmentVariables().entrySet()) {
+        environment.put(variable.getKey(), String.valueOf(variable.getValue()));
+      }
+    }
+    if (Boolean.TRUE.equals(manifest.getNoRoute())) {
+      application.put("no-route", true);
+    } else if (Boolean.TRUE.equals(manifest.getRandomRoute()) && (manifest.getRoutes() == null || manifest.getRoutes().isEmpty())) {
+      // let the Cloud Controller pick the route, and keep it on later pushes
+      application.put("random-route", true);
+    } else {
+      ArrayNode routes = application.putArray("routes");
+      for (DirectPush.RouteSpec route : directPush.desiredRoutes(manifest)) {
+        routes.addObject().put("route", route.toString());
+      }
+    }
+    if (manifest.getServices() != null && !manifest.getServices().isEmpty()) {
+      ArrayNode services = application.putArray("services");
+      manifest.getServices().forEach(services::add);
+    }
+    return root;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link AgentPush}.
+ */
+public class AgentPushTest {
+
+  private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+  private final List<String> calls = new ArrayList<>();
+
+  private static String tokenExpiringIn(long seconds) {
+    long exp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + seconds;
+    String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(("{\"exp\":" + exp + "}").getBytes(StandardCharsets.UTF_8));
+    return "bearer eyJhbGciOiJSUzI1NiJ9." + payload + ".c2lnbmF0dXJl";
+  }
+
+  private TokenProvider tokens(String... tokens) {
+    Iterator<String> it = Arrays.asList(tokens).iterator();
+    return Stubs.of(TokenProvider.class, new Object() {
+      public Mono<String> getToken(ConnectionContext connectionContext) {
+        calls.add("get");
+        return Mono.just(it.next());
+      }
+
+      public void invalidate(ConnectionContext connectionContext) {
+        calls.add("invalidate");
+      }
+    });
+  }
+
+  private String accessToken(TokenProvider tokenProvider, long timeout) throws Exception {
+    return AgentPush.accessToken(tokenProvider, null, timeout, new PrintStream(log, true, StandardCharsets.UTF_8.name()));
+  }
+
+  @Test
+  public void testTokenOutlivingThePushIsSentAsIs() throws Exception {
+    String token = tokenExpiringIn(3600);
+    assertEquals(token, accessToken(tokens(token), 600));
+    assertEquals(Arrays.asList("get"), calls);
+  }
+
+  @Test
+  public void testTokenExpiringDuringThePushIsRefreshed() throws Exception {
+    String fresh = tokenExpiringIn(3600);
+    assertEquals(fresh, accessToken(tokens(tokenExpiringIn(60), fresh), 600));
+    assertEquals(Arrays.asList("get", "invalidate", "get"), calls);
+    assertEquals(0, log.size());
+  }
+
+  @Test
+  public void testShortLivedTokenIsReported() throws Exception {
+    accessToken(tokens(tokenExpiringIn(60), tokenExpiringIn(300)), 600);
+    assertTrue(new String(log.toByteArray(), StandardCharsets.UTF_8).startsWith("WARNING: The access token sent to the build agent expires in"));
+  }
+}
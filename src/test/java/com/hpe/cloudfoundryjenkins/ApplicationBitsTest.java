@@ -0,0 +1,113 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ApplicationBits}.
+ */
+public class ApplicationBitsTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testZipHasNoTopLevelDirectory() throws Exception {
+    File app = tempFolder.newFolder("app");
+    new FilePath(new File(app, "index.html")).write("hello", "UTF-8");
+    new FilePath(new File(app, "WEB-INF/web.xml")).write("<web-app/>", "UTF-8");
+
+    assertEquals(new TreeSet<>(Arrays.asList("WEB-INF/web.xml", "index.html")), filesOf(ApplicationBits.of(new FilePath(app))));
+  }
+
+  @Test
+  public void testCfIgnoredFilesAreLeftOut() throws Exception {
+    File app = tempFolder.newFolder("app");
+    new FilePath(new File(app, "index.html")).write("hello", "UTF-8");
+    new FilePath(new File(app, "logs/debug.log")).write("debug", "UTF-8");
+    new FilePath(new File(app, "tmp/scratch")).write("scratch", "UTF-8");
+    new FilePath(new File(app, CfIgnore.FILE_NAME)).write("logs/\n", "UTF-8");
+
+    ApplicationBits bits = ApplicationBits.of(new FilePath(app)).withExcludes(Collections.singletonList("tmp"));
+
+    assertEquals(Collections.singleton("index.html"), filesOf(bits));
+  }
+
+  @Test
+  public void testLocalArchiveIsSentFromItsFile() throws Exception {
+    File war = tempFolder.newFile("app.war");
+    File spool = tempFolder.newFolder("spool");
+
+    assertEquals(war, ApplicationBits.of(new FilePath(war)).toArchiveFile(spool));
+    assertEquals(0, spool.list().length);
+  }
+
+  @Test
+  public void testLocalDirectoryIsZippedOnce() throws Exception {
+    File app = tempFolder.newFolder("app");
+    new FilePath(new File(app, "index.html")).write("hello", "UTF-8");
+    File spool = tempFolder.newFolder("spool");
+
+    File archive = ApplicationBits.of(new FilePath(app)).toArchiveFile(spool);
+
+    assertEquals(spool, archive.getParentFile());
+    assertEquals(Collections.singleton("index.html"), filesOf(ApplicationBits.of(new FilePath(archive))));
+  }
+
+  @Test
+  public void testStagedBitsLeaveOutMatchedFiles() throws Exception {
+    File app = tempFolder.newFolder("app");
+    new FilePath(new File(app, "index.html")).write("hello", "UTF-8");
+    new FilePath(new File(app, "lib/big.jar")).write("known", "UTF-8");
+    File staging = tempFolder.newFolder("staging");
+
+    ApplicationBits bits = ApplicationBits.staged(new FilePath(app), new FilePath(staging))
+            .without(Collections.singleton("lib/big.jar"));
+
+    assertEquals(Collections.singleton("index.html"), filesOf(bits));
+    assertFalse(new File(staging, "app/lib/big.jar").exists());
+  }
+
+  private static Set<String> filesOf(ApplicationBits bits) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    bits.writeTo(out);
+    Set<String> files = new TreeSet<>();
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        if (!entry.isDirectory()) {
+          files.add(entry.getName());
+        }
+      }
+    }
+    return files;
+  }
+
+  @Test
+  public void testArchiveIsWrittenAsItIs() throws Exception {
+    File war = tempFolder.newFile("app.WAR");
+    byte[] content = "not really a war".getBytes("UTF-8");
+    Files.write(war.toPath(), content);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ApplicationBits.of(new FilePath(war)).writeTo(out);
+
+    assertArrayEquals(content, out.toByteArray());
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ApplicationPusher}.
+ */
+public class ApplicationPusherTest {
+
+  private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+  private ApplicationPusher newPusher() {
+    return new ApplicationPusher(null, new StreamTaskListener(log, StandardCharsets.UTF_8), 60, 4, ApplicationPusher.COLLECT_ALL, null, null, manifest -> null);
+  }
+
+  @Test
+  public void testReportListsEveryApplication() {
+    boolean success = newPusher().report(Arrays.asList(
+            new ApplicationPusher.Result(0, "app-1", ApplicationPusher.Status.PUSHED, 1500, null),
+            new ApplicationPusher.Result(1, "app-2", ApplicationPusher.Status.FAILED, 60000, "timed out"),
+            new ApplicationPusher.Result(2, "app-3", ApplicationPusher.Status.SKIPPED, 0, "an earlier push failed")));
+    assertFalse(success);
+    String output = new String(log.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(output, output.contains("Pushed 1 of 3 applications:"));
+    assertTrue(output, output.contains("app-1: PUSHED after 1.5s"));
+    assertTrue(output, output.contains("app-2: FAILED after 60.0s (timed out)"));
+    assertTrue(output, output.contains("app-3: SKIPPED (an earlier push failed)"));
+  }
+
+  @Test
+  public void testReportIsQuietForSingleApplication() {
+    assertTrue(newPusher().report(Collections.singletonList(
+            new ApplicationPusher.Result(0, "app", ApplicationPusher.Status.PUSHED, 1000, null))));
+    assertEquals(0, log.size());
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.IOUtils;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.TokenProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link BitsUploader}, against a local HTTP server standing in for
+ * the Cloud Controller.
+ */
+public class BitsUploaderTest {
+
+  private static final TokenProvider TOKEN = Stubs.of(TokenProvider.class, new Object() {
+    public Mono<String> getToken(ConnectionContext connectionContext) {
+      return Mono.just("bearer token");
+    }
+  });
+
+  private final Map<String, String> bodies = new ConcurrentHashMap<>();
+  private final Map<String, String> headers = new ConcurrentHashMap<>();
+  private final List<String> jobStatuses = Collections.synchronizedList(new ArrayList<>());
+  private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+  private HttpServer server;
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/v2/apps/app-id/bits", exchange -> {
+      bodies.put("bits", IOUtils.toString(exchange.getRequestBody(), StandardCharsets.ISO_8859_1));
+      headers.put("Content-Type", exchange.getRequestHeaders().getFirst("Content-Type"));
+      headers.put("Authorization", exchange.getRequestHeaders().getFirst("Authorization"));
+      respond(exchange, 201, "{\"metadata\":{\"guid\":\"job-id\"},\"entity\":{\"status\":\"queued\"}}");
+    });
+    server.createContext("/v2/jobs/job-id", exchange -> {
+      String status = jobStatuses.remove(0);
+      respond(exchange, 200, "{\"metadata\":{\"guid\":\"job-id\"},\"entity\":{\"status\":\"" + status + "\""
+              + ("failed".equals(status) ? ",\"error_details\":{\"description\":\"disk full\"}" : "") + "}}");
+    });
+    server.createContext("/v2/stalled", exchange -> {
+      // never answers
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private CloudController controller(Duration timeout) {
+    ConnectionContextRegistry.Key endpoint = new ConnectionContextRegistry.Key("localhost", server.getAddress().getPort(), Boolean.FALSE, false, null);
+    return new CloudController(endpoint, null, TOKEN, timeout);
+  }
+
+  private long upload(Map<String, FingerprintCache.Fingerprint> matched) throws Exception {
+    return new BitsUploader(controller(Duration.ofSeconds(10))).upload("app-id", out -> out.write("zipped bits".getBytes(StandardCharsets.UTF_8)),
+            matched, Duration.ofSeconds(10), new PrintStream(log, true, StandardCharsets.UTF_8.name()));
+  }
+
+  @Test
+  public void testBitsAreSentAsMultipartWithTheMatchedResources() throws Exception {
+    jobStatuses.add("finished");
+
+    assertEquals(11, upload(Collections.singletonMap("WEB-INF/web.xml",
+            new FingerprintCache.Fingerprint(42, 1000, "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d", "644"))));
+
+    assertEquals("bearer token", headers.get("Authorization"));
+    String boundary = headers.get("Content-Type").substring("multipart/form-data; boundary=".length());
+    assertEquals("--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"resources\"\r\n\r\n"
+            + "[{\"fn\":\"WEB-INF/web.xml\",\"sha1\":\"aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d\",\"size\":42,\"mode\":\"644\"}]\r\n"
+            + "--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"application\"; filename=\"application.zip\"\r\n"
+            + "Content-Type: application/zip\r\n\r\n"
+            + "zipped bits\r\n"
+            + "--" + boundary + "--\r\n", bodies.get("bits"));
+  }
+
+  @Test
+  public void testJobIsPolledUntilFinished() throws Exception {
+    jobStatuses.addAll(Arrays.asList("running", "finished"));
+
+    upload(Collections.emptyMap());
+
+    assertTrue("both job statuses were polled", jobStatuses.isEmpty());
+  }
+
+  @Test
+  public void testFailedJobFailsTheUpload() throws Exception {
+    jobStatuses.add("failed");
+    try {
+      upload(Collections.emptyMap());
+      fail("the upload should have failed");
+    } catch (IOException e) {
+      assertEquals("Upload failed: disk full", e.getMessage());
+    }
+  }
+
+  @Test(expected = SocketTimeoutException.class)
+  public void testStalledControllerTimesOut() throws Exception {
+    controller(Duration.ofMillis(500)).get("/v2/stalled");
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CfIgnore}.
+ */
+public class CfIgnoreTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testPatterns() {
+    CfIgnore ignore = new CfIgnore(Arrays.asList("# comment", "*.log", "!keep.log", "/build/", "docs/**/*.pdf", "tmp"));
+
+    assertTrue(ignore.isExcluded("server.log", false));
+    assertTrue(ignore.isExcluded("logs/server.log", false));
+    assertFalse(ignore.isExcluded("logs/keep.log", false));
+    assertTrue(ignore.isExcluded("build/classes/App.class", false));
+    assertFalse(ignore.isExcluded("src/build", false));
+    assertTrue(ignore.isExcluded("docs/guide.pdf", false));
+    assertTrue(ignore.isExcluded("docs/a/b/guide.pdf", false));
+    assertTrue(ignore.isExcluded("a/tmp/file.txt", false));
+    assertFalse(ignore.isExcluded("index.html", false));
+  }
+
+  @Test
+  public void testSplit() {
+    assertEquals(Arrays.asList("*.log", "node_modules/", "tmp"), CfIgnore.split(" *.log, node_modules/\n\ntmp "));
+    assertTrue(CfIgnore.split(null).isEmpty());
+  }
+
+  @Test
+  public void testExcludedFilesAreNotFingerprinted() throws Exception {
+    File app = tempFolder.newFolder("app");
+    new FilePath(new File(app, "index.html")).write("hello", "UTF-8");
+    new FilePath(new File(app, "debug.log")).write("12345", "UTF-8");
+    new FilePath(new File(app, "node_modules/a/index.js")).write("a", "UTF-8");
+    new FilePath(new File(app, ".git/HEAD")).write("ref", "UTF-8");
+    new FilePath(new File(app, CfIgnore.FILE_NAME)).write("*.log\n", "UTF-8");
+
+    FingerprintCache.Scan scan = new FilePath(app).act(new FingerprintCache.FingerprintFiles(Collections.emptyMap(),
+            Collections.singletonList("node_modules/")));
+
+    assertEquals(Collections.singleton("index.html"), scan.files.keySet());
+    assertEquals(2, scan.exclusions.files);
+    assertEquals(5 + "*.log\n".length(), scan.exclusions.bytes);
+    assertEquals(2, scan.exclusions.directories);
+  }
+}
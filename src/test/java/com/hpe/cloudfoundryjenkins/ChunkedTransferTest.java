@@ -0,0 +1,45 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ChunkedTransfer}.
+ */
+public class ChunkedTransferTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testChunksAreReassembled() throws Exception {
+    byte[] content = new byte[(int) (3 * ChunkedTransfer.MIN_CHUNK_SIZE + 12345)];
+    new Random(42).nextBytes(content);
+    File source = tempFolder.newFile("app.war");
+    Files.write(source.toPath(), content);
+    File target = new File(tempFolder.getRoot(), "copy.war");
+
+    assertEquals(3, ChunkedTransfer.copy(new FilePath(source), target, 4));
+    assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+  }
+
+  @Test
+  public void testSmallFilesAreCopiedOverOneStream() throws Exception {
+    File source = tempFolder.newFile("app.war");
+    Files.write(source.toPath(), "small".getBytes("UTF-8"));
+    File target = new File(tempFolder.getRoot(), "copy.war");
+
+    assertEquals(1, ChunkedTransfer.copy(new FilePath(source), target, 4));
+    assertEquals("small", new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.Metadata;
+import org.cloudfoundry.client.v2.organizations.ListOrganizationsRequest;
+import org.cloudfoundry.client.v2.organizations.ListOrganizationsResponse;
+import org.cloudfoundry.client.v2.organizations.OrganizationResource;
+import org.cloudfoundry.client.v2.organizations.Organizations;
+import org.cloudfoundry.client.v2.spaces.ListSpacesRequest;
+import org.cloudfoundry.client.v2.spaces.ListSpacesResponse;
+import org.cloudfoundry.client.v2.spaces.SpaceResource;
+import org.cloudfoundry.client.v2.spaces.Spaces;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CloudFoundryUtils}.
+ */
+public class CloudFoundryUtilsTest {
+
+  @Test
+  public void testSpaceIdIsLookedUpByNameOnce() {
+    List<Object> requests = new ArrayList<>();
+    CloudFoundryClient client = Stubs.of(CloudFoundryClient.class, new Object() {
+      public Organizations organizations() {
+        return Stubs.of(Organizations.class, new Object() {
+          public Mono<ListOrganizationsResponse> list(ListOrganizationsRequest request) {
+            requests.add(request);
+            return Mono.just(ListOrganizationsResponse.builder()
+                    .resource(OrganizationResource.builder().metadata(Metadata.builder().id("org-id").build()).build())
+                    .build());
+          }
+        });
+      }
+
+      public Spaces spaces() {
+        return Stubs.of(Spaces.class, new Object() {
+          public Mono<ListSpacesResponse> list(ListSpacesRequest request) {
+            requests.add(request);
+            return Mono.just(ListSpacesResponse.builder()
+                    .resource(SpaceResource.builder().metadata(Metadata.builder().id("space-id").build()).build())
+                    .build());
+          }
+        });
+      }
+    });
+
+    Mono<String> spaceId = CloudFoundryUtils.findSpaceId(client, "acme", "staging");
+
+    assertEquals("space-id", spaceId.block());
+    assertEquals("space-id", spaceId.block());
+    assertEquals(2, requests.size());
+    assertEquals(Collections.singletonList("acme"), ((ListOrganizationsRequest) requests.get(0)).getNames());
+    assertEquals(Collections.singletonList("staging"), ((ListSpacesRequest) requests.get(1)).getNames());
+    assertEquals(Collections.singletonList("org-id"), ((ListSpacesRequest) requests.get(1)).getOrganizationIds());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownSpaceFails() {
+    CloudFoundryClient client = Stubs.of(CloudFoundryClient.class, new Object() {
+      public Organizations organizations() {
+        return Stubs.of(Organizations.class, new Object() {
+          public Mono<ListOrganizationsResponse> list(ListOrganizationsRequest request) {
+            return Mono.just(ListOrganizationsResponse.builder().build());
+          }
+        });
+      }
+    });
+
+    CloudFoundryUtils.findSpaceId(client, "acme", "staging").block();
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ConnectionContextRegistry}.
+ */
+public class ConnectionContextRegistryTest {
+
+  private final ConnectionContextRegistry registry = new ConnectionContextRegistry();
+
+  @After
+  public void disposeContexts() {
+    registry.disposeAll();
+  }
+
+  @Test
+  public void testSameEndpointSharesContext() throws Exception {
+    ConnectionContextRegistry.Key key = new ConnectionContextRegistry.Key("api.the.cloudfoundry.host", null, null, false, null);
+    try (ConnectionContextRegistry.Lease first = registry.acquire(key);
+            ConnectionContextRegistry.Lease second = registry.acquire(new ConnectionContextRegistry.Key("api.the.cloudfoundry.host", null, null, false, null))) {
+      assertSame("should share the context", first.getConnectionContext(), second.getConnectionContext());
+      assertEquals(1, registry.size());
+    }
+  }
+
+  @Test
+  public void testDifferentEndpointsDoNotShareContext() throws Exception {
+    try (ConnectionContextRegistry.Lease first = registry.acquire(new ConnectionContextRegistry.Key("api.the.cloudfoundry.host", null, null, false, null));
+            ConnectionContextRegistry.Lease second = registry.acquire(new ConnectionContextRegistry.Key("api.the.cloudfoundry.host", null, null, true, null))) {
+      assertNotSame("should not share the context", first.getConnectionContext(), second.getConnectionContext());
+      assertEquals(2, registry.size());
+    }
+  }
+
+  @Test
+  public void testBorrowedContextIsNotEvicted() throws Exception {
+    ConnectionContextRegistry.Key key = new ConnectionContextRegistry.Key("api.the.cloudfoundry.host", 12345, Boolean.FALSE, false, null);
+    try (ConnectionContextRegistry.Lease lease = registry.acquire(key)) {
+      assertEquals(0, registry.evictIdle(System.currentTimeMillis() + ConnectionContextRegistry.IDLE_TIMEOUT));
+      assertEquals(1, registry.size());
+    }
+  }
+
+  @Test
+  public void testIdleContextIsEvicted() throws Exception {
+    ConnectionContextRegistry.Key key = new ConnectionContextRegistry.Key("api.the.cloudfoundry.host", 12345, Boolean.FALSE, false, null);
+    ConnectionContextRegistry.Lease lease = registry.acquire(key);
+    lease.close();
+    lease.close();
+    assertEquals("should not evict recently used contexts", 0, registry.evictIdle(System.currentTimeMillis()));
+    assertEquals(1, registry.evictIdle(System.currentTimeMillis() + ConnectionContextRegistry.IDLE_TIMEOUT));
+    assertEquals(0, registry.size());
+  }
+}
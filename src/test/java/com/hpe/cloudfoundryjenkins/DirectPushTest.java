@@ -0,0 +1,432 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.Metadata;
+import org.cloudfoundry.client.v2.applications.ApplicationEntity;
+import org.cloudfoundry.client.v2.applications.ApplicationInstanceInfo;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesResponse;
+import org.cloudfoundry.client.v2.applications.ApplicationResource;
+import org.cloudfoundry.client.v2.applications.ApplicationsV2;
+import org.cloudfoundry.client.v2.applications.CreateApplicationRequest;
+import org.cloudfoundry.client.v2.applications.CreateApplicationResponse;
+import org.cloudfoundry.client.v2.applications.ListApplicationRoutesRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationRoutesResponse;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationResponse;
+import org.cloudfoundry.client.v2.routes.RouteEntity;
+import org.cloudfoundry.client.v2.routes.RouteResource;
+import org.cloudfoundry.client.v2.spaces.ListSpaceApplicationsRequest;
+import org.cloudfoundry.client.v2.spaces.ListSpaceApplicationsResponse;
+import org.cloudfoundry.client.v2.spaces.Spaces;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.Applications;
+import org.cloudfoundry.operations.applications.DeleteApplicationRequest;
+import org.cloudfoundry.operations.applications.RenameApplicationRequest;
+import org.cloudfoundry.operations.applications.RestartApplicationRequest;
+import org.cloudfoundry.operations.applications.ScaleApplicationRequest;
+import org.cloudfoundry.operations.applications.StartApplicationRequest;
+import org.cloudfoundry.operations.applications.StopApplicationRequest;
+import org.cloudfoundry.operations.domains.Domain;
+import org.cloudfoundry.operations.domains.Domains;
+import org.cloudfoundry.operations.domains.Status;
+import org.cloudfoundry.operations.routes.MapRouteRequest;
+import org.cloudfoundry.operations.routes.Routes;
+import org.cloudfoundry.operations.routes.UnmapRouteRequest;
+import org.cloudfoundry.operations.services.BindServiceInstanceRequest;
+import org.cloudfoundry.operations.services.Services;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link DirectPush}.
+ */
+public class DirectPushTest {
+
+  private final Space space = new Space();
+  private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+  @Test
+  public void testDigestIgnoresTheApplicationPath() {
+    Map<String, FingerprintCache.Fingerprint> files = Collections.singletonMap("index.html",
+            new FingerprintCache.Fingerprint(5, 1000, "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d", "644"));
+    String bitsDigest = DirectPush.bitsDigest(files, null);
+
+    assertEquals(DirectPush.digest(manifest("/tmp/appDir1"), bitsDigest), DirectPush.digest(manifest("/tmp/appDir2"), bitsDigest));
+  }
+
+  @Test
+  public void testDigestChangesWithTheBits() {
+    Map<String, FingerprintCache.Fingerprint> before = Collections.singletonMap("index.html",
+            new FingerprintCache.Fingerprint(5, 1000, "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d", "644"));
+    Map<String, FingerprintCache.Fingerprint> after = Collections.singletonMap("index.html",
+            new FingerprintCache.Fingerprint(5, 2000, "9591818c07e900db7e1e0bc4b884c945e6a61b24", "644"));
+
+    assertNotEquals(DirectPush.bitsDigest(before, null), DirectPush.bitsDigest(after, null));
+    assertNotEquals(DirectPush.digest(manifest("/tmp/app"), "1"), DirectPush.digest(manifest("/tmp/app"), "2"));
+    assertEquals("1", DirectPush.bitsDigest(null, "1"));
+    assertNull(DirectPush.bitsDigest(null, null));
+  }
+
+  @Test
+  public void testDigestChangesWithTheManifest() {
+    ApplicationManifest scaled = ApplicationManifest.builder().from(manifest("/tmp/app")).instances(2).build();
+
+    assertNotEquals(DirectPush.digest(manifest("/tmp/app"), "1"), DirectPush.digest(scaled, "1"));
+  }
+
+  @Test
+  public void testNewApplicationIsCreatedRoutedBoundUploadedAndStarted() throws Exception {
+    push(ApplicationManifest.builder().from(manifest("/tmp/app")).services("db").build());
+
+    assertEquals(Arrays.asList("create hello-java", "map hello-java.example.com", "bind db", "upload hello-java-id", "start hello-java"), space.calls);
+    assertEquals("STARTED", space.applications.get("hello-java").getState());
+  }
+
+  @Test
+  public void testRunningApplicationIsStoppedBeforeItIsUpdated() throws Exception {
+    space.add("hello-java", "STARTED", "hello-java.example.com");
+
+    push(manifest("/tmp/app"));
+
+    assertEquals(Arrays.asList("stop hello-java", "update hello-java-id", "map hello-java.example.com", "upload hello-java-id", "start hello-java"), space.calls);
+  }
+
+  @Test
+  public void testDefaultRouteIsOnTheFirstSharedDomain() throws Exception {
+    space.domains.add(0, Domain.builder().id("private-id").name("example.org").status(Status.OWNED).build());
+
+    push(manifest("/tmp/app"));
+
+    assertEquals(Arrays.asList("hello-java.example.com"), space.routes.get("hello-java"));
+  }
+
+  @Test
+  public void testRandomRouteIsOnlyChosenOnce() throws Exception {
+    ApplicationManifest manifest = ApplicationManifest.builder().from(manifest("/tmp/app")).randomRoute(true).build();
+
+    push(manifest);
+    List<String> routes = space.routes.get("hello-java");
+    assertEquals(1, routes.size());
+    assertTrue(routes.get(0), routes.get(0).matches("hello-java-[0-9a-f]{8}\\.example\\.com"));
+
+    space.calls.clear();
+    push(manifest);
+    assertEquals(routes, space.routes.get("hello-java"));
+    assertFalse(space.calls.toString(), space.calls.stream().anyMatch(call -> call.startsWith("map ")));
+  }
+
+  @Test
+  public void testChangedEnvironmentIsUpdatedAndRestartedWithoutUpload() throws Exception {
+    space.add(running(512), "hello-java.example.com");
+
+    DirectPush.Outcome outcome = updateConfiguration(ApplicationManifest.builder().from(manifest("/tmp/app"))
+            .environmentVariable("GREETING", "hello").build());
+
+    assertEquals(ApplicationPusher.Status.UPDATED, outcome.status);
+    assertEquals(Arrays.asList("updated environment", "restarted"), outcome.operations);
+    assertEquals(Arrays.asList("update hello-java-id", "restart hello-java"), space.calls);
+  }
+
+  @Test
+  public void testScalingMemoryRestartsOnceAfterTheOtherChanges() throws Exception {
+    space.add(running(256), "hello-java.example.com");
+
+    DirectPush.Outcome outcome = updateConfiguration(ApplicationManifest.builder().from(manifest("/tmp/app"))
+            .environmentVariable("GREETING", "hello").services("db").build());
+
+    assertEquals(Arrays.asList("updated environment", "bound service db", "scaled to 512M memory"), outcome.operations);
+    assertEquals(Arrays.asList("update hello-java-id", "bind db", "scale hello-java"), space.calls);
+  }
+
+  @Test
+  public void testOnlyChangedRoutesAreMappedAndUnmapped() throws Exception {
+    space.add(running(512), "hello-java.example.com", "old.example.com");
+
+    DirectPush.Outcome outcome = updateConfiguration(manifest("/tmp/app"));
+
+    assertEquals(Arrays.asList("unmapped route old.example.com"), outcome.operations);
+    assertEquals(Arrays.asList("update hello-java-id", "unmap old.example.com"), space.calls);
+    assertEquals(Arrays.asList("hello-java.example.com"), space.routes.get("hello-java"));
+  }
+
+  @Test
+  public void testRollingDeploymentRetiresTheRunningApplicationOnceTheNewOneIsHealthy() throws Exception {
+    space.add("hello-java", "STARTED", "hello-java.example.com");
+
+    assertEquals(ApplicationPusher.Status.PUSHED, rollingPush(manifest("/tmp/app")).status);
+
+    assertEquals(Arrays.asList("rename hello-java hello-java-venerable", "create hello-java", "map hello-java.example.com",
+            "upload hello-java-id", "start hello-java", "delete hello-java-venerable"), space.calls);
+    assertEquals(Collections.singleton("hello-java"), space.applications.keySet());
+  }
+
+  @Test
+  public void testRollingDeploymentRollsBackWhenAnInstanceCrashes() throws Exception {
+    space.add("hello-java", "STARTED", "hello-java.example.com");
+    space.instanceState = "CRASHED";
+
+    try {
+      rollingPush(manifest("/tmp/app"));
+      fail("the deployment should have failed");
+    } catch (IOException e) {
+      assertEquals("An instance of hello-java crashed on startup", e.getMessage());
+    }
+
+    assertEquals(Arrays.asList("rename hello-java hello-java-venerable", "create hello-java", "map hello-java.example.com",
+            "upload hello-java-id", "start hello-java", "delete hello-java", "rename hello-java-venerable hello-java"), space.calls);
+    assertEquals("STARTED", space.applications.get("hello-java").getState());
+    assertEquals(Arrays.asList("hello-java.example.com"), space.routes.get("hello-java"));
+  }
+
+  @Test
+  public void testRollingDeploymentOfAStoppedApplicationIsAPlainPush() throws Exception {
+    space.add("hello-java", "STOPPED", "hello-java.example.com");
+
+    rollingPush(manifest("/tmp/app"));
+
+    assertEquals(Arrays.asList("update hello-java-id", "map hello-java.example.com", "upload hello-java-id", "start hello-java"), space.calls);
+  }
+
+  private DirectPush.Outcome rollingPush(ApplicationManifest manifest) throws Exception {
+    return space.newDirectPush(false, true).push(manifest, out -> out.write(new byte[]{'P', 'K', 5, 6}),
+            new PrintStream(log, true, StandardCharsets.UTF_8.name()));
+  }
+
+  private DirectPush.Outcome push(ApplicationManifest manifest) throws Exception {
+    return space.newDirectPush(false, false).push(manifest, out -> out.write(new byte[]{'P', 'K', 5, 6}),
+            new PrintStream(log, true, StandardCharsets.UTF_8.name()));
+  }
+
+  private DirectPush.Outcome updateConfiguration(ApplicationManifest manifest) throws Exception {
+    return space.newDirectPush(true, false).push(manifest, new ApplicationBits() {
+      @Override
+      public void writeTo(OutputStream out) {
+        fail("the bits are unchanged");
+      }
+
+      @Override
+      public String digest() {
+        return "bits";
+      }
+    }, new PrintStream(log, true, StandardCharsets.UTF_8.name()));
+  }
+
+  /**
+   * A running application, last pushed with the bits of
+   * {@link #updateConfiguration}.
+   */
+  private static ApplicationEntity running(int memory) {
+    return ApplicationEntity.builder()
+            .name("hello-java")
+            .state("STARTED")
+            .memory(memory)
+            .environmentJsons(Collections.singletonMap(DirectPush.BITS_DIGEST_VARIABLE, "bits"))
+            .build();
+  }
+
+  private static ApplicationManifest manifest(String path) {
+    return ApplicationManifest.builder()
+            .name("hello-java")
+            .memory(512)
+            .path(Paths.get(path))
+            .build();
+  }
+
+  /**
+   * The applications and routes of a space, behind stubs of the client and
+   * operations, recording the calls made to them.
+   */
+  private static final class Space {
+
+    final List<String> calls = new ArrayList<>();
+    final Map<String, ApplicationEntity> applications = new LinkedHashMap<>();
+    final Map<String, String> ids = new HashMap<>();
+    final Map<String, List<String>> routes = new HashMap<>();
+    final List<Domain> domains = new ArrayList<>(Collections.singletonList(
+            Domain.builder().id("example-id").name("example.com").status(Status.SHARED).build()));
+    String instanceState = "RUNNING";
+
+    void add(String name, String state, String... routes) {
+      add(ApplicationEntity.builder().name(name).state(state).build(), routes);
+    }
+
+    void add(ApplicationEntity application, String... routes) {
+      String name = application.getName();
+      applications.put(name, application);
+      ids.put(name, name + "-id");
+      this.routes.put(name, new ArrayList<>(Arrays.asList(routes)));
+    }
+
+    private String nameOf(String applicationId) {
+      return ids.entrySet().stream().filter(id -> id.getValue().equals(applicationId)).findFirst().get().getKey();
+    }
+
+    private void setState(String name, String state) {
+      applications.put(name, ApplicationEntity.builder().from(applications.get(name)).state(state).build());
+    }
+
+    DirectPush newDirectPush(boolean configurationOnly, boolean rolling) {
+      CloudFoundryClient client = Stubs.of(CloudFoundryClient.class, new Object() {
+        public Spaces spaces() {
+          return Stubs.of(Spaces.class, new Object() {
+            public Mono<ListSpaceApplicationsResponse> listApplications(ListSpaceApplicationsRequest request) {
+              List<ApplicationResource> resources = new ArrayList<>();
+              if (applications.containsKey(request.getNames().get(0))) {
+                String name = request.getNames().get(0);
+                resources.add(ApplicationResource.builder()
+                        .metadata(Metadata.builder().id(ids.get(name)).build())
+                        .entity(applications.get(name))
+                        .build());
+              }
+              return Mono.just(ListSpaceApplicationsResponse.builder().resources(resources).build());
+            }
+          });
+        }
+
+        public ApplicationsV2 applicationsV2() {
+          return Stubs.of(ApplicationsV2.class, new Object() {
+            public Mono<CreateApplicationResponse> create(CreateApplicationRequest request) {
+              calls.add("create " + request.getName());
+              add(request.getName(), "STOPPED");
+              return Mono.just(CreateApplicationResponse.builder().metadata(Metadata.builder().id(ids.get(request.getName())).build()).build());
+            }
+
+            public Mono<UpdateApplicationResponse> update(UpdateApplicationRequest request) {
+              calls.add("update " + request.getApplicationId());
+              return Mono.just(UpdateApplicationResponse.builder().build());
+            }
+
+            public Mono<ApplicationInstancesResponse> instances(ApplicationInstancesRequest request) {
+              return Mono.just(ApplicationInstancesResponse.builder()
+                      .instances(Collections.singletonMap("0", ApplicationInstanceInfo.builder().state(instanceState).build()))
+                      .build());
+            }
+
+            public Mono<ListApplicationRoutesResponse> listRoutes(ListApplicationRoutesRequest request) {
+              return Mono.just(ListApplicationRoutesResponse.builder()
+                      .resources(routes.get(nameOf(request.getApplicationId())).stream()
+                              .map(route -> RouteResource.builder()
+                                      .entity(RouteEntity.builder()
+                                              .host(route.substring(0, route.indexOf('.')))
+                                              .domainId("example-id")
+                                              .build())
+                                      .build())
+                              .collect(Collectors.toList()))
+                      .totalPages(1)
+                      .build());
+            }
+          });
+        }
+      });
+      CloudFoundryOperations operations = Stubs.of(CloudFoundryOperations.class, new Object() {
+        public Applications applications() {
+          return Stubs.of(Applications.class, new Object() {
+            public Mono<Void> start(StartApplicationRequest request) {
+              calls.add("start " + request.getName());
+              return Mono.fromRunnable(() -> setState(request.getName(), "STARTED"));
+            }
+
+            public Mono<Void> stop(StopApplicationRequest request) {
+              calls.add("stop " + request.getName());
+              return Mono.fromRunnable(() -> setState(request.getName(), "STOPPED"));
+            }
+
+            public Mono<Void> rename(RenameApplicationRequest request) {
+              calls.add("rename " + request.getName() + " " + request.getNewName());
+              return Mono.fromRunnable(() -> {
+                add(ApplicationEntity.builder().from(applications.remove(request.getName())).name(request.getNewName()).build(),
+                        routes.remove(request.getName()).toArray(new String[0]));
+                ids.remove(request.getName());
+              });
+            }
+
+            public Mono<Void> delete(DeleteApplicationRequest request) {
+              calls.add("delete " + request.getName());
+              return Mono.fromRunnable(() -> {
+                applications.remove(request.getName());
+                ids.remove(request.getName());
+                routes.remove(request.getName());
+              });
+            }
+
+            public Mono<Void> restart(RestartApplicationRequest request) {
+              calls.add("restart " + request.getName());
+              return Mono.empty();
+            }
+
+            public Mono<Void> scale(ScaleApplicationRequest request) {
+              calls.add("scale " + request.getName());
+              return Mono.empty();
+            }
+          });
+        }
+
+        public Domains domains() {
+          return Stubs.of(Domains.class, new Object() {
+            public Flux<Domain> list() {
+              return Flux.fromIterable(domains);
+            }
+          });
+        }
+
+        public Routes routes() {
+          return Stubs.of(Routes.class, new Object() {
+            public Mono<Integer> map(MapRouteRequest request) {
+              String route = request.getHost() + "." + request.getDomain();
+              calls.add("map " + route);
+              return Mono.fromRunnable(() -> routes.get(request.getApplicationName()).add(route));
+            }
+
+            public Mono<Void> unmap(UnmapRouteRequest request) {
+              String route = request.getHost() + "." + request.getDomain();
+              calls.add("unmap " + route);
+              return Mono.fromRunnable(() -> routes.get(request.getApplicationName()).remove(route));
+            }
+          });
+        }
+
+        public Services services() {
+          return Stubs.of(Services.class, new Object() {
+            public Mono<Void> bind(BindServiceInstanceRequest request) {
+              calls.add("bind " + request.getServiceInstanceName());
+              return Mono.empty();
+            }
+          });
+        }
+      });
+      BitsUploader uploader = new BitsUploader((CloudController) null) {
+        @Override
+        long upload(String applicationId, ApplicationBits bits, Map<String, FingerprintCache.Fingerprint> matched, Duration timeout, PrintStream log) {
+          calls.add("upload " + applicationId);
+          return 0;
+        }
+      };
+      return new DirectPush(client, operations, Mono.just("space-id"), uploader, Duration.ofSeconds(60),
+              FingerprintCache.load(new File("no-fingerprints")), false, configurationOnly, -1, Collections.emptyList(), rolling);
+    }
+  }
+}
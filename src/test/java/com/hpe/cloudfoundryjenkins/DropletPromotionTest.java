@@ -0,0 +1,31 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DropletPromotion}.
+ */
+public class DropletPromotionTest {
+
+  @Test
+  public void testSourceIsASpaceOrAnOrganizationAndSpace() {
+    assertArrayEquals(new String[]{null, "staging"}, DropletPromotion.parseSource(" staging "));
+    assertArrayEquals(new String[]{"acme", "staging"}, DropletPromotion.parseSource("acme/staging"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSourceNeedsASpace() {
+    DropletPromotion.parseSource("acme/");
+  }
+
+  @Test
+  public void testBuildMillis() throws Exception {
+    assertEquals(Long.valueOf(192000), DropletPromotion.buildMillis(CloudController.MAPPER.readTree(
+            "{\"created_at\":\"2018-03-28T23:39:34Z\",\"updated_at\":\"2018-03-28T23:42:46Z\"}")));
+    assertNull(DropletPromotion.buildMillis(CloudController.MAPPER.readTree("{\"created_at\":\"2018-03-28T23:39:34Z\"}")));
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link FingerprintCache}.
+ */
+public class FingerprintCacheTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testFingerprintsAreSavedAndLoaded() throws Exception {
+    File app = tempFolder.newFolder("app");
+    new FilePath(new File(app, "lib/a.jar")).write("a", "UTF-8");
+    Map<String, FingerprintCache.Fingerprint> fingerprints = new FilePath(app).act(new FingerprintCache.FingerprintFiles(Collections.emptyMap())).files;
+    assertEquals("86f7e437faa5a7fce15d1ddcb9eaeaea377667b8", fingerprints.get("lib/a.jar").sha1);
+
+    File file = new File(tempFolder.getRoot(), FingerprintCache.FILE_NAME);
+    FingerprintCache cache = FingerprintCache.load(file);
+    cache.put("app", fingerprints);
+    cache.save();
+
+    assertEquals(fingerprints, FingerprintCache.load(file).get("app"));
+    assertTrue(FingerprintCache.load(file).get("other").isEmpty());
+  }
+
+  @Test
+  public void testPathsWithSeparatorsAreSavedAndLoaded() throws Exception {
+    File file = new File(tempFolder.getRoot(), FingerprintCache.FILE_NAME);
+    Map<String, FingerprintCache.Fingerprint> fingerprints = new HashMap<>();
+    fingerprints.put("tab\tname.txt", new FingerprintCache.Fingerprint(1, 1000, "86f7e437faa5a7fce15d1ddcb9eaeaea377667b8", "644"));
+    fingerprints.put("line\nbreak\r.txt", new FingerprintCache.Fingerprint(2, 2000, "e9d71f5ee7c92d6dc9e92ffdad17b8bd49418f98", "644"));
+    fingerprints.put("back\\slash\\t.txt", new FingerprintCache.Fingerprint(3, 3000, "86f7e437faa5a7fce15d1ddcb9eaeaea377667b8", "755"));
+    FingerprintCache cache = FingerprintCache.load(file);
+    cache.put("my\tapp", fingerprints);
+    cache.save();
+
+    assertEquals(fingerprints, FingerprintCache.load(file).get("my\tapp"));
+  }
+
+  @Test
+  public void testOnlyTheApplicationsOfTheLastPushAreSaved() throws Exception {
+    File file = new File(tempFolder.getRoot(), FingerprintCache.FILE_NAME);
+    Map<String, FingerprintCache.Fingerprint> fingerprints = Collections.singletonMap("index.html",
+            new FingerprintCache.Fingerprint(1, 1000, "86f7e437faa5a7fce15d1ddcb9eaeaea377667b8", "644"));
+    FingerprintCache first = FingerprintCache.load(file);
+    first.put("old", fingerprints);
+    first.put("kept", fingerprints);
+    first.save();
+
+    FingerprintCache notPushed = FingerprintCache.load(file);
+    notPushed.save();
+    assertEquals(fingerprints, FingerprintCache.load(file).get("old"));
+
+    FingerprintCache second = FingerprintCache.load(file);
+    FingerprintCache agent = FingerprintCache.load(new File(tempFolder.getRoot(), "agent"));
+    agent.put("kept", fingerprints);
+    second.putAll(agent);
+    second.save();
+
+    assertTrue(FingerprintCache.load(file).get("old").isEmpty());
+    assertEquals(fingerprints, FingerprintCache.load(file).get("kept"));
+  }
+
+  @Test
+  public void testOnlyChangedFilesAreHashedAgain() throws Exception {
+    File app = tempFolder.newFolder("app");
+    File unchanged = new File(app, "unchanged.txt");
+    File changed = new File(app, "changed.txt");
+    new FilePath(unchanged).write("a", "UTF-8");
+    new FilePath(changed).write("a", "UTF-8");
+    Map<String, FingerprintCache.Fingerprint> before = new FilePath(app).act(new FingerprintCache.FingerprintFiles(Collections.emptyMap())).files;
+
+    new FilePath(changed).write("b", "UTF-8");
+    assertTrue(changed.setLastModified(changed.lastModified() + 2000));
+    Map<String, FingerprintCache.Fingerprint> after = new FilePath(app).act(new FingerprintCache.FingerprintFiles(before)).files;
+
+    assertSame(before.get("unchanged.txt"), after.get("unchanged.txt"));
+    assertEquals("e9d71f5ee7c92d6dc9e92ffdad17b8bd49418f98", after.get("changed.txt").sha1);
+  }
+}
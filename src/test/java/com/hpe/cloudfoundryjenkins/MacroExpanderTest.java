@@ -0,0 +1,50 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import static org.junit.Assert.*;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Tests for {@link MacroExpander}.
+ */
+public class MacroExpanderTest {
+
+  @ClassRule
+  public static JenkinsRule jenkinsRule = new JenkinsRule();
+
+  @Test
+  public void testTextsWithoutMacrosAreLeftAsTheyAre() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    MacroExpander macros = new MacroExpander(build, build.getWorkspace(), TaskListener.NULL);
+
+    String literal = "https://api.example.com";
+    assertSame(literal, macros.expand(literal));
+    assertNull(macros.expand(null));
+  }
+
+  @Test
+  public void testTextsAreExpandedOnce() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    build.setDisplayName("first");
+    MacroExpander macros = new MacroExpander(build, build.getWorkspace(), TaskListener.NULL);
+
+    assertEquals("app-first", macros.expand("app-${BUILD_DISPLAY_NAME}"));
+    build.setDisplayName("second");
+    assertEquals("app-first", macros.expand("app-${BUILD_DISPLAY_NAME}"));
+    assertEquals("second", new MacroExpander(build, build.getWorkspace(), TaskListener.NULL).expand("${BUILD_DISPLAY_NAME}"));
+  }
+
+  @Test
+  public void testNothingIsExpandedWithoutRun() throws Exception {
+    assertEquals("${BUILD_DISPLAY_NAME}", new MacroExpander(null, null, TaskListener.NULL).expand("${BUILD_DISPLAY_NAME}"));
+  }
+}
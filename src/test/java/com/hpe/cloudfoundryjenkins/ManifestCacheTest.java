@@ -0,0 +1,69 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ManifestCache}.
+ */
+public class ManifestCacheTest {
+
+  @Test
+  public void testUnchangedManifestIsParsedOnce() throws Exception {
+    ManifestCache cache = new ManifestCache(8);
+    AtomicInteger parses = new AtomicInteger();
+    ManifestCache.Parser parser = () -> {
+      parses.incrementAndGet();
+      return Collections.singletonList(ApplicationManifest.builder().name("app").build());
+    };
+
+    List<ApplicationManifest> first = cache.get("key", parser);
+    List<ApplicationManifest> second = cache.get("key", parser);
+
+    assertEquals(1, parses.get());
+    assertSame(first, second);
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedManifestIsDropped() throws Exception {
+    ManifestCache cache = new ManifestCache(2);
+    AtomicInteger parses = new AtomicInteger();
+    ManifestCache.Parser parser = () -> {
+      parses.incrementAndGet();
+      return Collections.emptyList();
+    };
+
+    cache.get("a", parser);
+    cache.get("b", parser);
+    cache.get("a", parser);
+    cache.get("c", parser);
+    cache.get("a", parser);
+    cache.get("b", parser);
+
+    assertEquals(4, parses.get());
+    assertEquals(2, cache.getSize());
+  }
+
+  @Test
+  public void testKeyDependsOnInheritedManifest() throws Exception {
+    String manifest = "inherit: parent.yml\napplications:\n- name: app\n";
+
+    String before = ManifestCache.key(manifest, Collections.singletonList("memory: 256M\n"));
+    assertEquals(before, ManifestCache.key(manifest, Collections.singletonList("memory: 256M\n")));
+
+    assertNotEquals(before, ManifestCache.key(manifest, Collections.singletonList("memory: 512M\n")));
+    assertNotEquals(before, ManifestCache.key(manifest, Arrays.asList("memory: 256M\n", "")));
+    assertNotEquals(ManifestCache.key("applications:\n- name: app\n", Collections.emptyList()),
+        ManifestCache.key("applications:\n- name: other\n", Collections.emptyList()));
+  }
+}
@@ -17,6 +17,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Paths;
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -157,4 +158,84 @@ public class ManifestUtilsTest {
     ApplicationManifest manifest = actual.get(0);
     assertEquals(f.getAbsolutePath(), manifest.getName());
   }
+
+  @Test
+  public void testExpandedManifestFileCanBeParsedWithoutRun() throws Exception {
+    File folder = tempFolder.newFolder();
+    File f = new File(folder, "manifest.yml");
+    InputStream input = getClass().getResourceAsStream("token-macro-manifest.yml");
+    OutputStream output = new FileOutputStream(f);
+    IOUtils.copy(input, output);
+
+    FilePath manifestPath = new FilePath(folder);
+
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    build.setDisplayName("expanded-on-the-controller");
+    ManifestChoice manifestChoice = ManifestChoice.defaultManifestFileConfig();
+    String expanded = ManifestUtils.expandManifestFile(manifestPath, manifestChoice, build, build.getWorkspace(), TaskListener.NULL);
+    List<ApplicationManifest> actual = ManifestUtils.parseManifestFile(manifestPath, manifestChoice, expanded);
+
+    assertEquals(1, actual.size());
+    assertEquals("expanded-on-the-controller", actual.get(0).getName());
+    assertEquals(Paths.get(folder.toURI()), actual.get(0).getPath());
+    assertEquals("should not leave the generated manifest behind", 1, folder.list().length);
+  }
+
+  @Test
+  public void testOnlyLinesWithMacrosAreExpanded() throws Exception {
+    List<String> expanded = new ArrayList<>();
+    String actual = ManifestUtils.expandLines("applications:\r\n- name: ${NAME}\n  memory: 64M\n  host: $HOST", line -> {
+      expanded.add(line);
+      return line.replace("${NAME}", "app").replace("$HOST", "host");
+    });
+
+    assertEquals("applications:\r\n- name: app\n  memory: 64M\n  host: host", actual);
+    assertEquals(Lists.newArrayList("- name: ${NAME}", "  host: $HOST"), expanded);
+  }
+
+  @Test
+  public void testInheritedManifestIsRelativeToTheManifest() throws Exception {
+    File folder = tempFolder.newFolder();
+    File parent = new File(folder, "parent.yml");
+    try (OutputStream output = new FileOutputStream(parent)) {
+      IOUtils.write("memory: 256M\n", output, "UTF-8");
+    }
+
+    List<ApplicationManifest> actual = ManifestUtils.parseManifestFile(new FilePath(folder), ManifestChoice.defaultManifestFileConfig(),
+        "inherit: parent.yml\napplications:\n- name: child\n  path: target/app.jar\n");
+
+    assertEquals(1, actual.size());
+    assertEquals(Integer.valueOf(256), actual.get(0).getMemory());
+    assertEquals(Paths.get(folder.toURI()).resolve("target/app.jar"), actual.get(0).getPath());
+    assertEquals("should not write into the workspace", 1, folder.list().length);
+  }
+
+  @Test
+  public void testInheritedManifestsAreReadFromTheSourceDirectory() throws Exception {
+    File workspace = tempFolder.newFolder();
+    File shared = new File(workspace, "shared");
+    shared.mkdir();
+    try (OutputStream output = new FileOutputStream(new File(shared, "base.yml"))) {
+      IOUtils.write("inherit: ../common.yml\nmemory: 256M\n", output, "UTF-8");
+    }
+    try (OutputStream output = new FileOutputStream(new File(workspace, "common.yml"))) {
+      IOUtils.write("instances: 2\n", output, "UTF-8");
+    }
+    String manifest = "inherit: shared/base.yml\napplications:\n- name: child\n  path: target/app.jar\n";
+    long misses = ManifestCache.get().getMisses();
+
+    File placeholder = tempFolder.newFolder();
+    List<ApplicationManifest> actual = ManifestUtils.parseManifestFile(new FilePath(placeholder), ManifestChoice.defaultManifestFileConfig(),
+        manifest, new FilePath(workspace));
+    File otherPlaceholder = tempFolder.newFolder();
+    List<ApplicationManifest> again = ManifestUtils.parseManifestFile(new FilePath(otherPlaceholder), ManifestChoice.defaultManifestFileConfig(),
+        manifest, new FilePath(workspace));
+
+    assertEquals(Integer.valueOf(256), actual.get(0).getMemory());
+    assertEquals(Integer.valueOf(2), actual.get(0).getInstances());
+    assertEquals(Paths.get(placeholder.toURI()).resolve("target/app.jar"), actual.get(0).getPath());
+    assertEquals(Paths.get(otherPlaceholder.toURI()).resolve("target/app.jar"), again.get(0).getPath());
+    assertEquals("should parse the manifest once, wherever it is parsed", misses + 1, ManifestCache.get().getMisses());
+  }
 }
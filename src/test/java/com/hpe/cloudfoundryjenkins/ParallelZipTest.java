@@ -0,0 +1,126 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ParallelZip}.
+ */
+public class ParallelZipTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testAllEntriesAreWritten() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ParallelZip zip = new ParallelZip(out, ParallelZip.DEFAULT_LEVEL)) {
+      for (int i = 0; i < 50; i++) {
+        zip.visit(text("file" + i + ".txt", "hello " + i), "dir/file" + i + ".txt");
+      }
+      assertEquals(50, zip.countEntries());
+    }
+
+    Map<String, String> contents = new HashMap<>();
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        contents.put(entry.getName(), IOUtils.toString(zip, StandardCharsets.UTF_8));
+      }
+    }
+    assertEquals(50, contents.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals("hello " + i, contents.get("dir/file" + i + ".txt"));
+    }
+  }
+
+  @Test
+  public void testFileChangedAfterItWasVisitedIsWrittenAsRead() throws Exception {
+    File file = text("app.properties", "short");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ParallelZip zip = new ParallelZip(out, ParallelZip.STORE)) {
+      zip.visit(file, "app.properties");
+      Files.write(file.toPath(), "a longer value".getBytes(StandardCharsets.UTF_8));
+    }
+
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      assertEquals("app.properties", zip.getNextEntry().getName());
+      String content = IOUtils.toString(zip, StandardCharsets.UTF_8);
+      assertTrue(content, content.equals("short") || content.equals("a longer value"));
+    }
+  }
+
+  @Test
+  public void testCompressedFilesAreStored() throws Exception {
+    byte[] random = new byte[64 * 1024];
+    new Random(42).nextBytes(random);
+    File noise = tempFolder.newFile("noise.bin");
+    Files.write(noise.toPath(), random);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append("compressible text ");
+    }
+
+    Map<String, Integer> methods = methodsOf(ParallelZip.DEFAULT_LEVEL,
+            text("lib.jar", text.toString()), noise, text("readme.txt", text.toString()));
+
+    assertEquals(ZipEntry.STORED, (int) methods.get("lib.jar"));
+    assertEquals(ZipEntry.STORED, (int) methods.get("noise.bin"));
+    assertEquals(ZipEntry.DEFLATED, (int) methods.get("readme.txt"));
+  }
+
+  @Test
+  public void testStoreOnlyStoresEverything() throws Exception {
+    Map<String, Integer> methods = methodsOf(ParallelZip.STORE, text("readme.txt", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"));
+
+    assertEquals(ZipEntry.STORED, (int) methods.get("readme.txt"));
+  }
+
+  @Test
+  public void testEntropy() {
+    byte[] random = new byte[4096];
+    new Random(42).nextBytes(random);
+    byte[] text = "the quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    assertTrue(ParallelZip.entropy(random, random.length) > 7.5);
+    assertTrue(ParallelZip.entropy(text, text.length) < 5);
+  }
+
+  private Map<String, Integer> methodsOf(int level, File... files) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ParallelZip zip = new ParallelZip(out, level)) {
+      for (File file : files) {
+        zip.visit(file, file.getName());
+      }
+    }
+    Map<String, Integer> methods = new HashMap<>();
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        methods.put(entry.getName(), entry.getMethod());
+      }
+    }
+    return methods;
+  }
+
+  private File text(String name, String content) throws Exception {
+    File file = new File(tempFolder.getRoot(), name);
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+}
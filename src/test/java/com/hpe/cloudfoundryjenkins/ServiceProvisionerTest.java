@@ -0,0 +1,211 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.spaces.ListSpaceServiceInstancesRequest;
+import org.cloudfoundry.client.v2.spaces.ListSpaceServiceInstancesResponse;
+import org.cloudfoundry.client.v2.spaces.Spaces;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.services.CreateServiceInstanceRequest;
+import org.cloudfoundry.operations.services.DeleteServiceInstanceRequest;
+import org.cloudfoundry.operations.services.ServiceInstanceSummary;
+import org.cloudfoundry.operations.services.ServiceInstanceType;
+import org.cloudfoundry.operations.services.Services;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ServiceProvisioner}.
+ */
+public class ServiceProvisionerTest {
+
+  private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+  private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+  private ServiceProvisioner newProvisioner(Object services) {
+    return newProvisioner(null, services);
+  }
+
+  private ServiceProvisioner newProvisioner(Object spaces, Object services) {
+    CloudFoundryClient client = Stubs.of(CloudFoundryClient.class, new Object() {
+      public Spaces spaces() {
+        return Stubs.of(Spaces.class, spaces);
+      }
+    });
+    CloudFoundryOperations operations = Stubs.of(CloudFoundryOperations.class, new Object() {
+      public Services services() {
+        return Stubs.of(Services.class, services);
+      }
+    });
+    return new ServiceProvisioner(client, operations, new StreamTaskListener(log, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Spaces whose service instances cannot be looked up by name.
+   */
+  private static Object failingLookup(ClientV2Exception error) {
+    return new Object() {
+      public Mono<ListSpaceServiceInstancesResponse> listServiceInstances(ListSpaceServiceInstancesRequest request) {
+        return Mono.error(error);
+      }
+    };
+  }
+
+  private static Mono<Set<String>> existing(String... names) {
+    return Mono.just(new HashSet<>(Arrays.asList(names)));
+  }
+
+  private String output() {
+    return new String(log.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testParallelismIsLimited() {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    ServiceProvisioner provisioner = newProvisioner(new Object() {
+      public Mono<Void> createInstance(CreateServiceInstanceRequest request) {
+        return Mono.defer(() -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          return Mono.delay(Duration.ofMillis(50)).then().doOnSuccess(v -> running.decrementAndGet());
+        });
+      }
+    });
+    List<CloudFoundryPushPublisher.Service> services = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      services.add(new CloudFoundryPushPublisher.Service("service-" + i, "mysql", "small"));
+    }
+
+    List<ServiceProvisioner.Outcome> outcomes = provisioner.start(services, existing(), 2).awaitAll();
+
+    assertEquals(6, outcomes.size());
+    assertEquals(2, maxRunning.get());
+    assertTrue(provisioner.report(outcomes));
+  }
+
+  @Test
+  public void testAwaitOnlyWaitsForTheNamedServices() {
+    MonoProcessor<Void> slow = MonoProcessor.create();
+    ServiceProvisioner provisioner = newProvisioner(new Object() {
+      public Mono<Void> createInstance(CreateServiceInstanceRequest request) {
+        return "slow".equals(request.getServiceInstanceName()) ? slow : Mono.empty();
+      }
+    });
+
+    ServiceProvisioner.Provisioning provisioning = provisioner.start(Arrays.asList(
+            new CloudFoundryPushPublisher.Service("fast", "mysql", "small"),
+            new CloudFoundryPushPublisher.Service("slow", "mysql", "small")), existing(), 2);
+
+    List<ServiceProvisioner.Outcome> outcomes = provisioning.await(Arrays.asList("fast", "not-created-here"));
+    assertEquals(1, outcomes.size());
+    assertEquals("fast", outcomes.get(0).serviceName);
+    assertNull(outcomes.get(0).error);
+    assertTrue(provisioning.await(Collections.singletonList("not-created-here")).isEmpty());
+
+    slow.onComplete();
+    assertEquals(2, provisioning.awaitAll().size());
+  }
+
+  @Test
+  public void testFailureIsReported() {
+    ServiceProvisioner provisioner = newProvisioner(new Object() {
+      public Mono<Void> createInstance(CreateServiceInstanceRequest request) {
+        return Mono.error(new IllegalStateException("quota exceeded"));
+      }
+    });
+
+    List<ServiceProvisioner.Outcome> outcomes = provisioner.start(Collections.singletonList(
+            new CloudFoundryPushPublisher.Service("db", "mysql", "small")), existing(), 1).awaitAll();
+
+    assertEquals("quota exceeded", outcomes.get(0).error.getMessage());
+    assertFalse(provisioner.report(outcomes));
+    assertTrue(output(), output().contains("ERROR: Could not create service db: quota exceeded"));
+    assertTrue(output(), output().contains("1 of 1 services could not be created"));
+  }
+
+  @Test
+  public void testExistingServicesAreResetOrSkipped() {
+    ServiceProvisioner provisioner = newProvisioner(new Object() {
+      public Mono<Void> createInstance(CreateServiceInstanceRequest request) {
+        return Mono.fromRunnable(() -> calls.add("create " + request.getServiceInstanceName()));
+      }
+
+      public Mono<Void> deleteInstance(DeleteServiceInstanceRequest request) {
+        return Mono.fromRunnable(() -> calls.add("delete " + request.getName()));
+      }
+    });
+
+    List<ServiceProvisioner.Outcome> outcomes = provisioner.start(Arrays.asList(
+            new CloudFoundryPushPublisher.Service("db", "mysql", "small", true),
+            new CloudFoundryPushPublisher.Service("cache", "redis", "small", false)), existing("db", "cache"), 1).awaitAll();
+
+    assertTrue(provisioner.report(outcomes));
+    assertEquals(Arrays.asList("delete db", "create db"), calls);
+    assertTrue(output(), output().contains("Service cache already exists, skipping creation."));
+  }
+
+  @Test
+  public void testLookupFallsBackToListingWhenTheFilterIsNotSupported() {
+    ServiceProvisioner provisioner = newProvisioner(
+            failingLookup(new ClientV2Exception(400, 1003, "The query parameter is invalid", ServiceProvisioner.BAD_QUERY_PARAMETER)),
+            new Object() {
+              public Flux<ServiceInstanceSummary> listInstances() {
+                return Flux.just(ServiceInstanceSummary.builder().id("db-id").name("db").type(ServiceInstanceType.MANAGED).build());
+              }
+            });
+
+    assertEquals(Collections.singleton("db"), provisioner.findExistingServices(Mono.just("space-id"), Arrays.asList("db", "cache")).block());
+    assertTrue(output(), output().contains("listing all the services of the space instead"));
+  }
+
+  @Test
+  public void testLookupFailsOnOtherErrors() {
+    ServiceProvisioner provisioner = newProvisioner(
+            failingLookup(new ClientV2Exception(403, 10003, "You are not authorized to perform the requested action", "CF-NotAuthorized")),
+            new Object() {
+              public Flux<ServiceInstanceSummary> listInstances() {
+                throw new AssertionError("the services should not be listed");
+              }
+            });
+
+    try {
+      provisioner.findExistingServices(Mono.just("space-id"), Collections.singletonList("db")).block();
+      fail("the lookup should have failed");
+    } catch (ClientV2Exception e) {
+      assertEquals("CF-NotAuthorized", e.getErrorCode());
+    }
+  }
+
+  @Test
+  public void testCancelStopsTheServicesBeingCreated() {
+    AtomicBoolean canceled = new AtomicBoolean();
+    ServiceProvisioner provisioner = newProvisioner(new Object() {
+      public Mono<Void> createInstance(CreateServiceInstanceRequest request) {
+        return Mono.<Void>never().doOnCancel(() -> canceled.set(true));
+      }
+    });
+
+    provisioner.start(Collections.singletonList(new CloudFoundryPushPublisher.Service("db", "mysql", "small")), existing(), 1).cancel();
+
+    assertTrue(canceled.get());
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link StagingArea}.
+ */
+public class StagingAreaTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testReservationsWaitForTheBudget() throws Exception {
+    StagingArea area = new StagingArea(tempFolder.newFolder("staging"), 100);
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    StagingArea.Reservation first = area.reserve(80, new PrintStream(log, true));
+
+    CompletableFuture<StagingArea.Reservation> second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return area.reserve(50, new PrintStream(log, true));
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    try {
+      second.get(200, TimeUnit.MILLISECONDS);
+      fail("the second reservation should wait");
+    } catch (TimeoutException expected) {
+      // waiting
+    }
+
+    first.shrinkTo(40);
+    second.get(10, TimeUnit.SECONDS).close();
+    first.close();
+
+    assertEquals(0, area.getUsed());
+    assertTrue(log.toString("UTF-8").contains("Waiting for 1 MB of staging space"));
+  }
+
+  @Test
+  public void testReservationLargerThanTheBudgetGoesAheadAlone() throws Exception {
+    StagingArea area = new StagingArea(tempFolder.newFolder("staging"), 100);
+
+    StagingArea.Reservation reservation = area.reserve(500, new PrintStream(new ByteArrayOutputStream()));
+
+    assertEquals(500, area.getUsed());
+    reservation.close();
+    reservation.close();
+    assertEquals(0, area.getUsed());
+  }
+
+  @Test
+  public void testSweepDeletesOrphans() throws Exception {
+    File root = tempFolder.newFolder("staging");
+    StagingArea area = new StagingArea(root, 0);
+    FilePath staged = area.createDirectory();
+    staged.child("app/application.zip").write("zip", "UTF-8");
+    File orphan = new File(staged.getRemote());
+    File legacy = tempFolder.newFolder("appDir123");
+    File recentLegacy = tempFolder.newFolder("appDir456");
+    assertTrue(legacy.setLastModified(1000));
+
+    assertEquals(2, area.sweep(tempFolder.getRoot(), System.currentTimeMillis() - 60000));
+
+    assertFalse(orphan.exists());
+    assertFalse(legacy.exists());
+    assertTrue(recentLegacy.exists());
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Stubs of the client interfaces, for tests which do not talk to a Cloud
+ * Controller.
+ */
+final class Stubs {
+
+  private Stubs() {
+  }
+
+  /**
+   * Implements an interface with the public methods of a delegate, usually
+   * an anonymous class. Calls to methods the delegate does not have fail
+   * with {@link UnsupportedOperationException}.
+   *
+   * @param type the interface
+   * @param delegate implements the methods the test needs, with the same
+   * signatures
+   * @return the stub
+   */
+  static <T> T of(Class<T> type, Object delegate) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          default:
+            return type.getSimpleName() + " stub";
+        }
+      }
+      Method target;
+      try {
+        target = delegate.getClass().getMethod(method.getName(), method.getParameterTypes());
+      } catch (NoSuchMethodException e) {
+        throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName() + " is not stubbed");
+      }
+      target.setAccessible(true);
+      try {
+        return target.invoke(delegate, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }));
+  }
+}
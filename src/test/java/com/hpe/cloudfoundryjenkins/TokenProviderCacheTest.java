@@ -0,0 +1,61 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.cloudfoundry.reactor.TokenProvider;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TokenProviderCache}.
+ */
+public class TokenProviderCacheTest {
+
+  private static final ConnectionContextRegistry.Key ENDPOINT = new ConnectionContextRegistry.Key("api.the.cloudfoundry.host", null, null, false, null);
+
+  private final TokenProviderCache cache = new TokenProviderCache();
+
+  @Test
+  public void testReusesProviderForSameCredentials() {
+    TokenProvider first = cache.getTokenProvider(ENDPOINT, "creds", "user", "pass");
+    TokenProvider second = cache.getTokenProvider(new ConnectionContextRegistry.Key("api.the.cloudfoundry.host", null, null, false, null), "creds", "user", "pass");
+    assertSame(first, second);
+  }
+
+  @Test
+  public void testReplacesProviderWhenCredentialsChange() {
+    TokenProvider first = cache.getTokenProvider(ENDPOINT, "creds", "user", "pass");
+    TokenProvider second = cache.getTokenProvider(ENDPOINT, "creds", "user", "new-pass");
+    assertNotSame(first, second);
+    assertEquals("should not keep the stale provider", 1, cache.size());
+  }
+
+  @Test
+  public void testEvictForgetsEndpoint() {
+    cache.getTokenProvider(ENDPOINT, "creds", "user", "pass");
+    cache.getTokenProvider(ENDPOINT, "other-creds", "user", "pass");
+    cache.getTokenProvider(new ConnectionContextRegistry.Key("api.another.host", null, null, false, null), "creds", "user", "pass");
+    cache.evict(ENDPOINT);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testFingerprintDoesNotContainPassword() {
+    String fingerprint = TokenProviderCache.fingerprint("user", "s3cr3t");
+    assertFalse(fingerprint.contains("s3cr3t"));
+    assertEquals(fingerprint, TokenProviderCache.fingerprint("user", "s3cr3t"));
+    assertNotEquals(fingerprint, TokenProviderCache.fingerprint("user2", "s3cr3t"));
+  }
+
+  @Test
+  public void testExpiryOf() {
+    String payload = Base64.getUrlEncoder().withoutPadding().encodeToString("{\"jti\":\"abc\",\"exp\":1500000000,\"scope\":[\"cloud_controller.read\"]}".getBytes(StandardCharsets.UTF_8));
+    assertEquals(Long.valueOf(1500000000000L), TokenProviderCache.expiryOf("bearer eyJhbGciOiJSUzI1NiJ9." + payload + ".c2lnbmF0dXJl"));
+    assertNull(TokenProviderCache.expiryOf("bearer not-a-jwt"));
+    assertNull(TokenProviderCache.expiryOf(null));
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.Docker;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+/**
+ * Tests for {@link V3Push}.
+ */
+public class V3PushTest {
+
+  private final V3Push v3Push = new V3Push(null, new BitsUploader((CloudController) null), Duration.ofSeconds(60), false, false, -1, false, null);
+
+  @Test
+  public void testManifestToApplyLeavesTheDigestsOut() {
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .memory(512)
+            .instances(2)
+            .noRoute(true)
+            .build();
+    JsonNode application = v3Push.toManifest(manifest).path("applications").get(0);
+
+    assertEquals("hello-java", application.path("name").asText());
+    assertEquals("512M", application.path("memory").asText());
+    assertEquals(2, application.path("instances").asInt());
+    assertTrue(application.path("no-route").asBoolean());
+    assertEquals(0, application.path("env").size());
+  }
+
+  @Test
+  public void testRandomRouteIsLeftToTheCloudController() {
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .randomRoute(true)
+            .build();
+
+    JsonNode application = v3Push.toManifest(manifest).path("applications").get(0);
+
+    assertTrue(application.path("random-route").asBoolean());
+    assertTrue(application.path("routes").isMissingNode());
+    assertEquals(0, application.path("env").size());
+  }
+
+  @Test
+  public void testDeploymentOutcome() throws Exception {
+    assertNull(V3Push.deploymentOutcome(CloudController.MAPPER.readTree("{\"state\":\"DEPLOYING\"}")));
+    assertEquals("DEPLOYED", V3Push.deploymentOutcome(CloudController.MAPPER.readTree("{\"state\":\"DEPLOYED\"}")));
+    assertNull(V3Push.deploymentOutcome(CloudController.MAPPER.readTree("{\"status\":{\"value\":\"ACTIVE\",\"reason\":\"DEPLOYING\"}}")));
+    assertEquals("DEPLOYED", V3Push.deploymentOutcome(CloudController.MAPPER.readTree("{\"status\":{\"value\":\"FINALIZED\",\"reason\":\"DEPLOYED\"}}")));
+    assertEquals("CANCELED", V3Push.deploymentOutcome(CloudController.MAPPER.readTree("{\"status\":{\"value\":\"FINALIZED\",\"reason\":\"CANCELED\"}}")));
+  }
+
+  @Test
+  public void testRollingDeploymentScalesTheNewInstancesOnly() throws Exception {
+    FakeController controller = new FakeController("STARTED");
+
+    rollingPush(controller);
+
+    JsonNode applied = controller.bodies.get("/v3/spaces/space-id/actions/apply_manifest").path("applications").get(0);
+    assertTrue(applied.toString(), applied.path("memory").isMissingNode());
+    assertTrue(applied.toString(), applied.path("disk_quota").isMissingNode());
+    JsonNode deployment = controller.bodies.get("/v3/deployments");
+    assertEquals("droplet-id", deployment.path("droplet").path("guid").asText());
+    assertEquals(512, deployment.path("options").path("memory_in_mb").asInt());
+    assertTrue(deployment.toString(), deployment.path("options").path("disk_in_mb").isMissingNode());
+    assertFalse(controller.requests.toString(), controller.requests.contains("POST /v3/apps/app-id/actions/stop"));
+  }
+
+  @Test
+  public void testStoppedApplicationIsScaledByTheManifest() throws Exception {
+    FakeController controller = new FakeController("STOPPED");
+
+    rollingPush(controller);
+
+    JsonNode applied = controller.bodies.get("/v3/spaces/space-id/actions/apply_manifest").path("applications").get(0);
+    assertEquals("512M", applied.path("memory").asText());
+    assertFalse(controller.requests.toString(), controller.requests.contains("POST /v3/deployments"));
+  }
+
+  @Test
+  public void testFailedStagingIsPushedAgainByTheNextBuild() throws Exception {
+    FakeController controller = new FakeController("STARTED");
+    controller.stagingFails = true;
+    try {
+      bitsPush(controller);
+      fail("the staging should have failed");
+    } catch (IOException e) {
+      assertEquals("Staging hello-java failed: out of memory", e.getMessage());
+    }
+    assertFalse(controller.environment.toString(), controller.environment.has(DirectPush.DIGEST_VARIABLE));
+
+    controller.stagingFails = false;
+    assertEquals(ApplicationPusher.Status.PUSHED, bitsPush(controller).status);
+    assertTrue(controller.environment.toString(), controller.environment.has(DirectPush.DIGEST_VARIABLE));
+
+    assertEquals(ApplicationPusher.Status.UNCHANGED, bitsPush(controller).status);
+  }
+
+  private static DirectPush.Outcome bitsPush(CloudController controller) throws Exception {
+    DirectPush directPush = new DirectPush(null, null, Mono.just("space-id"), null, Duration.ofSeconds(60),
+            FingerprintCache.load(new File("no-fingerprints")), false, false, -1, Collections.emptyList(), false);
+    BitsUploader uploader = new BitsUploader(controller) {
+      @Override
+      long uploadPackage(String packageId, ApplicationBits bits, Map<String, FingerprintCache.Fingerprint> matched, Duration timeout, PrintStream log) {
+        return 0;
+      }
+    };
+    V3Push v3 = new V3Push(directPush, uploader, Duration.ofSeconds(60), false, false, -1, false, null);
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .noRoute(true)
+            .build();
+    return v3.push(manifest, new ApplicationBits() {
+      @Override
+      public void writeTo(OutputStream out) {
+      }
+
+      @Override
+      public String digest() {
+        return "bits";
+      }
+    }, new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8.name()));
+  }
+
+  private static void rollingPush(CloudController controller) throws Exception {
+    DirectPush directPush = new DirectPush(null, null, Mono.just("space-id"), null, Duration.ofSeconds(60), null, false, false, -1,
+            Collections.emptyList(), true);
+    V3Push rolling = new V3Push(directPush, new BitsUploader(controller), Duration.ofSeconds(60), false, false, -1, true, null);
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .memory(512)
+            .disk(1024)
+            .noRoute(true)
+            .docker(Docker.builder().image("cloudfoundry/hello").build())
+            .build();
+    rolling.push(manifest, null, new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8.name()));
+  }
+
+  /**
+   * A Cloud Controller with one application running with 256M of memory and
+   * 1024M of disk, recording the requests sent to it.
+   */
+  private static final class FakeController extends CloudController {
+
+    final List<String> requests = new ArrayList<>();
+    final Map<String, JsonNode> bodies = new HashMap<>();
+    final ObjectNode environment = MAPPER.createObjectNode();
+    boolean stagingFails;
+    private final String state;
+
+    FakeController(String state) {
+      super(null, null, null, Duration.ZERO);
+      this.state = state;
+    }
+
+    @Override
+    JsonNode get(String path) throws IOException {
+      requests.add("GET " + path);
+      if (path.startsWith("/v3/apps?")) {
+        return MAPPER.readTree("{\"resources\":[{\"guid\":\"app-id\",\"state\":\"" + state + "\"}]}");
+      }
+      switch (path) {
+        case "/v3/apps/app-id/environment_variables":
+          return MAPPER.createObjectNode().set("var", environment);
+        case "/v3/apps/app-id/processes/web":
+          return MAPPER.readTree("{\"memory_in_mb\":256,\"disk_in_mb\":1024}");
+        case "/v3/apps/app-id/processes/web/stats":
+          return MAPPER.readTree("{\"resources\":[{\"state\":\"RUNNING\"}]}");
+        default:
+          throw new IOException("Unexpected GET " + path);
+      }
+    }
+
+    @Override
+    JsonNode send(String method, String path, JsonNode body) throws IOException {
+      requests.add(method + " " + path);
+      if (body != null) {
+        bodies.put(path, body);
+      }
+      switch (path) {
+        case "/v3/packages":
+          return MAPPER.readTree("{\"guid\":\"package-id\"}");
+        case "/v3/builds":
+          return stagingFails
+                  ? MAPPER.readTree("{\"guid\":\"build-id\",\"state\":\"FAILED\",\"error\":\"out of memory\"}")
+                  : MAPPER.readTree("{\"guid\":\"build-id\",\"state\":\"STAGED\",\"droplet\":{\"guid\":\"droplet-id\"}}");
+        case "/v3/apps/app-id/environment_variables":
+          environment.setAll((ObjectNode) body.path("var"));
+          return MAPPER.createObjectNode().set("var", environment);
+        case "/v3/deployments":
+          return MAPPER.readTree("{\"guid\":\"deployment-id\",\"state\":\"DEPLOYED\"}");
+        default:
+          return MAPPER.createObjectNode();
+      }
+    }
+
+    @Override
+    JsonNode send(String method, String path, String contentType, byte[] body) throws IOException {
+      return send(method, path, MAPPER.readTree(body));
+    }
+  }
+}